@@ -1,12 +1,21 @@
 package com.github.piasy.webrtcdatachannel;
 
 import android.content.Context;
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import org.appspot.apprtc.AppRTCClient;
+import org.appspot.apprtc.RtcEventLog;
+import org.appspot.apprtc.SdpCodec;
+import org.appspot.apprtc.util.EventLoops;
+import org.appspot.apprtc.util.FlightRecorder;
 import org.webrtc.DataChannel;
 import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
@@ -25,37 +34,109 @@ import org.webrtc.StatsReport;
 public class DataChannelPeerConnectionClient
         implements PeerConnection.Observer, DataChannel.Observer, SdpObserver {
     private static final String TAG = "DataChannelPeerConnectionClient";
-
-    private final ExecutorService mExecutor;
+    private static final long STATS_INTERVAL_MS = 1000;
+
+    private final ScheduledExecutorService mExecutor;
+    private final SendPacer mSendPacer;
+    private final OutboundScheduler mOutboundScheduler;
+    private final PreOpenQueue mPreOpenQueue;
+    private final ProtocolHandler[] mProtocolHandlers =
+            new ProtocolHandler[MessageKinds.COUNT];
+    private final RpcEndpoint mRpcEndpoint;
+    private final TopicRouter mTopicRouter;
+    private final Heartbeat mHeartbeat;
+    private final IcePolicy mIcePolicy = new IcePolicy();
     private final Context mAppContext;
 
-    private Events mEvents;
+    private volatile Events mEvents;
     private boolean mIsInitiator;
     private boolean mErrorHappened;
     private LinkedList<IceCandidate> mQueuedRemoteCandidates;
 
     private PeerConnectionFactory mPeerConnectionFactory;
     private PeerConnection mPeerConnection;
-    private DataChannel mDataChannel;
+    private volatile DataChannel mDataChannel;
     private MediaConstraints mSdpConstraints;
+    private ScheduledFuture<?> mStatsFuture;
     private SessionDescription mLocalSdp;
+    private DataChannelParameters mDataChannelParameters;
+
+    // connection timeline, for metrics
+    private volatile long mCreatePcTimeNs;
+    private volatile long mIceConnectedTimeNs;
+    private volatile long mDataChannelOpenTimeNs;
+
+    // RTC event log capture, requested before or after the peer connection is created
+    private File mRtcEventLogDir;
+    private int mRtcEventLogSegmentMaxBytes;
+    private long mRtcEventLogTotalBudgetBytes;
+    private RtcEventLog mRtcEventLog;
+
+    // data only SDP profile, and sizes of the last local SDP before and after minimizing
+    private volatile boolean mDataOnlySdp;
+    private volatile int mLocalSdpBytes = -1;
+    private volatile int mMinimizedSdpBytes = -1;
 
     public DataChannelPeerConnectionClient(Context appContext) {
+        this(appContext, EventLoops.get().pick().newExecutor());
+    }
+
+    /**
+     * @param executor runs everything of this connection in order, it's shut down once the
+     * connection is closed, see {@link EventLoops.Loop#newExecutor()}.
+     */
+    public DataChannelPeerConnectionClient(Context appContext, ScheduledExecutorService executor) {
         mAppContext = appContext;
-        mExecutor = Executors.newSingleThreadExecutor();
+        mExecutor = executor;
+        mSendPacer = new SendPacer(() -> {
+            DataChannel dataChannel = mDataChannel;
+            return dataChannel == null ? 0 : dataChannel.bufferedAmount();
+        });
+        mOutboundScheduler = new OutboundScheduler(mExecutor, this::sendInternal,
+                OutboundScheduler.DEFAULT_RING_CAPACITY, mSendPacer);
+        mPreOpenQueue = new PreOpenQueue(mOutboundScheduler);
+        mRpcEndpoint = new RpcEndpoint(mExecutor, this::sendProtocolMessage);
+        registerProtocolHandler(MessageKinds.RPC_REQUEST, mRpcEndpoint::onMessage);
+        registerProtocolHandler(MessageKinds.RPC_RESPONSE, mRpcEndpoint::onMessage);
+        registerProtocolHandler(MessageKinds.RPC_CANCEL, mRpcEndpoint::onMessage);
+        mTopicRouter = new TopicRouter(this::sendProtocolMessage, topicMessage -> {
+            Events events = mEvents;
+            if (events != null) {
+                events.onTopicMessage(topicMessage);
+            }
+        });
+        registerProtocolHandler(MessageKinds.TOPIC_MESSAGE, mTopicRouter::onMessage);
+        registerProtocolHandler(MessageKinds.TOPIC_SUBSCRIPTIONS, mTopicRouter::onMessage);
+        mHeartbeat = new Heartbeat(mExecutor, this::sendProtocolMessage, unresponsive -> {
+            Events events = mEvents;
+            if (events != null) {
+                events.onPeerUnresponsive(unresponsive);
+            }
+        });
+        registerProtocolHandler(MessageKinds.PING, mHeartbeat::onMessage);
+        registerProtocolHandler(MessageKinds.PONG, mHeartbeat::onMessage);
+        registerProtocolHandler(MessageKinds.OBJECT, (kind, message) -> {
+            byte[] encoded = new byte[message.remaining()];
+            message.get(encoded);
+            Events events = mEvents;
+            if (events != null) {
+                events.onObjectMessage(encoded);
+            }
+        });
     }
 
     public void createPcFactory() {
-        mExecutor.execute(this::createPcFactoryInternal);
+        execute(this::createPcFactoryInternal);
     }
 
-    public void createPc(AppRTCClient.SignalingParameters params, Events events) {
+    public void createPc(AppRTCClient.SignalingParameters params,
+            DataChannelParameters dataChannelParameters, Events events) {
         mEvents = events;
-        mExecutor.execute(() -> createPcInternal(params));
+        execute(() -> createPcInternal(params, dataChannelParameters));
     }
 
     public void createOffer() {
-        mExecutor.execute(() -> {
+        execute(() -> {
             Logging.d(TAG, "createOffer");
             mIsInitiator = true;
             mPeerConnection.createOffer(DataChannelPeerConnectionClient.this, mSdpConstraints);
@@ -63,14 +144,15 @@ public class DataChannelPeerConnectionClient
     }
 
     public void setRemoteDescription(SessionDescription sdp) {
-        mExecutor.execute(() -> {
-            Logging.d(TAG, "setRemoteDescription " + sdp);
+        execute(() -> {
+            FlightRecorder.record(FlightRecorder.EVENT_SDP_REMOTE, sdp.type.ordinal(),
+                    sdp.description.length());
             mPeerConnection.setRemoteDescription(DataChannelPeerConnectionClient.this, sdp);
         });
     }
 
     public void createAnswer() {
-        mExecutor.execute(() -> {
+        execute(() -> {
             Logging.d(TAG, "createAnswer");
             mIsInitiator = false;
             mPeerConnection.createAnswer(DataChannelPeerConnectionClient.this, mSdpConstraints);
@@ -78,9 +160,15 @@ public class DataChannelPeerConnectionClient
     }
 
     public void addRemoteIceCandidate(IceCandidate iceCandidate) {
-        mExecutor.execute(() -> {
+        execute(() -> {
             if (mPeerConnection != null) {
-                if (mQueuedRemoteCandidates != null) {
+                FlightRecorder.record(FlightRecorder.EVENT_ICE_CANDIDATE_REMOTE,
+                        iceCandidate.sdpMLineIndex, iceCandidate.sdp.length());
+                if (!mIcePolicy.acceptRemote(iceCandidate)) {
+                    // the candidate line has the peer's addresses, only its type is recorded
+                    FlightRecorder.record(FlightRecorder.EVENT_ICE_CANDIDATE_FILTERED, 1,
+                            IcePolicy.typeIndexOf(iceCandidate));
+                } else if (mQueuedRemoteCandidates != null) {
                     mQueuedRemoteCandidates.add(iceCandidate);
                 } else {
                     mPeerConnection.addIceCandidate(iceCandidate);
@@ -89,17 +177,251 @@ public class DataChannelPeerConnectionClient
         });
     }
 
-    public void sendMessage(String message) {
-        Logging.d(TAG, "sendMessage " + message);
-        mExecutor.execute(() -> sendMessageInternal(message));
+    /**
+     * Send a burst of {@link DataFrames} built by Dart, the lane of a frame is its priority
+     * class and its flags tell a topic or object message from a plain one. Frames of another
+     * session are skipped, a malformed buffer is dropped from the first bad frame on.
+     *
+     * @return the number of rejected frames.
+     */
+    public int sendFrames(ByteBuffer frames, int session) {
+        int[] rejected = new int[1];
+        try {
+            DataFrames.read(frames, (frameSession, lane, flags, payload) -> {
+                if (frameSession != session) {
+                    return;
+                }
+                boolean accepted;
+                if ((flags & DataFrames.FLAG_TOPIC) != 0) {
+                    accepted = mTopicRouter.publish(payload, lane);
+                } else if ((flags & DataFrames.FLAG_OBJECT) != 0) {
+                    // encoded by Dart with the same codec, passed through as is
+                    accepted = sendEncodedObject(payload, lane);
+                } else {
+                    accepted = send(payload, (flags & DataFrames.FLAG_BINARY) != 0, lane);
+                }
+                if (!accepted) {
+                    rejected[0]++;
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            Logging.e(TAG, "Drop malformed data message: " + e.getMessage());
+        }
+        return rejected[0];
+    }
+
+    /**
+     * Queue a message in the given priority class of {@link OutboundScheduler}, it's sent by
+     * the scheduler's drain on the connection's executor. Before the data channel is OPEN, it's
+     * held in the {@link PreOpenQueue}. Binary messages are prefixed with {@link MessageKinds#USER}.
+     *
+     * @return false if the message is rejected because the send queue is full.
+     */
+    public boolean send(byte[] payload, boolean binary, int priority) {
+        if (binary) {
+            byte[] message = new byte[payload.length + 1];
+            message[0] = MessageKinds.USER;
+            System.arraycopy(payload, 0, message, 1, payload.length);
+            return mPreOpenQueue.send(priority, message, true);
+        }
+        return mPreOpenQueue.send(priority, payload, false);
+    }
+
+    /**
+     * Send a structured message, see {@link ObjectMessages} for supported values.
+     *
+     * @return false if the message is rejected because the send queue is full.
+     */
+    public boolean sendObject(Object value, int priority) {
+        return sendEncodedObject(ObjectMessages.encode(value), priority);
+    }
+
+    /**
+     * Send a structured message already encoded by {@link ObjectMessages#encode(Object)}, or
+     * by Dart's {@code StandardMessageCodec}.
+     *
+     * @return false if the message is rejected because the send queue is full.
+     */
+    public boolean sendEncodedObject(byte[] encoded, int priority) {
+        return sendProtocolMessage(ObjectMessages.toMessage(encoded), priority);
+    }
+
+    /**
+     * Send a binary message of a protocol layered on the data channel, {@code message} starts
+     * with its kind byte.
+     *
+     * @return false if the message is rejected because the send queue is full.
+     */
+    public boolean sendProtocolMessage(byte[] message, int priority) {
+        return mPreOpenQueue.send(priority, message, true);
+    }
+
+    /**
+     * Handle received binary messages of {@code kind} with {@code handler}, instead of
+     * delivering them to {@link Events#onMessage(byte[], boolean)}.
+     */
+    public void registerProtocolHandler(int kind, ProtocolHandler handler) {
+        mProtocolHandlers[kind] = handler;
+    }
+
+    public RpcEndpoint getRpcEndpoint() {
+        return mRpcEndpoint;
+    }
+
+    public TopicRouter getTopicRouter() {
+        return mTopicRouter;
+    }
+
+    public Heartbeat getHeartbeat() {
+        return mHeartbeat;
+    }
+
+    public IcePolicy getIcePolicy() {
+        return mIcePolicy;
+    }
+
+    /**
+     * @see PreOpenQueue
+     */
+    public void configurePreOpenQueue(long maxBytes, PreOpenQueue.OverflowPolicy policy,
+            long maxBlockMs) {
+        mPreOpenQueue.configure(maxBytes, policy, maxBlockMs);
+    }
+
+    /**
+     * Pace interactive and bulk messages by a token bucket, its rate adapts between
+     * {@code minRate} and {@code maxRate} bytes per second to the drain rate of the data channel
+     * and the RTT. It's disabled by default.
+     *
+     * @throws IllegalArgumentException if {@code minRate} isn't positive or {@code maxRate} is
+     * less than it.
+     * @see SendPacer
+     */
+    public void configurePacing(boolean enabled, long minRate, long maxRate) {
+        mSendPacer.configure(enabled, minRate, maxRate);
+    }
+
+    /**
+     * Offer only the data channel's media section, without audio or video sections and unused
+     * attributes, the answer mirrors it. It must be set before {@link #createPc}.
+     *
+     * @see SdpCodec#minimizeDataOnly(String)
+     */
+    public void setDataOnlySdp(boolean dataOnly) {
+        mDataOnlySdp = dataOnly;
+    }
+
+    /**
+     * @return bytes of the last local SDP as created, and as sent after minimizing, -1 if none.
+     */
+    public Map<String, Object> getSdpSizes() {
+        Map<String, Object> sizes = new HashMap<>();
+        sizes.put("localSdpBytes", mLocalSdpBytes);
+        sizes.put("minimizedSdpBytes", mMinimizedSdpBytes);
+        return sizes;
+    }
+
+    /**
+     * @see OutboundScheduler#getMetrics()
+     * @see PreOpenQueue#getMetrics()
+     */
+    public Map<String, Object> getSendMetrics() {
+        Map<String, Object> metrics = mOutboundScheduler.getMetrics();
+        metrics.put("preOpen", mPreOpenQueue.getMetrics());
+        return metrics;
+    }
+
+    /**
+     * Capture the RTC event log into rotating, compressed segments under {@code dir}.
+     *
+     * @see RtcEventLog
+     */
+    public void startRtcEventLog(File dir, int segmentMaxBytes, long totalBudgetBytes) {
+        execute(() -> {
+            mRtcEventLogDir = dir;
+            mRtcEventLogSegmentMaxBytes = segmentMaxBytes;
+            mRtcEventLogTotalBudgetBytes = totalBudgetBytes;
+            startRtcEventLogInternal();
+        });
+    }
+
+    public void stopRtcEventLog() {
+        execute(() -> {
+            mRtcEventLogDir = null;
+            if (mRtcEventLog != null) {
+                mRtcEventLog.dispose();
+                mRtcEventLog = null;
+            }
+        });
+    }
+
+    /**
+     * Report compressed RTC event log segments under {@code dir}, including the active one.
+     */
+    public void collectRtcEventLogs(File dir, RtcEventLog.CollectCallback callback) {
+        execute(() -> {
+            if (mRtcEventLog != null) {
+                mRtcEventLog.collect(callback);
+            } else {
+                callback.onCollected(RtcEventLog.listCompressedSegments(dir));
+            }
+        });
+    }
+
+    /**
+     * @return milliseconds from creating the peer connection to ICE connected and to the data
+     * channel being OPEN, -1 if not reached yet, and whether the channel is negotiated.
+     */
+    public Map<String, Object> getConnectionTimeline() {
+        long createPcTimeNs = mCreatePcTimeNs;
+        long iceConnectedTimeNs = mIceConnectedTimeNs;
+        long dataChannelOpenTimeNs = mDataChannelOpenTimeNs;
+        DataChannelParameters dataChannelParameters = mDataChannelParameters;
+        Map<String, Object> timeline = new HashMap<>();
+        timeline.put("negotiated", dataChannelParameters != null
+                                   && dataChannelParameters.negotiated);
+        timeline.put("iceConnectedMs", iceConnectedTimeNs == 0
+                                       ? -1 : (iceConnectedTimeNs - createPcTimeNs) / 1000000);
+        timeline.put("dataChannelOpenMs", dataChannelOpenTimeNs == 0
+                                          ? -1
+                                          : (dataChannelOpenTimeNs - createPcTimeNs) / 1000000);
+        return timeline;
     }
 
     public void close() {
-        mExecutor.execute(this::closeInternal);
+        mHeartbeat.stop();
+        mRpcEndpoint.close();
+        mPreOpenQueue.shutdown();
+        execute(() -> {
+            // the scheduler drains on this executor, no send reaches the disposed data channel
+            mOutboundScheduler.shutdown();
+            closeInternal();
+            mExecutor.shutdown();
+        });
+    }
+
+    /**
+     * Run {@code task} on the executor, it's dropped once the connection is closed.
+     */
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Logging.w(TAG, "Drop task of a closed connection");
+        }
     }
 
     private void closeInternal() {
+        if (mStatsFuture != null) {
+            mStatsFuture.cancel(false);
+            mStatsFuture = null;
+        }
+        if (mRtcEventLog != null) {
+            mRtcEventLog.dispose();
+            mRtcEventLog = null;
+        }
         if (mDataChannel != null) {
+            mDataChannel.unregisterObserver();
             mDataChannel.dispose();
             mDataChannel = null;
         }
@@ -127,42 +449,98 @@ public class DataChannelPeerConnectionClient
                 .createPeerConnectionFactory();
     }
 
-    private void createPcInternal(AppRTCClient.SignalingParameters params) {
+    private void createPcInternal(AppRTCClient.SignalingParameters params,
+            DataChannelParameters dataChannelParameters) {
+        mCreatePcTimeNs = System.nanoTime();
+        mDataChannelParameters = dataChannelParameters;
         mQueuedRemoteCandidates = new LinkedList<>();
 
+        // ICE servers, candidate types, TCP candidates and gathering are up to the policy
         PeerConnection.RTCConfiguration rtcConfig =
-                new PeerConnection.RTCConfiguration(params.iceServers);
-        // TCP candidates are only useful when connecting to a server that supports
-        // ICE-TCP.
-        rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+                mIcePolicy.createConfiguration(params.iceServers);
         rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
         rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-        rtcConfig.continualGatheringPolicy
-                = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
         // Use ECDSA encryption.
         rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
 
         mPeerConnection = mPeerConnectionFactory.createPeerConnection(rtcConfig, this);
 
+        // a negotiated channel is created by both peers with the agreed id, it's usable as
+        // soon as the SCTP association is up, without the DCEP OPEN/ACK round trip
         DataChannel.Init init = new DataChannel.Init();
         init.ordered = true;
-        init.negotiated = false;
+        init.negotiated = dataChannelParameters.negotiated;
         init.maxRetransmits = -1;
         init.maxRetransmitTimeMs = -1;
-        init.id = 0;
+        init.id = dataChannelParameters.id;
         mDataChannel = mPeerConnection.createDataChannel("P2P MSG DC", init);
-        mDataChannel.registerObserver(this);
+        if (mDataChannel == null) {
+            // e.g. the id is out of range or taken
+            reportError("Failed to create data channel.");
+        } else {
+            mDataChannel.registerObserver(this);
+        }
+
+        startRtcEventLogInternal();
+        mStatsFuture = mExecutor.scheduleAtFixedRate(this::pollStats, STATS_INTERVAL_MS,
+                STATS_INTERVAL_MS, TimeUnit.MILLISECONDS);
 
         mSdpConstraints = new MediaConstraints();
         mSdpConstraints.mandatory.add(
                 new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "false"));
+        if (mDataOnlySdp) {
+            mSdpConstraints.mandatory.add(
+                    new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "false"));
+        }
     }
 
-    private void sendMessageInternal(String message) {
-        if (mDataChannel != null) {
-            byte[] msg = message.getBytes();
-            DataChannel.Buffer buffer = new DataChannel.Buffer(ByteBuffer.wrap(msg), false);
-            mDataChannel.send(buffer);
+    private void startRtcEventLogInternal() {
+        if (mRtcEventLogDir == null || mPeerConnection == null || mRtcEventLog != null) {
+            return;
+        }
+        mRtcEventLog = new RtcEventLog(mPeerConnection, mExecutor, mRtcEventLogDir,
+                mRtcEventLogSegmentMaxBytes, mRtcEventLogTotalBudgetBytes);
+        mRtcEventLog.start();
+    }
+
+    /**
+     * Feed the RTT of the active candidate pair to the pacer.
+     */
+    private void pollStats() {
+        if (mPeerConnection == null) {
+            return;
+        }
+        mPeerConnection.getStats(reports -> {
+            for (StatsReport report : reports) {
+                if (!"googCandidatePair".equals(report.type)) {
+                    continue;
+                }
+                String active = null;
+                String rtt = null;
+                for (StatsReport.Value value : report.values) {
+                    if ("googActiveConnection".equals(value.name)) {
+                        active = value.value;
+                    } else if ("googRtt".equals(value.name)) {
+                        rtt = value.value;
+                    }
+                }
+                if ("true".equals(active) && rtt != null) {
+                    try {
+                        mSendPacer.setRttUs(Long.parseLong(rtt) * 1000);
+                    } catch (NumberFormatException e) {
+                        Logging.e(TAG, "Bad googRtt " + rtt);
+                    }
+                    return;
+                }
+            }
+        }, null);
+    }
+
+    private void sendInternal(byte[] payload, boolean binary) {
+        DataChannel dataChannel = mDataChannel;
+        if (dataChannel != null) {
+            FlightRecorder.record(FlightRecorder.EVENT_DC_SEND, payload.length, binary ? 1 : 0);
+            dataChannel.send(new DataChannel.Buffer(ByteBuffer.wrap(payload), binary));
         }
     }
 
@@ -184,15 +562,23 @@ public class DataChannelPeerConnectionClient
     @Override
     public void onIceConnectionChange(PeerConnection.IceConnectionState newState) {
         Logging.d(TAG, "onIceConnectionChange " + newState);
-        mExecutor.execute(() -> {
-            if (newState == PeerConnection.IceConnectionState.CONNECTED) {
-                mEvents.onIceConnected();
-            } else if (newState == PeerConnection.IceConnectionState.DISCONNECTED) {
-                mEvents.onIceDisconnected();
-            } else if (newState == PeerConnection.IceConnectionState.FAILED) {
-                reportError("ICE connection failed.");
-            }
-        });
+        FlightRecorder.record(FlightRecorder.EVENT_ICE_STATE, newState.ordinal(), 0);
+        if (newState == PeerConnection.IceConnectionState.CONNECTED && mIceConnectedTimeNs == 0) {
+            mIceConnectedTimeNs = System.nanoTime();
+        }
+        // the events hand off to the main looper themselves, this runs on the signaling thread,
+        // so the connection may be closed already
+        Events events = mEvents;
+        if (events == null) {
+            return;
+        }
+        if (newState == PeerConnection.IceConnectionState.CONNECTED) {
+            events.onIceConnected();
+        } else if (newState == PeerConnection.IceConnectionState.DISCONNECTED) {
+            events.onIceDisconnected();
+        } else if (newState == PeerConnection.IceConnectionState.FAILED) {
+            reportError("ICE connection failed.");
+        }
     }
 
     @Override
@@ -207,14 +593,26 @@ public class DataChannelPeerConnectionClient
 
     @Override
     public void onIceCandidate(IceCandidate candidate) {
-        Logging.d(TAG, "onIceCandidate " + candidate);
-        mEvents.onIceCandidate(candidate);
+        FlightRecorder.record(FlightRecorder.EVENT_ICE_CANDIDATE_LOCAL, candidate.sdpMLineIndex,
+                candidate.sdp.length());
+        if (!mIcePolicy.acceptLocal(candidate, System.nanoTime() - mCreatePcTimeNs)) {
+            FlightRecorder.record(FlightRecorder.EVENT_ICE_CANDIDATE_FILTERED, 0,
+                    IcePolicy.typeIndexOf(candidate));
+            return;
+        }
+        Events events = mEvents;
+        if (events != null) {
+            events.onIceCandidate(candidate);
+        }
     }
 
     @Override
     public void onIceCandidatesRemoved(IceCandidate[] candidates) {
         Logging.d(TAG, "onIceCandidatesRemoved " + Arrays.toString(candidates));
-        mEvents.onIceCandidatesRemoved(candidates);
+        Events events = mEvents;
+        if (events != null) {
+            events.onIceCandidatesRemoved(candidates);
+        }
     }
 
     @Override
@@ -244,29 +642,84 @@ public class DataChannelPeerConnectionClient
 
     @Override
     public void onBufferedAmountChange(long previousAmount) {
-        Logging.d(TAG, "onDataChannelBufferedAmountChange");
+        // fires for every send, the pacer polls bufferedAmount instead
     }
 
     @Override
     public void onStateChange() {
-        Logging.d(TAG, "onDataChannelStateChange");
+        DataChannel dataChannel = mDataChannel;
+        if (dataChannel != null) {
+            DataChannel.State state = dataChannel.state();
+            Logging.d(TAG, "onDataChannelStateChange " + state);
+            FlightRecorder.record(FlightRecorder.EVENT_DC_STATE, state.ordinal(), 0);
+            if (state == DataChannel.State.OPEN) {
+                onOpen();
+            } else if (state == DataChannel.State.CLOSED) {
+                mHeartbeat.stop();
+                mPreOpenQueue.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Start sending, package private so tests could open the connection without a data channel.
+     */
+    void onOpen() {
+        if (mDataChannelOpenTimeNs == 0) {
+            mDataChannelOpenTimeNs = System.nanoTime();
+        }
+        mPreOpenQueue.open();
+        mHeartbeat.start();
     }
 
     @Override
     public void onMessage(DataChannel.Buffer buffer) {
+        // this runs on the WebRTC thread, the connection may be closed concurrently
+        Events events = mEvents;
+        if (events == null) {
+            return;
+        }
         ByteBuffer data = buffer.data;
-        final byte[] bytes = new byte[data.capacity()];
+        FlightRecorder.record(FlightRecorder.EVENT_DC_RECV, data.remaining(),
+                buffer.binary ? 1 : 0);
+        if (buffer.binary) {
+            if (!data.hasRemaining()) {
+                Logging.e(TAG, "Drop binary message without kind");
+                return;
+            }
+            int kind = data.get() & 0xFF;
+            if (kind != MessageKinds.USER) {
+                ProtocolHandler handler = kind < MessageKinds.COUNT
+                                          ? mProtocolHandlers[kind] : null;
+                if (handler != null) {
+                    // data is only valid during this call, handlers copy what they keep
+                    handler.onMessage(kind, data);
+                } else {
+                    Logging.e(TAG, "Drop message of unknown kind " + kind);
+                }
+                return;
+            }
+        }
+        final byte[] bytes = new byte[data.remaining()];
         data.get(bytes);
-        String msg = new String(bytes);
-        mEvents.onMessage(msg);
+        events.onMessage(bytes, buffer.binary);
     }
 
     @Override
     public void onCreateSuccess(SessionDescription sdp) {
-        Logging.d(TAG, "onCreateSuccess " + sdp);
-        mExecutor.execute(() -> {
-            mLocalSdp = sdp;
-            mPeerConnection.setLocalDescription(DataChannelPeerConnectionClient.this, sdp);
+        FlightRecorder.record(FlightRecorder.EVENT_SDP_LOCAL, sdp.type.ordinal(),
+                sdp.description.length());
+        execute(() -> {
+            SessionDescription localSdp = sdp;
+            mLocalSdpBytes = sdp.description.length();
+            // an answer mirrors the sections of the offer, it must keep all of them
+            if (mDataOnlySdp && sdp.type == SessionDescription.Type.OFFER) {
+                localSdp = new SessionDescription(sdp.type,
+                        SdpCodec.minimizeDataOnly(sdp.description));
+            }
+            mMinimizedSdpBytes = localSdp.description.length();
+            mLocalSdp = localSdp;
+            mPeerConnection.setLocalDescription(DataChannelPeerConnectionClient.this, localSdp);
         });
     }
 
@@ -274,7 +727,10 @@ public class DataChannelPeerConnectionClient
     public void onSetSuccess() {
         Logging.d(TAG, "onSetSuccess");
 
-        mExecutor.execute(() -> {
+        execute(() -> {
+            if (mEvents == null) {
+                return;
+            }
             if (mIsInitiator) {
                 if (mPeerConnection.getRemoteDescription() == null) {
                     mEvents.onLocalDescription(mLocalSdp);
@@ -302,14 +758,47 @@ public class DataChannelPeerConnectionClient
 
     private void reportError(final String errorMessage) {
         Logging.e(TAG, "PeerConnection error: " + errorMessage);
-        mExecutor.execute(() -> {
-            if (!mErrorHappened) {
+        execute(() -> {
+            if (!mErrorHappened && mEvents != null) {
                 mEvents.onPeerConnectionError(errorMessage);
                 mErrorHappened = true;
             }
         });
     }
 
+    /**
+     * Options of the data channel, both peers must agree on them.
+     */
+    public static class DataChannelParameters {
+        /**
+         * Stream ids go up to 65534, 65535 is reserved by SCTP.
+         */
+        public static final int MAX_ID = 65534;
+
+        /**
+         * Whether the channel is created by both peers with {@link #id}, instead of being
+         * announced in-band.
+         */
+        public final boolean negotiated;
+        public final int id;
+
+        public DataChannelParameters(boolean negotiated, int id) {
+            this.negotiated = negotiated;
+            this.id = id;
+        }
+    }
+
+    public interface ProtocolHandler {
+        /**
+         * Called on the data channel thread, {@code message} is positioned after the kind byte.
+         */
+        void onMessage(int kind, ByteBuffer message);
+    }
+
+    /**
+     * Callbacks run on WebRTC or client threads, straight from the native callback where
+     * possible, an implementation hands off to the thread it needs once.
+     */
     public interface Events {
         /**
          * Callback fired once local SDP is created and set.
@@ -353,6 +842,31 @@ public class DataChannelPeerConnectionClient
          */
         void onPeerConnectionError(final String description);
 
-        void onMessage(String message);
+        /**
+         * Callback fired once a message is received, {@code message} is UTF-8 text unless
+         * {@code binary} is true.
+         */
+        void onMessage(byte[] message, boolean binary);
+
+        /**
+         * Callback fired once a message of a subscribed topic is received.
+         *
+         * @see TopicRouter
+         */
+        void onTopicMessage(byte[] topicMessage);
+
+        /**
+         * Callback fired once a structured message is received, decode it with
+         * {@link ObjectMessages#decode(byte[])}.
+         */
+        void onObjectMessage(byte[] encoded);
+
+        /**
+         * Callback fired once the peer misses too many heartbeats in a row, and once it
+         * answers again.
+         *
+         * @see Heartbeat
+         */
+        void onPeerUnresponsive(boolean unresponsive);
     }
 }
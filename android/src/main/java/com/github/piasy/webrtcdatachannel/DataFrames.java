@@ -0,0 +1,71 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame format of the binary data path between Dart and native, a message on the data channel
+ * holds one or more frames back to back, each frame is a fixed header followed by the payload:
+ *
+ * <pre>
+ * | session: u16 | lane: u8 | flags: u8 | length: u32 | payload: length bytes |
+ * </pre>
+ *
+ * All fields are big endian.
+ */
+public final class DataFrames {
+    public static final int HEADER_SIZE = 8;
+
+    public static final int FLAG_BINARY = 1;
+    /**
+     * The payload is a {@link TopicRouter} topic message.
+     */
+    public static final int FLAG_TOPIC = 2;
+    /**
+     * The payload is an {@link ObjectMessages} encoded value.
+     */
+    public static final int FLAG_OBJECT = 4;
+
+    private DataFrames() {
+    }
+
+    public static int frameSize(int payloadLength) {
+        return HEADER_SIZE + payloadLength;
+    }
+
+    public static void write(ByteBuffer out, int session, int lane, int flags, byte[] payload) {
+        out.putShort((short) session);
+        out.put((byte) lane);
+        out.put((byte) flags);
+        out.putInt(payload.length);
+        out.put(payload);
+    }
+
+    /**
+     * Read all frames from {@code in}, payloads are copied out since {@code in} is only valid
+     * during the platform message callback.
+     *
+     * @throws IllegalArgumentException if a frame is truncated.
+     */
+    public static void read(ByteBuffer in, Visitor visitor) {
+        while (in.remaining() >= HEADER_SIZE) {
+            int session = in.getShort() & 0xFFFF;
+            int lane = in.get() & 0xFF;
+            int flags = in.get() & 0xFF;
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new IllegalArgumentException("Truncated data frame, length " + length
+                                                   + ", remaining " + in.remaining());
+            }
+            byte[] payload = new byte[length];
+            in.get(payload);
+            visitor.onFrame(session, lane, flags, payload);
+        }
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException("Truncated data frame header");
+        }
+    }
+
+    public interface Visitor {
+        void onFrame(int session, int lane, int flags, byte[] payload);
+    }
+}
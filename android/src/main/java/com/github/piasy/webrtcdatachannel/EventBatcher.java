@@ -0,0 +1,153 @@
+package com.github.piasy.webrtcdatachannel;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates events posted from any thread and delivers them to a {@link Sink} on the main
+ * looper as a single batch, in post order.
+ *
+ * <p>A batch is a flat list of {@code [type0, value0, type1, value1, ...]}, so no per event
+ * container is allocated. It's flushed on the next UI frame (or after {@code maxDelayMs} if
+ * it's positive, or as soon as the main looper gets to it if it's {@link #DELAY_NONE}), or as
+ * soon as {@code maxBatchSize} events are pending, whichever comes first.
+ *
+ * <p>Producers hand off to the main looper at most once per batch, not once per event.
+ */
+public class EventBatcher {
+    /**
+     * Flush without waiting for a frame, events posted while the flush is queued join the batch.
+     */
+    public static final long DELAY_NONE = -1;
+
+    private final Handler mMainHandler;
+    private final Choreographer mChoreographer;
+    private final Sink mSink;
+    private final int mMaxBatchSize;
+    private final long mMaxDelayMs;
+
+    private final Object mLock = new Object();
+    private final Runnable mFlushRunnable = this::flush;
+    private final Choreographer.FrameCallback mFrameCallback = frameTimeNanos -> flush();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+
+    private ArrayList<Object> mPending;
+    private boolean mFlushScheduled;
+    private boolean mImmediateFlushScheduled;
+    // enqueue time of the oldest pending event
+    private long mFirstPendingNs;
+    private long mBatchCount;
+    private long mEventCount;
+
+    /**
+     * Must be created on the main thread.
+     */
+    public EventBatcher(int maxBatchSize, long maxDelayMs, Sink sink) {
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mChoreographer = Choreographer.getInstance();
+        mSink = sink;
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+        mMaxDelayMs = maxDelayMs;
+        mPending = new ArrayList<>(mMaxBatchSize * 2);
+    }
+
+    /**
+     * Queue an event, it could be called on any thread.
+     */
+    public void post(int type, Object value) {
+        boolean flushNow = false;
+        boolean scheduleFlush = false;
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                mFirstPendingNs = System.nanoTime();
+            }
+            mPending.add(type);
+            mPending.add(value);
+            if (mImmediateFlushScheduled) {
+                // joins the queued flush
+            } else if (mPending.size() >= mMaxBatchSize * 2 || mMaxDelayMs < 0) {
+                mImmediateFlushScheduled = true;
+                flushNow = true;
+            } else if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                scheduleFlush = true;
+            }
+        }
+
+        if (flushNow) {
+            mMainHandler.post(mFlushRunnable);
+        } else if (scheduleFlush) {
+            if (mMaxDelayMs > 0) {
+                mMainHandler.postDelayed(mFlushRunnable, mMaxDelayMs);
+            } else {
+                mChoreographer.postFrameCallback(mFrameCallback);
+            }
+        }
+    }
+
+    /**
+     * Deliver all pending events right now, must be called on the main thread.
+     */
+    public void flush() {
+        List<Object> batch;
+        long firstPendingNs;
+        synchronized (mLock) {
+            // under the lock, so a flush scheduled by a later post isn't removed
+            mMainHandler.removeCallbacks(mFlushRunnable);
+            mChoreographer.removeFrameCallback(mFrameCallback);
+            mFlushScheduled = false;
+            mImmediateFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batch = mPending;
+            mPending = new ArrayList<>(Math.max(mMaxBatchSize * 2, batch.size()));
+            mBatchCount++;
+            mEventCount += batch.size() / 2;
+            firstPendingNs = mFirstPendingNs;
+        }
+        mLatency.record((System.nanoTime() - firstPendingNs) / 1000);
+
+        mSink.onBatch(batch);
+    }
+
+    /**
+     * @return batches and events delivered, events pending, and the queueing latency histogram
+     * of the oldest event of each batch in microseconds.
+     * @see LatencyHistogram#toMap()
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = mLatency.toMap();
+        synchronized (mLock) {
+            metrics.put("batches", mBatchCount);
+            metrics.put("events", mEventCount);
+            metrics.put("pending", mPending.size() / 2);
+        }
+        return metrics;
+    }
+
+    /**
+     * Drop all pending events, must be called on the main thread.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mPending.clear();
+            mFlushScheduled = false;
+            mImmediateFlushScheduled = false;
+        }
+        mMainHandler.removeCallbacks(mFlushRunnable);
+        mChoreographer.removeFrameCallback(mFrameCallback);
+    }
+
+    public interface Sink {
+        /**
+         * Called on the main thread with {@code [type, value]} pairs in the order they are
+         * posted.
+         */
+        void onBatch(List<Object> events);
+    }
+}
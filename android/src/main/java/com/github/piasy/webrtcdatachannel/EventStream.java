@@ -0,0 +1,45 @@
+package com.github.piasy.webrtcdatachannel;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * One kind of event, on its own {@link EventChannel}. Events are dropped before being encoded
+ * while there is no listener on Dart side.
+ */
+public class EventStream implements EventChannel.StreamHandler {
+    private volatile EventChannel.EventSink mSink;
+
+    public EventStream(BinaryMessenger messenger, String name) {
+        new EventChannel(messenger, name).setStreamHandler(this);
+    }
+
+    @Override
+    public void onListen(final Object arguments, final EventChannel.EventSink events) {
+        mSink = events;
+    }
+
+    @Override
+    public void onCancel(final Object arguments) {
+        mSink = null;
+    }
+
+    public boolean hasListener() {
+        return mSink != null;
+    }
+
+    public void success(Object event) {
+        EventChannel.EventSink sink = mSink;
+        if (sink != null) {
+            sink.success(event);
+        }
+    }
+
+    public void error(String message) {
+        EventChannel.EventSink sink = mSink;
+        if (sink != null) {
+            sink.error("", message, null);
+            sink.endOfStream();
+        }
+    }
+}
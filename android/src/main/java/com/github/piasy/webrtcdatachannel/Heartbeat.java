@@ -0,0 +1,201 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ping/pong over the data channel, answered natively, for the RTT of the data path and early
+ * detection of a dead peer.
+ *
+ * <p>A ping carries its sequence number and send time, the pong echoes them, so the RTT is
+ * measured on one clock and nothing is kept per ping. A tick whose previous ping isn't answered
+ * counts as a miss, after {@code missThreshold} misses in a row the peer is reported
+ * unresponsive, and responsive again on the next pong.
+ *
+ * <p>Wire format, after the kind byte: {@code | sequence: u32 | send time ns: u64 |}.
+ */
+public class Heartbeat {
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+    public static final int DEFAULT_MISS_THRESHOLD = 3;
+
+    private static final int PING_BYTES = 1 + 4 + 8;
+
+    private final ScheduledExecutorService mTimer;
+    private final Sender mSender;
+    private final Listener mListener;
+    private final LatencyHistogram mRtt = new LatencyHistogram();
+
+    // guarded by this
+    private boolean mEnabled;
+    private long mIntervalMs = DEFAULT_INTERVAL_MS;
+    private int mMissThreshold = DEFAULT_MISS_THRESHOLD;
+    private boolean mRunning;
+    private ScheduledFuture<?> mTickFuture;
+    private int mSequence;
+    private boolean mAnswered = true;
+    private int mMisses;
+    private boolean mUnresponsive;
+    private long mSentCount;
+    private long mMissedCount;
+
+    Heartbeat(ScheduledExecutorService timer, Sender sender, Listener listener) {
+        mTimer = timer;
+        mSender = sender;
+        mListener = listener;
+    }
+
+    /**
+     * Takes effect immediately if the data channel is open.
+     *
+     * @throws IllegalArgumentException if {@code intervalMs} isn't positive.
+     */
+    public synchronized void configure(boolean enabled, long intervalMs, int missThreshold) {
+        checkInterval(intervalMs);
+        mEnabled = enabled;
+        mIntervalMs = intervalMs;
+        mMissThreshold = Math.max(1, missThreshold);
+        if (mRunning) {
+            schedule();
+        }
+    }
+
+    static void checkInterval(long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("Heartbeat interval must be positive: "
+                    + intervalMs);
+        }
+    }
+
+    /**
+     * @return RTT count and percentiles in microseconds, pings sent and missed, and whether the
+     * peer is unresponsive.
+     * @see LatencyHistogram#toMap()
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = mRtt.toMap();
+        synchronized (this) {
+            metrics.put("sent", mSentCount);
+            metrics.put("missed", mMissedCount);
+            metrics.put("unresponsive", mUnresponsive);
+        }
+        return metrics;
+    }
+
+    /**
+     * Start pinging, called once the data channel is open.
+     */
+    synchronized void start() {
+        mRunning = true;
+        schedule();
+    }
+
+    synchronized void stop() {
+        mRunning = false;
+        cancelTick();
+    }
+
+    void onMessage(int kind, ByteBuffer message) {
+        if (message.remaining() < 4 + 8) {
+            return;
+        }
+        if (kind == MessageKinds.PING) {
+            byte[] pong = new byte[PING_BYTES];
+            pong[0] = MessageKinds.PONG;
+            message.get(pong, 1, 4 + 8);
+            mSender.send(pong, OutboundScheduler.PRIORITY_CONTROL);
+        } else if (kind == MessageKinds.PONG) {
+            int sequence = message.getInt();
+            long rttUs = (System.nanoTime() - message.getLong()) / 1000;
+            mRtt.record(rttUs);
+            boolean recovered;
+            synchronized (this) {
+                if (sequence == mSequence) {
+                    mAnswered = true;
+                }
+                mMisses = 0;
+                recovered = mUnresponsive;
+                mUnresponsive = false;
+            }
+            if (recovered) {
+                mListener.onPeerUnresponsive(false);
+            }
+        }
+    }
+
+    private void tick() {
+        boolean unresponsive = false;
+        ByteBuffer ping = ByteBuffer.allocate(PING_BYTES);
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            if (!mAnswered) {
+                mMisses++;
+                mMissedCount++;
+                if (mMisses >= mMissThreshold && !mUnresponsive) {
+                    mUnresponsive = true;
+                    unresponsive = true;
+                }
+            }
+            mSequence++;
+            mAnswered = false;
+            mSentCount++;
+            ping.put((byte) MessageKinds.PING);
+            ping.putInt(mSequence);
+            ping.putLong(System.nanoTime());
+        }
+        mSender.send(ping.array(), OutboundScheduler.PRIORITY_CONTROL);
+        if (unresponsive) {
+            mListener.onPeerUnresponsive(true);
+        }
+    }
+
+    /**
+     * Must hold this.
+     */
+    private void schedule() {
+        cancelTick();
+        if (!mEnabled) {
+            return;
+        }
+        mAnswered = true;
+        mMisses = 0;
+        try {
+            mTickFuture = mTimer.scheduleAtFixedRate(this::tick, 0, mIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // timer already shut down, the connection is closed
+        }
+    }
+
+    /**
+     * Must hold this.
+     */
+    private void cancelTick() {
+        if (mTickFuture != null) {
+            mTickFuture.cancel(false);
+            mTickFuture = null;
+        }
+    }
+
+    public interface Sender {
+        /**
+         * Send a binary message, which starts with its kind byte.
+         *
+         * @return false if it's rejected.
+         */
+        boolean send(byte[] message, int priority);
+    }
+
+    public interface Listener {
+        /**
+         * Called when the peer misses the threshold of pongs in a row, and when it answers
+         * again, on an arbitrary thread.
+         */
+        void onPeerUnresponsive(boolean unresponsive);
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+
+/**
+ * Which ICE candidates a connection gathers, signals and accepts.
+ *
+ * <p>{@link Mode#HOST_ONLY} is for peers on one LAN: no ICE servers are used, so nothing waits
+ * on STUN binding or TURN allocation, and only host candidates are exchanged.
+ * {@link Mode#RELAY_ONLY} only uses TURN relays, e.g. to hide the local addresses.
+ *
+ * <p>Besides the mode, candidates are filtered by type, in both directions, and local server
+ * reflexive and relay candidates gathered later than their timeout after the peer connection is
+ * created are dropped instead of signaled, so a slow server doesn't keep adding candidate pairs
+ * once the connection is up.
+ *
+ * <p>ICE servers and transports of the mode, TCP and continual gathering apply to the next peer
+ * connection, filters apply immediately.
+ */
+public class IcePolicy {
+    public static final String TYPE_HOST = "host";
+    public static final String TYPE_SRFLX = "srflx";
+    public static final String TYPE_PRFLX = "prflx";
+    public static final String TYPE_RELAY = "relay";
+
+    private static final String[] TYPES = { TYPE_HOST, TYPE_SRFLX, TYPE_PRFLX, TYPE_RELAY };
+
+    public enum Mode {
+        ALL, HOST_ONLY, RELAY_ONLY
+    }
+
+    // guarded by this
+    private Mode mMode = Mode.ALL;
+    private boolean mTcpCandidates;
+    private boolean mContinualGathering = true;
+    private Set<String> mCandidateTypes = Collections.emptySet();
+    private long mSrflxTimeoutMs;
+    private long mRelayTimeoutMs;
+    private final Map<String, long[]> mCounts = new HashMap<>();
+    private long mFirstCandidateNs = -1;
+
+    IcePolicy() {
+        for (String type : TYPES) {
+            // gathered, dropped, received, rejected
+            mCounts.put(type, new long[4]);
+        }
+    }
+
+    /**
+     * @param candidateTypes types of candidates to signal and accept, empty for all.
+     * @param srflxTimeoutMs drop local server reflexive candidates gathered later, 0 to never.
+     * @param relayTimeoutMs drop local relay candidates gathered later, 0 to never.
+     */
+    public synchronized void configure(Mode mode, boolean tcpCandidates,
+            boolean continualGathering, Set<String> candidateTypes, long srflxTimeoutMs,
+            long relayTimeoutMs) {
+        mMode = mode;
+        mTcpCandidates = tcpCandidates;
+        mContinualGathering = continualGathering;
+        mCandidateTypes = candidateTypes == null
+                          ? Collections.<String>emptySet()
+                          : new HashSet<>(candidateTypes);
+        mSrflxTimeoutMs = Math.max(0, srflxTimeoutMs);
+        mRelayTimeoutMs = Math.max(0, relayTimeoutMs);
+    }
+
+    /**
+     * @return per candidate type counts of local candidates gathered and dropped, and remote
+     * candidates received and rejected, keyed by type, and milliseconds from creating the peer
+     * connection to the first local candidate signaled, -1 if none yet.
+     */
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        for (String type : TYPES) {
+            long[] counts = mCounts.get(type);
+            Map<String, Object> metric = new HashMap<>();
+            metric.put("gathered", counts[0]);
+            metric.put("dropped", counts[1]);
+            metric.put("received", counts[2]);
+            metric.put("rejected", counts[3]);
+            metrics.put(type, metric);
+        }
+        metrics.put("mode", mMode.name());
+        metrics.put("firstCandidateMs",
+                mFirstCandidateNs < 0 ? -1 : mFirstCandidateNs / 1000000);
+        return metrics;
+    }
+
+    synchronized PeerConnection.RTCConfiguration createConfiguration(
+            List<PeerConnection.IceServer> iceServers) {
+        PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(
+                mMode == Mode.HOST_ONLY
+                ? Collections.<PeerConnection.IceServer>emptyList()
+                : iceServers);
+        rtcConfig.iceTransportsType = mMode == Mode.RELAY_ONLY
+                                      ? PeerConnection.IceTransportsType.RELAY
+                                      : PeerConnection.IceTransportsType.ALL;
+        // TCP candidates are only useful when connecting to a server that supports
+        // ICE-TCP.
+        rtcConfig.tcpCandidatePolicy = mTcpCandidates
+                                       ? PeerConnection.TcpCandidatePolicy.ENABLED
+                                       : PeerConnection.TcpCandidatePolicy.DISABLED;
+        rtcConfig.continualGatheringPolicy = mContinualGathering
+                                             ? PeerConnection.ContinualGatheringPolicy
+                                                     .GATHER_CONTINUALLY
+                                             : PeerConnection.ContinualGatheringPolicy
+                                                     .GATHER_ONCE;
+        return rtcConfig;
+    }
+
+    /**
+     * @param elapsedNs since the peer connection is created.
+     * @return whether to signal a local candidate.
+     */
+    synchronized boolean acceptLocal(IceCandidate candidate, long elapsedNs) {
+        String type = typeOf(candidate);
+        long[] counts = mCounts.get(type);
+        if (counts != null) {
+            counts[0]++;
+        }
+        long elapsedMs = elapsedNs / 1000000;
+        boolean accepted = isAllowed(type)
+                           && !(TYPE_SRFLX.equals(type) && mSrflxTimeoutMs > 0
+                                && elapsedMs > mSrflxTimeoutMs)
+                           && !(TYPE_RELAY.equals(type) && mRelayTimeoutMs > 0
+                                && elapsedMs > mRelayTimeoutMs);
+        if (!accepted) {
+            if (counts != null) {
+                counts[1]++;
+            }
+            return false;
+        }
+        if (mFirstCandidateNs < 0) {
+            mFirstCandidateNs = elapsedNs;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether to add a remote candidate.
+     */
+    synchronized boolean acceptRemote(IceCandidate candidate) {
+        String type = typeOf(candidate);
+        long[] counts = mCounts.get(type);
+        if (counts != null) {
+            counts[2]++;
+        }
+        if (!isAllowed(type)) {
+            if (counts != null) {
+                counts[3]++;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Must hold this.
+     */
+    private boolean isAllowed(String type) {
+        if (!mCandidateTypes.isEmpty() && !mCandidateTypes.contains(type)) {
+            return false;
+        }
+        switch (mMode) {
+            case HOST_ONLY:
+                // peer reflexive ones are learnt from checks between host candidates
+                return TYPE_HOST.equals(type) || TYPE_PRFLX.equals(type);
+            case RELAY_ONLY:
+                return TYPE_RELAY.equals(type);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return index of the candidate's type in {@code host, srflx, prflx, relay}, -1 if unknown.
+     */
+    static int typeIndexOf(IceCandidate candidate) {
+        return Arrays.asList(TYPES).indexOf(typeOf(candidate));
+    }
+
+    /**
+     * @return the {@code typ} of a candidate line, or an empty string if it has none.
+     */
+    static String typeOf(IceCandidate candidate) {
+        String[] fields = candidate.sdp.split(" ");
+        for (int i = 0; i < fields.length - 1; i++) {
+            if ("typ".equals(fields[i])) {
+                return fields[i + 1];
+            }
+        }
+        return "";
+    }
+}
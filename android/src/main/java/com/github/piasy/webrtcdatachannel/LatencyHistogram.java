@@ -0,0 +1,89 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Log-linear histogram of latencies in microseconds, each power of two range is split into 8
+ * linear buckets, so percentiles are within 12.5% of the recorded value.
+ *
+ * <p>Recording is allocation free, all methods are synchronized.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] mCounts = new long[64 * SUB_BUCKETS];
+    private long mCount;
+    private long mMaxUs;
+
+    public synchronized void record(long latencyUs) {
+        long value = Math.max(0, latencyUs);
+        mCounts[indexOf(value)]++;
+        mCount++;
+        mMaxUs = Math.max(mMaxUs, value);
+    }
+
+    public synchronized long count() {
+        return mCount;
+    }
+
+    /**
+     * @param percentile in (0, 100].
+     * @return upper bound of the bucket holding the percentile, 0 if empty.
+     */
+    public synchronized long percentileUs(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMaxUs);
+            }
+        }
+        return mMaxUs;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mMaxUs = 0;
+    }
+
+    /**
+     * @return count, p50, p90, p99 and max in microseconds.
+     */
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("count", mCount);
+        map.put("p50Us", percentileUs(50));
+        map.put("p90Us", percentileUs(90));
+        map.put("p99Us", percentileUs(99));
+        map.put("maxUs", mMaxUs);
+        return map;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
@@ -0,0 +1,153 @@
+package com.github.piasy.webrtcdatachannel;
+
+/**
+ * Open addressing hash map with primitive long keys, so lookups on hot paths don't box.
+ *
+ * <p>Linear probing with backward shift deletion, no tombstones. Not thread safe.
+ */
+class LongObjectMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mMask;
+    private int mSize;
+
+    LongObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param capacity rounded up to a power of two.
+     */
+    LongObjectMap(int capacity) {
+        int size = Integer.highestOneBit(Math.max(MIN_CAPACITY, capacity) - 1) << 1;
+        mKeys = new long[size];
+        mValues = new Object[size];
+        mMask = size - 1;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int index = indexOf(key);
+        return index < 0 ? null : (V) mValues[index];
+    }
+
+    /**
+     * @param value must not be null.
+     * @return the previous value, or null.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        int index = slot(key);
+        while (mValues[index] != null) {
+            if (mKeys[index] == key) {
+                V old = (V) mValues[index];
+                mValues[index] = value;
+                return old;
+            }
+            index = (index + 1) & mMask;
+        }
+        mKeys[index] = key;
+        mValues[index] = value;
+        mSize++;
+        // keep load factor under 1/2
+        if (mSize * 2 > mValues.length) {
+            resize(mValues.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        V old = (V) mValues[index];
+        mValues[index] = null;
+        mSize--;
+        // shift back entries of the probe run, so lookups don't stop at the hole
+        int hole = index;
+        int next = (index + 1) & mMask;
+        while (mValues[next] != null) {
+            int home = slot(mKeys[next]);
+            // move if the entry's home isn't in (hole, next], cyclically
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                mValues[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        return old;
+    }
+
+    /**
+     * Visit all entries, {@code visitor} must not modify the map.
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(Visitor<V> visitor) {
+        for (int i = 0; i < mValues.length; i++) {
+            if (mValues[i] != null) {
+                visitor.visit(mKeys[i], (V) mValues[i]);
+            }
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < mValues.length; i++) {
+            mValues[i] = null;
+        }
+        mSize = 0;
+    }
+
+    private int indexOf(long key) {
+        int index = slot(key);
+        while (mValues[index] != null) {
+            if (mKeys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private int slot(long key) {
+        // murmur3 finalizer, ids are often sequential
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mMask;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = mKeys;
+        Object[] oldValues = mValues;
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+        mSize = 0;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int index = slot(oldKeys[i]);
+                while (mValues[index] != null) {
+                    index = (index + 1) & mMask;
+                }
+                mKeys[index] = oldKeys[i];
+                mValues[index] = oldValues[i];
+                mSize++;
+            }
+        }
+    }
+
+    interface Visitor<V> {
+        void visit(long key, V value);
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.piasy.webrtcdatachannel;
+
+/**
+ * Kinds of binary data channel messages, the first byte of every binary message.
+ *
+ * <p>Text messages are always user messages and carry no kind byte, binary user messages are
+ * prefixed with {@link #USER}, other kinds belong to protocols layered on the data channel.
+ */
+public final class MessageKinds {
+    public static final int USER = 0;
+    public static final int RPC_REQUEST = 1;
+    public static final int RPC_RESPONSE = 2;
+    public static final int RPC_CANCEL = 3;
+    public static final int TOPIC_MESSAGE = 4;
+    public static final int TOPIC_SUBSCRIPTIONS = 5;
+    public static final int OBJECT = 6;
+    public static final int REPLICA_DELTA = 7;
+    public static final int REPLICA_SNAPSHOT = 8;
+    public static final int PING = 9;
+    public static final int PONG = 10;
+
+    /**
+     * Kinds are below this value.
+     */
+    public static final int COUNT = 16;
+
+    private MessageKinds() {
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer single-consumer ring of outbound messages.
+ *
+ * <p>Slots are preallocated, a producer claims one with a CAS on the tail and publishes it by
+ * bumping the slot sequence, so {@link #offer(byte[], boolean, long)} neither allocates nor
+ * locks. All other methods must be called on the single consumer thread, except
+ * {@link #size()}.
+ */
+class MpscRing {
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicLongArray mSequences;
+    private final byte[][] mPayloads;
+    private final boolean[] mBinaries;
+    private final long[] mEnqueueTimesNs;
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile long mHead;
+
+    /**
+     * @param capacity rounded up to a power of two.
+     */
+    MpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mCapacity = size;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mPayloads = new byte[size][];
+        mBinaries = new boolean[size];
+        mEnqueueTimesNs = new long[size];
+    }
+
+    /**
+     * @return false if the ring is full.
+     */
+    boolean offer(byte[] payload, boolean binary, long enqueueTimeNs) {
+        long tail;
+        int index;
+        while (true) {
+            tail = mTail.get();
+            index = (int) tail & mMask;
+            long diff = mSequences.get(index) - tail;
+            if (diff == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+        mPayloads[index] = payload;
+        mBinaries[index] = binary;
+        mEnqueueTimesNs[index] = enqueueTimeNs;
+        // a full fence rather than lazySet, so the consumer's park check can't miss it
+        mSequences.set(index, tail + 1);
+        return true;
+    }
+
+    boolean isEmpty() {
+        long head = mHead;
+        return mSequences.get((int) head & mMask) != head + 1;
+    }
+
+    /**
+     * Must only be called when not {@link #isEmpty()}.
+     */
+    byte[] peekPayload() {
+        return mPayloads[(int) mHead & mMask];
+    }
+
+    boolean peekBinary() {
+        return mBinaries[(int) mHead & mMask];
+    }
+
+    long peekEnqueueTimeNs() {
+        return mEnqueueTimesNs[(int) mHead & mMask];
+    }
+
+    /**
+     * Release the head slot, must only be called when not {@link #isEmpty()}.
+     */
+    void remove() {
+        long head = mHead;
+        int index = (int) head & mMask;
+        mPayloads[index] = null;
+        mSequences.lazySet(index, head + mCapacity);
+        mHead = head + 1;
+    }
+
+    void clear() {
+        while (!isEmpty()) {
+            remove();
+        }
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    int size() {
+        return (int) Math.max(0, mTail.get() - mHead);
+    }
+}
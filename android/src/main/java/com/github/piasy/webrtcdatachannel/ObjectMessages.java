@@ -0,0 +1,55 @@
+package com.github.piasy.webrtcdatachannel;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Structured messages: null, booleans, numbers, strings, typed arrays, lists and maps of them,
+ * encoded with {@link StandardMessageCodec}, the format Dart encodes and decodes them with too,
+ * so messages from Dart pass through native as is.
+ *
+ * <p>On the wire an object message is the {@link MessageKinds#OBJECT} kind byte followed by the
+ * encoded value. The codec aligns typed data relative to the start of the encoded value, so the
+ * kind byte is kept out of it.
+ */
+public final class ObjectMessages {
+    private ObjectMessages() {
+    }
+
+    /**
+     * @return the encoded value, without the kind byte.
+     */
+    public static byte[] encode(Object value) {
+        ByteBuffer buffer = StandardMessageCodec.INSTANCE.encodeMessage(value);
+        if (buffer == null) {
+            return new byte[0];
+        }
+        // the codec leaves the position at the end of the message
+        buffer.flip();
+        byte[] encoded = new byte[buffer.remaining()];
+        buffer.get(encoded);
+        return encoded;
+    }
+
+    /**
+     * @param encoded the encoded value, without the kind byte.
+     */
+    public static Object decode(byte[] encoded) {
+        if (encoded.length == 0) {
+            return null;
+        }
+        return StandardMessageCodec.INSTANCE.decodeMessage(
+                ByteBuffer.wrap(encoded).order(ByteOrder.nativeOrder()));
+    }
+
+    /**
+     * @return {@code encoded} prefixed with the kind byte, ready to send.
+     */
+    static byte[] toMessage(byte[] encoded) {
+        byte[] message = new byte[encoded.length + 1];
+        message[0] = MessageKinds.OBJECT;
+        System.arraycopy(encoded, 0, message, 1, encoded.length);
+        return message;
+    }
+}
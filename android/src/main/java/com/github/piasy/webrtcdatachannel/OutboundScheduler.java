@@ -0,0 +1,284 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sender side scheduler of outbound messages, with three priority classes dequeued by deficit
+ * round robin, weighted by bytes.
+ *
+ * <p>So control messages don't wait behind bulk transfers, and bulk transfers still get their
+ * share of the link.
+ *
+ * <p>Each class is a bounded {@link MpscRing}, producers on any thread pay no allocation and no
+ * lock. The rings are drained in batches on the session's executor, which runs on a shared
+ * loop, so there is no thread per session, a drain task is only posted when the rings go from
+ * empty to non empty, and a full batch yields the loop to other sessions before the next one.
+ *
+ * <p>With a {@link SendPacer}, interactive and bulk messages are held until it releases them,
+ * the drain is scheduled for that long later, control messages bypass it.
+ */
+public class OutboundScheduler {
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_INTERACTIVE = 1;
+    public static final int PRIORITY_BULK = 2;
+
+    public static final int DEFAULT_RING_CAPACITY = 4096;
+
+    private static final String[] PRIORITY_NAMES = { "control", "interactive", "bulk" };
+    private static final int[] WEIGHTS = { 16, 4, 1 };
+    private static final int QUANTUM_BYTES = 1024;
+    private static final int MAX_DRAIN_BATCH = 64;
+
+    private final ScheduledExecutorService mExecutor;
+    private final Sender mSender;
+    private final SendPacer mPacer;
+    private final MpscRing[] mRings;
+    private final Runnable mDrainTask = this::drain;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    // only accessed on the executor
+    private final long[] mDeficits = new long[WEIGHTS.length];
+    private long mPacingWaitNs;
+    private ScheduledFuture<?> mPacingDrain;
+
+    // written on the executor, read for metrics
+    private final long[] mSentCounts = new long[WEIGHTS.length];
+    private final long[] mTotalWaitNs = new long[WEIGHTS.length];
+    private final long[] mMaxWaitNs = new long[WEIGHTS.length];
+
+    private final AtomicLongArray mRejectedCounts = new AtomicLongArray(WEIGHTS.length);
+
+    // whether a delayed drain is waiting on the pacer, only control messages drain earlier
+    private volatile boolean mPacingHeld;
+    private volatile boolean mShutdown;
+
+    /**
+     * @param executor runs the sender, one task at a time, like a session's
+     * {@link org.appspot.apprtc.util.EventLoops.Loop#newExecutor()}.
+     */
+    public OutboundScheduler(ScheduledExecutorService executor, Sender sender) {
+        this(executor, sender, DEFAULT_RING_CAPACITY, null);
+    }
+
+    public OutboundScheduler(ScheduledExecutorService executor, Sender sender,
+            int ringCapacity) {
+        this(executor, sender, ringCapacity, null);
+    }
+
+    /**
+     * @param pacer null to send as fast as the rings are drained.
+     */
+    OutboundScheduler(ScheduledExecutorService executor, Sender sender, int ringCapacity,
+            SendPacer pacer) {
+        mExecutor = executor;
+        mSender = sender;
+        mPacer = pacer;
+        mRings = new MpscRing[WEIGHTS.length];
+        for (int i = 0; i < mRings.length; i++) {
+            mRings[i] = new MpscRing(ringCapacity);
+        }
+    }
+
+    /**
+     * @return how many messages each priority class holds.
+     */
+    int getRingCapacity() {
+        return mRings[0].capacity();
+    }
+
+    public static int clampPriority(int priority) {
+        return Math.max(PRIORITY_CONTROL, Math.min(PRIORITY_BULK, priority));
+    }
+
+    /**
+     * Queue a message, it could be called on any thread.
+     *
+     * @return false if the ring of this priority class is full, or it's shut down.
+     */
+    public boolean enqueue(int priority, byte[] payload, boolean binary) {
+        int clamped = clampPriority(priority);
+        if (mShutdown || !mRings[clamped].offer(payload, binary, System.nanoTime())) {
+            mRejectedCounts.incrementAndGet(clamped);
+            return false;
+        }
+        if (!mPacingHeld || clamped == PRIORITY_CONTROL) {
+            scheduleDrain();
+        }
+        return true;
+    }
+
+    /**
+     * Drop queued messages, must be called on the executor, the {@link Sender} is never called
+     * afterwards, since drains run there too.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        if (mPacingDrain != null) {
+            mPacingDrain.cancel(false);
+            mPacingDrain = null;
+        }
+        for (MpscRing ring : mRings) {
+            ring.clear();
+        }
+    }
+
+    /**
+     * @return per priority class metrics, keyed by class name, each with queue depth, sent and
+     * rejected count, average and max queueing time in microseconds, and pacing metrics keyed
+     * by {@code pacing}.
+     * @see SendPacer#getMetrics()
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        for (int i = 0; i < mRings.length; i++) {
+            long sent = mSentCounts[i];
+            Map<String, Object> metric = new HashMap<>();
+            metric.put("depth", mRings[i].size());
+            metric.put("sent", sent);
+            metric.put("rejected", mRejectedCounts.get(i));
+            metric.put("avgWaitUs", sent == 0 ? 0 : mTotalWaitNs[i] / sent / 1000);
+            metric.put("maxWaitUs", mMaxWaitNs[i] / 1000);
+            metrics.put(PRIORITY_NAMES[i], metric);
+        }
+        if (mPacer != null) {
+            metrics.put("pacing", mPacer.getMetrics());
+        }
+        return metrics;
+    }
+
+    private void scheduleDrain() {
+        if (!mDrainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mExecutor.execute(mDrainTask);
+        } catch (RejectedExecutionException e) {
+            // the session is closed, its rings are dropped with it
+        }
+    }
+
+    private void drain() {
+        // cleared first, a message enqueued from now on posts another drain
+        mDrainScheduled.set(false);
+        if (mPacingDrain != null) {
+            mPacingDrain.cancel(false);
+            mPacingDrain = null;
+        }
+        mPacingHeld = false;
+        if (mShutdown) {
+            return;
+        }
+        drainBatch();
+        if (mPacingWaitNs > 0) {
+            // held by the pacer, a new control message drains earlier
+            mPacingHeld = true;
+            try {
+                mPacingDrain = mExecutor.schedule(mDrainTask, mPacingWaitNs,
+                        TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // the session is closed
+            }
+        } else if (!allEmpty()) {
+            // a full batch, let other tasks of the loop run in between
+            scheduleDrain();
+        }
+    }
+
+    private void drainBatch() {
+        mPacingWaitNs = 0;
+        int sent = 0;
+        while (sent < MAX_DRAIN_BATCH && !mShutdown) {
+            int priority = nextPriority();
+            if (priority < 0) {
+                break;
+            }
+            if (mPacer != null && priority != PRIORITY_CONTROL) {
+                long pacingWaitNs = mPacer.acquire(mRings[priority].peekPayload().length, false,
+                        System.nanoTime());
+                if (pacingWaitNs > 0) {
+                    if (mRings[PRIORITY_CONTROL].isEmpty()) {
+                        mPacingWaitNs = pacingWaitNs;
+                        break;
+                    }
+                    // don't let control messages wait behind a held class
+                    priority = PRIORITY_CONTROL;
+                }
+            }
+            MpscRing ring = mRings[priority];
+            byte[] payload = ring.peekPayload();
+            if (mPacer != null && priority == PRIORITY_CONTROL) {
+                mPacer.acquire(payload.length, true, System.nanoTime());
+            }
+            boolean binary = ring.peekBinary();
+            long waitNs = System.nanoTime() - ring.peekEnqueueTimeNs();
+            ring.remove();
+
+            mDeficits[priority] -= payload.length;
+            mSentCounts[priority]++;
+            mTotalWaitNs[priority] += waitNs;
+            mMaxWaitNs[priority] = Math.max(mMaxWaitNs[priority], waitNs);
+
+            mSender.send(payload, binary);
+            sent++;
+        }
+    }
+
+    private boolean allEmpty() {
+        for (MpscRing ring : mRings) {
+            if (!ring.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deficit round robin.
+     *
+     * @return the priority class to send from next, or -1 if all rings are empty.
+     */
+    private int nextPriority() {
+        boolean hasItem = false;
+        for (int i = 0; i < mRings.length; i++) {
+            if (mRings[i].isEmpty()) {
+                // an idle class doesn't accumulate credit
+                mDeficits[i] = 0;
+                continue;
+            }
+            hasItem = true;
+            if (mDeficits[i] >= mRings[i].peekPayload().length) {
+                return i;
+            }
+        }
+        if (!hasItem) {
+            return -1;
+        }
+        // no class has enough credit for its head, start a new round
+        while (true) {
+            for (int i = 0; i < mRings.length; i++) {
+                if (!mRings[i].isEmpty()) {
+                    mDeficits[i] += (long) WEIGHTS[i] * QUANTUM_BYTES;
+                }
+            }
+            for (int i = 0; i < mRings.length; i++) {
+                if (!mRings[i].isEmpty() && mDeficits[i] >= mRings[i].peekPayload().length) {
+                    return i;
+                }
+            }
+        }
+    }
+
+    public interface Sender {
+        /**
+         * Called on the executor, in the scheduled order.
+         */
+        void send(byte[] payload, boolean binary);
+    }
+}
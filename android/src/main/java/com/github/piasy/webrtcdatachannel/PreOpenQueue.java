@@ -0,0 +1,250 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Holds outbound messages until the data channel is OPEN, then hands them to the
+ * {@link OutboundScheduler} in one pass, in send order.
+ *
+ * <p>Once open, {@link #send(int, byte[], boolean)} is a volatile read in front of the
+ * scheduler, only sends before that take the lock. The queue is bounded by payload bytes, and by
+ * the scheduler's ring capacity per priority class, so the flush never overflows a ring, what
+ * happens when it's full is decided by the {@link OverflowPolicy}.
+ */
+public class PreOpenQueue {
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    public static final long DEFAULT_MAX_BLOCK_MS = 1000;
+
+    public enum OverflowPolicy {
+        /**
+         * Reject the new message.
+         */
+        REJECT,
+        /**
+         * Drop the oldest queued messages to make room, of the same priority class if that
+         * class is full.
+         */
+        DROP_OLDEST,
+        /**
+         * Block the sending thread until there is room, the channel opens, or the max block
+         * time passes, then reject. Don't use it if messages are sent on the UI thread, the
+         * plugin doesn't offer it for that reason.
+         */
+        BLOCK,
+    }
+
+    private final OutboundScheduler mScheduler;
+    private final int mMaxEntriesPerClass;
+    private final Object mLock = new Object();
+
+    private volatile boolean mOpen;
+
+    // guarded by mLock
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+    private long mBytes;
+    private final int[] mCounts = new int[OutboundScheduler.PRIORITY_BULK + 1];
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private OverflowPolicy mPolicy = OverflowPolicy.REJECT;
+    private long mMaxBlockMs = DEFAULT_MAX_BLOCK_MS;
+    private boolean mShutdown;
+    private long mFlushedCount;
+    private long mDroppedCount;
+    private long mRejectedCount;
+    private long mTotalWaitNs;
+    private long mMaxWaitNs;
+
+    PreOpenQueue(OutboundScheduler scheduler) {
+        mScheduler = scheduler;
+        mMaxEntriesPerClass = scheduler.getRingCapacity();
+    }
+
+    void configure(long maxBytes, OverflowPolicy policy, long maxBlockMs) {
+        synchronized (mLock) {
+            mMaxBytes = maxBytes;
+            mPolicy = policy;
+            mMaxBlockMs = maxBlockMs;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return false if the message is rejected, by the overflow policy or the scheduler.
+     */
+    boolean send(int priority, byte[] payload, boolean binary) {
+        priority = OutboundScheduler.clampPriority(priority);
+        if (mOpen) {
+            return mScheduler.enqueue(priority, payload, binary);
+        }
+        synchronized (mLock) {
+            // re-check, open() flushes and sets mOpen under the lock, so order is kept
+            if (mOpen) {
+                return mScheduler.enqueue(priority, payload, binary);
+            }
+            if (mShutdown || !makeRoom(priority, payload.length)) {
+                mRejectedCount++;
+                return false;
+            }
+            if (mOpen) {
+                // opened while blocked
+                return mScheduler.enqueue(priority, payload, binary);
+            }
+            mEntries.add(new Entry(priority, payload, binary, System.nanoTime()));
+            mBytes += payload.length;
+            mCounts[priority]++;
+            return true;
+        }
+    }
+
+    /**
+     * Flush queued messages to the scheduler, later sends go to it directly.
+     */
+    void open() {
+        synchronized (mLock) {
+            if (mOpen || mShutdown) {
+                return;
+            }
+            long now = System.nanoTime();
+            Entry entry;
+            // the rings are empty until now and each class holds no more than a ring, so this
+            // only fails if the scheduler is shut down
+            while ((entry = mEntries.poll()) != null) {
+                if (mScheduler.enqueue(entry.priority, entry.payload, entry.binary)) {
+                    long waitNs = now - entry.enqueueTimeNs;
+                    mTotalWaitNs += waitNs;
+                    mMaxWaitNs = Math.max(mMaxWaitNs, waitNs);
+                    mFlushedCount++;
+                } else {
+                    mRejectedCount++;
+                }
+            }
+            clearCounts();
+            mOpen = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Drop queued messages, reject later sends and release blocked senders.
+     */
+    void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mOpen = false;
+            mDroppedCount += mEntries.size();
+            mEntries.clear();
+            clearCounts();
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return queue depth and bytes, flushed, dropped and rejected count, average and max wait
+     * of flushed messages in microseconds.
+     */
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        synchronized (mLock) {
+            metrics.put("depth", mEntries.size());
+            metrics.put("bytes", mBytes);
+            metrics.put("flushed", mFlushedCount);
+            metrics.put("dropped", mDroppedCount);
+            metrics.put("rejected", mRejectedCount);
+            metrics.put("avgWaitUs",
+                    mFlushedCount == 0 ? 0 : mTotalWaitNs / mFlushedCount / 1000);
+            metrics.put("maxWaitUs", mMaxWaitNs / 1000);
+        }
+        return metrics;
+    }
+
+    /**
+     * Must hold mLock.
+     *
+     * @return false if there is no room for {@code size} bytes in {@code priority} class.
+     */
+    private boolean makeRoom(int priority, int size) {
+        if (size > mMaxBytes) {
+            return false;
+        }
+        switch (mPolicy) {
+            case DROP_OLDEST:
+                if (mCounts[priority] >= mMaxEntriesPerClass) {
+                    dropOldest(priority);
+                }
+                while (mBytes + size > mMaxBytes) {
+                    Entry dropped = mEntries.poll();
+                    mBytes -= dropped.payload.length;
+                    mCounts[dropped.priority]--;
+                    mDroppedCount++;
+                }
+                return true;
+            case BLOCK:
+                long deadlineNs = System.nanoTime() + mMaxBlockMs * 1000000;
+                while (!hasRoom(priority, size) && !mOpen && !mShutdown) {
+                    long remainingMs = (deadlineNs - System.nanoTime()) / 1000000;
+                    if (remainingMs <= 0) {
+                        return false;
+                    }
+                    try {
+                        mLock.wait(remainingMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return !mShutdown;
+            case REJECT:
+            default:
+                return hasRoom(priority, size);
+        }
+    }
+
+    /**
+     * Must hold mLock.
+     */
+    private boolean hasRoom(int priority, int size) {
+        return mBytes + size <= mMaxBytes && mCounts[priority] < mMaxEntriesPerClass;
+    }
+
+    /**
+     * Must hold mLock.
+     */
+    private void dropOldest(int priority) {
+        Iterator<Entry> iterator = mEntries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.priority == priority) {
+                iterator.remove();
+                mBytes -= entry.payload.length;
+                mCounts[priority]--;
+                mDroppedCount++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Must hold mLock.
+     */
+    private void clearCounts() {
+        mBytes = 0;
+        Arrays.fill(mCounts, 0);
+    }
+
+    private static class Entry {
+        final int priority;
+        final byte[] payload;
+        final boolean binary;
+        final long enqueueTimeNs;
+
+        Entry(int priority, byte[] payload, boolean binary, long enqueueTimeNs) {
+            this.priority = priority;
+            this.payload = payload;
+            this.binary = binary;
+            this.enqueueTimeNs = enqueueTimeNs;
+        }
+    }
+}
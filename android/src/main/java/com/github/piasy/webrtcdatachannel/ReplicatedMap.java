@@ -0,0 +1,370 @@
+package com.github.piasy.webrtcdatachannel;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.webrtc.Logging;
+
+/**
+ * A string keyed map of opaque values mirrored between the peers, it outlives connections.
+ *
+ * <p>Each entry carries a Lamport version and the id of the node which wrote it, concurrent
+ * writes are resolved by last writer wins on {@code (version, node)}, so both peers converge
+ * whatever order updates arrive in. Removals are kept as tombstones, so they win over stale
+ * values of a reconnecting peer.
+ *
+ * <p>Local changes are coalesced per key and sent as a delta once per tick, so bandwidth
+ * follows the change rate. A newly attached connection gets a snapshot of all entries, it's
+ * held in the {@link PreOpenQueue} until the data channel opens, if it's rejected, it's sent
+ * again on every tick until it's accepted.
+ *
+ * <p>A message is {@code | count: u32 | entry* |} after the kind byte, an entry is
+ * {@code | key length: u16 | key: UTF-8 | version: u64 | node: u32 | value length: i32, -1 if
+ * removed | value |}, big endian.
+ */
+public class ReplicatedMap {
+    private static final String TAG = "ReplicatedMap";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final long DEFAULT_TICK_MS = 50;
+    public static final int MAX_KEY_BYTES = 0xFFFF;
+
+    /**
+     * Large snapshots and deltas are split into messages of about this size.
+     */
+    private static final int MAX_MESSAGE_BYTES = 16 * 1024;
+    private static final int ENTRY_HEADER_BYTES = 2 + 8 + 4 + 4;
+
+    private final Handler mHandler;
+    private final long mTickMs;
+    private final int mNodeId;
+    private final Listener mListener;
+    private final Runnable mFlushRunnable = this::flush;
+
+    private final Object mLock = new Object();
+
+    // guarded by mLock
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final List<String> mDirtyKeys = new ArrayList<>();
+    private long mClock;
+    private DataChannelPeerConnectionClient mClient;
+    private boolean mFlushScheduled;
+    private boolean mSnapshotPending;
+    private long mDeltaCount;
+    private long mDeltaEntryCount;
+    private long mDeltaBytes;
+    private long mSnapshotBytes;
+    private long mMergedCount;
+    private long mStaleCount;
+
+    /**
+     * @param listener gets changes made by the peer, on the data channel thread.
+     */
+    public ReplicatedMap(long tickMs, Listener listener) {
+        mHandler = new Handler(Looper.getMainLooper());
+        mTickMs = tickMs;
+        mNodeId = new Random().nextInt();
+        mListener = listener;
+    }
+
+    /**
+     * Replicate over {@code client} from now on, the peer gets a snapshot once the data channel
+     * opens.
+     */
+    public void attach(DataChannelPeerConnectionClient client) {
+        client.registerProtocolHandler(MessageKinds.REPLICA_DELTA, this::onMessage);
+        client.registerProtocolHandler(MessageKinds.REPLICA_SNAPSHOT, this::onMessage);
+        synchronized (mLock) {
+            mClient = client;
+            mSnapshotPending = true;
+            if (sendSnapshot()) {
+                return;
+            }
+            Logging.w(TAG, "Snapshot rejected, it's retried on every tick until accepted");
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlushRunnable, mTickMs);
+    }
+
+    public void detach() {
+        synchronized (mLock) {
+            mClient = null;
+            mSnapshotPending = false;
+        }
+    }
+
+    /**
+     * @param value null to remove.
+     * @throws IllegalArgumentException if the key is longer than {@link #MAX_KEY_BYTES}.
+     */
+    public void put(String key, byte[] value) {
+        if (key.getBytes(UTF_8).length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key longer than " + MAX_KEY_BYTES + " bytes");
+        }
+        synchronized (mLock) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(key, entry);
+            }
+            entry.version = ++mClock;
+            entry.node = mNodeId;
+            entry.value = value;
+            if (!entry.dirty) {
+                entry.dirty = true;
+                mDirtyKeys.add(key);
+            }
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlushRunnable, mTickMs);
+    }
+
+    public void remove(String key) {
+        put(key, null);
+    }
+
+    /**
+     * @return all present entries.
+     */
+    public Map<String, byte[]> snapshot() {
+        Map<String, byte[]> snapshot = new HashMap<>();
+        synchronized (mLock) {
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                if (entry.getValue().value != null) {
+                    snapshot.put(entry.getKey(), entry.getValue().value);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return key and tombstone count, delta messages, entries and bytes sent, snapshot bytes
+     * sent, remote entries merged, and remote entries ignored as older than the local ones.
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        synchronized (mLock) {
+            int tombstones = 0;
+            for (Entry entry : mEntries.values()) {
+                if (entry.value == null) {
+                    tombstones++;
+                }
+            }
+            metrics.put("keys", mEntries.size() - tombstones);
+            metrics.put("tombstones", tombstones);
+            metrics.put("deltas", mDeltaCount);
+            metrics.put("deltaEntries", mDeltaEntryCount);
+            metrics.put("deltaBytes", mDeltaBytes);
+            metrics.put("snapshotBytes", mSnapshotBytes);
+            metrics.put("merged", mMergedCount);
+            metrics.put("stale", mStaleCount);
+        }
+        return metrics;
+    }
+
+    /**
+     * Package private for tests, the handler calls it on every tick with pending changes.
+     */
+    void flush() {
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            if (mSnapshotPending && mClient != null) {
+                if (!sendSnapshot()) {
+                    mFlushScheduled = true;
+                    mHandler.postDelayed(mFlushRunnable, mTickMs);
+                }
+                return;
+            }
+            if (mDirtyKeys.isEmpty()) {
+                return;
+            }
+            List<String> keys = new ArrayList<>(mDirtyKeys);
+            for (String key : keys) {
+                mEntries.get(key).dirty = false;
+            }
+            mDirtyKeys.clear();
+            if (mClient == null) {
+                // the next attach sends a snapshot
+                return;
+            }
+            int bytes = send(MessageKinds.REPLICA_DELTA, keys);
+            if (bytes < 0) {
+                // send queue is full, retry on the next tick
+                for (String key : keys) {
+                    Entry entry = mEntries.get(key);
+                    if (!entry.dirty) {
+                        entry.dirty = true;
+                        mDirtyKeys.add(key);
+                    }
+                }
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, mTickMs);
+                return;
+            }
+            mDeltaCount++;
+            mDeltaEntryCount += keys.size();
+            mDeltaBytes += bytes;
+        }
+    }
+
+    /**
+     * Must hold mLock.
+     *
+     * @return false if it's rejected, it's retried on the next tick.
+     */
+    private boolean sendSnapshot() {
+        // the snapshot covers pending changes
+        for (String key : mDirtyKeys) {
+            mEntries.get(key).dirty = false;
+        }
+        mDirtyKeys.clear();
+        // accepted parts are sent again on retry, merging them again is a no-op
+        int bytes = send(MessageKinds.REPLICA_SNAPSHOT, new ArrayList<>(mEntries.keySet()));
+        if (bytes < 0) {
+            return false;
+        }
+        mSnapshotBytes += bytes;
+        mSnapshotPending = false;
+        return true;
+    }
+
+    /**
+     * Must hold mLock.
+     *
+     * @return bytes sent, or -1 if any message is rejected.
+     */
+    private int send(int kind, List<String> keys) {
+        int total = 0;
+        boolean rejected = false;
+        int start = 0;
+        while (start < keys.size()) {
+            // split into messages of about MAX_MESSAGE_BYTES
+            int size = 1 + 4;
+            int end = start;
+            List<byte[]> encodedKeys = new ArrayList<>();
+            while (end < keys.size()) {
+                byte[] key = keys.get(end).getBytes(UTF_8);
+                byte[] value = mEntries.get(keys.get(end)).value;
+                int entrySize = ENTRY_HEADER_BYTES + key.length
+                                + (value == null ? 0 : value.length);
+                if (end > start && size + entrySize > MAX_MESSAGE_BYTES) {
+                    break;
+                }
+                encodedKeys.add(key);
+                size += entrySize;
+                end++;
+            }
+            ByteBuffer message = ByteBuffer.allocate(size);
+            message.put((byte) kind);
+            message.putInt(end - start);
+            for (int i = start; i < end; i++) {
+                Entry entry = mEntries.get(keys.get(i));
+                byte[] key = encodedKeys.get(i - start);
+                message.putShort((short) key.length);
+                message.put(key);
+                message.putLong(entry.version);
+                message.putInt(entry.node);
+                if (entry.value == null) {
+                    message.putInt(-1);
+                } else {
+                    message.putInt(entry.value.length);
+                    message.put(entry.value);
+                }
+            }
+            if (!mClient.sendProtocolMessage(message.array(),
+                    OutboundScheduler.PRIORITY_INTERACTIVE)) {
+                rejected = true;
+            }
+            total += size;
+            start = end;
+        }
+        return rejected ? -1 : total;
+    }
+
+    /**
+     * Merge a delta or snapshot, {@code message} is positioned after the kind byte.
+     */
+    void onMessage(int kind, ByteBuffer message) {
+        List<Object> changes = new ArrayList<>();
+        synchronized (mLock) {
+            try {
+                int count = message.getInt();
+                for (int i = 0; i < count; i++) {
+                    byte[] key = new byte[message.getShort() & 0xFFFF];
+                    message.get(key);
+                    long version = message.getLong();
+                    int node = message.getInt();
+                    int valueLength = message.getInt();
+                    if (valueLength > message.remaining()) {
+                        Logging.e(TAG, "Drop truncated message of kind " + kind);
+                        break;
+                    }
+                    // only -1 marks a removal
+                    if (valueLength < -1) {
+                        Logging.e(TAG, "Drop message of kind " + kind + " with value length "
+                                + valueLength);
+                        break;
+                    }
+                    byte[] value = null;
+                    if (valueLength >= 0) {
+                        value = new byte[valueLength];
+                        message.get(value);
+                    }
+                    mClock = Math.max(mClock, version);
+
+                    String keyString = new String(key, UTF_8);
+                    Entry entry = mEntries.get(keyString);
+                    if (entry != null && (entry.version > version
+                                          || entry.version == version && entry.node >= node)) {
+                        mStaleCount++;
+                        continue;
+                    }
+                    if (entry == null) {
+                        entry = new Entry();
+                        mEntries.put(keyString, entry);
+                    }
+                    entry.version = version;
+                    entry.node = node;
+                    entry.value = value;
+                    mMergedCount++;
+                    changes.add(keyString);
+                    changes.add(value);
+                }
+            } catch (RuntimeException e) {
+                // BufferUnderflowException of a malformed message
+                Logging.e(TAG, "Drop malformed message of kind " + kind + ": " + e);
+            }
+        }
+        if (!changes.isEmpty()) {
+            mListener.onRemoteChanges(changes);
+        }
+    }
+
+    private static class Entry {
+        long version;
+        int node;
+        byte[] value;
+        boolean dirty;
+    }
+
+    public interface Listener {
+        /**
+         * Called with {@code [key0, value0, key1, value1, ...]} changed by the peer, a null
+         * value means the key is removed.
+         */
+        void onRemoteChanges(List<Object> changes);
+    }
+}
@@ -0,0 +1,389 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.Logging;
+
+/**
+ * Request/response RPC over the data channel, both peers are client and server at once.
+ *
+ * <p>Calls are correlated by caller assigned ids, any number of calls may be in flight, each
+ * with its own deadline, after which the call fails locally and the peer is told to cancel it.
+ * Pending calls on both sides are kept in {@link LongObjectMap}s, so ids are never boxed.
+ * Latency of completed calls is recorded in a {@link LatencyHistogram} per method.
+ *
+ * <p>Wire format, after the kind byte, big endian:
+ * <pre>
+ * request:  | call id: u32 | timeout ms: u32 | method length: u16 | method | payload |
+ * response: | call id: u32 | status: u8 | payload, or UTF-8 error message |
+ * cancel:   | call id: u32 |
+ * </pre>
+ */
+public class RpcEndpoint {
+    private static final String TAG = "RpcEndpoint";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final String ERROR_TIMEOUT = "TIMEOUT";
+    public static final String ERROR_CANCELLED = "CANCELLED";
+    public static final String ERROR_CLOSED = "CLOSED";
+    public static final String ERROR_REJECTED = "REJECTED";
+    public static final String ERROR_NO_HANDLER = "NO_HANDLER";
+    public static final String ERROR_REMOTE = "REMOTE_ERROR";
+    public static final String ERROR_DUPLICATE_ID = "DUPLICATE_ID";
+
+    private static final long MAX_U32 = 0xFFFFFFFFL;
+    private static final int MAX_U16 = 0xFFFF;
+
+    private static final int STATUS_OK = 0;
+    private static final int STATUS_ERROR = 1;
+    private static final int STATUS_NO_HANDLER = 2;
+
+    private final ScheduledExecutorService mTimer;
+    private final Sender mSender;
+    private final Object mLock = new Object();
+
+    // guarded by mLock
+    private final LongObjectMap<OutboundCall> mOutboundCalls = new LongObjectMap<>();
+    private final LongObjectMap<InboundCall> mInboundCalls = new LongObjectMap<>();
+    private final Map<String, Handler> mHandlers = new HashMap<>();
+    private final Map<String, MethodStats> mStats = new HashMap<>();
+    private boolean mClosed;
+
+    public RpcEndpoint(ScheduledExecutorService timer, Sender sender) {
+        mTimer = timer;
+        mSender = sender;
+    }
+
+    /**
+     * Call {@code method} on the peer, {@code callback} is invoked exactly once, on an arbitrary
+     * thread.
+     *
+     * @param callId unique among calls in flight from this endpoint, in 0..0xFFFFFFFF, a call
+     * with the id of one in flight fails with {@link #ERROR_DUPLICATE_ID}, the one in flight
+     * isn't affected.
+     * @param timeoutMs in 0..0xFFFFFFFF.
+     * @throws IllegalArgumentException if an argument doesn't fit the wire format.
+     */
+    public void call(long callId, String method, byte[] payload, long timeoutMs, int priority,
+            Callback callback) {
+        if (callId < 0 || callId > MAX_U32) {
+            throw new IllegalArgumentException("Call id out of range: " + callId);
+        }
+        if (timeoutMs < 0 || timeoutMs > MAX_U32) {
+            throw new IllegalArgumentException("Timeout out of range: " + timeoutMs);
+        }
+        byte[] methodBytes = method.getBytes(UTF_8);
+        if (methodBytes.length > MAX_U16) {
+            throw new IllegalArgumentException("Method name too long: " + methodBytes.length);
+        }
+        ByteBuffer request = ByteBuffer.allocate(1 + 4 + 4 + 2 + methodBytes.length
+                                                 + payload.length);
+        request.put((byte) MessageKinds.RPC_REQUEST);
+        request.putInt((int) callId);
+        request.putInt((int) timeoutMs);
+        request.putShort((short) methodBytes.length);
+        request.put(methodBytes);
+        request.put(payload);
+
+        OutboundCall call = new OutboundCall(method, callback, System.nanoTime());
+        synchronized (mLock) {
+            if (mClosed) {
+                callback.onError(ERROR_CLOSED, "RPC endpoint is closed");
+                return;
+            }
+            if (mOutboundCalls.get(callId) != null) {
+                callback.onError(ERROR_DUPLICATE_ID, "Call id " + callId + " is in flight");
+                return;
+            }
+            mOutboundCalls.put(callId, call);
+        }
+        try {
+            call.deadline = mTimer.schedule(() -> expire(callId), timeoutMs,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // timer already shut down, the endpoint is being closed
+        }
+        if (!mSender.send(request.array(), priority)) {
+            complete(callId, ERROR_REJECTED, "Send queue is full", null);
+        }
+    }
+
+    /**
+     * Cancel an outbound call, it fails with {@link #ERROR_CANCELLED} and the peer is told to
+     * drop it.
+     */
+    public void cancel(long callId) {
+        if (complete(callId, ERROR_CANCELLED, "Cancelled", null)) {
+            sendCancel(callId);
+        }
+    }
+
+    /**
+     * Serve {@code method} with {@code handler}, null to stop serving it.
+     */
+    public void setHandler(String method, Handler handler) {
+        synchronized (mLock) {
+            if (handler == null) {
+                mHandlers.remove(method);
+            } else {
+                mHandlers.put(method, handler);
+            }
+        }
+    }
+
+    /**
+     * Respond to an inbound call, dropped if it's cancelled or past its deadline.
+     *
+     * @param error null for success.
+     */
+    public void respond(long callId, String error, byte[] payload) {
+        InboundCall call;
+        synchronized (mLock) {
+            call = mInboundCalls.remove(callId);
+        }
+        if (call == null || System.nanoTime() > call.deadlineNs) {
+            return;
+        }
+        if (error == null) {
+            sendResponse(callId, STATUS_OK, payload, call.priority);
+        } else {
+            sendResponse(callId, STATUS_ERROR, error.getBytes(UTF_8), call.priority);
+        }
+    }
+
+    /**
+     * @return per method call count, errors, timeouts and latency percentiles in microseconds.
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        synchronized (mLock) {
+            for (Map.Entry<String, MethodStats> entry : mStats.entrySet()) {
+                MethodStats stats = entry.getValue();
+                Map<String, Object> metric = stats.latency.toMap();
+                metric.put("errors", stats.errors);
+                metric.put("timeouts", stats.timeouts);
+                metrics.put(entry.getKey(), metric);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Fail all outbound calls with {@link #ERROR_CLOSED} and drop inbound calls.
+     */
+    public void close() {
+        List<OutboundCall> calls = new ArrayList<>();
+        synchronized (mLock) {
+            mClosed = true;
+            mOutboundCalls.forEach((callId, call) -> calls.add(call));
+            mOutboundCalls.clear();
+            mInboundCalls.clear();
+        }
+        for (OutboundCall call : calls) {
+            if (call.deadline != null) {
+                call.deadline.cancel(false);
+            }
+            call.callback.onError(ERROR_CLOSED, "RPC endpoint is closed");
+        }
+    }
+
+    /**
+     * Handle an RPC message, {@code message} is positioned after the kind byte.
+     */
+    void onMessage(int kind, ByteBuffer message) {
+        if (message.remaining() < 4) {
+            Logging.e(TAG, "Drop truncated RPC message, kind " + kind);
+            return;
+        }
+        long callId = message.getInt() & 0xFFFFFFFFL;
+        switch (kind) {
+            case MessageKinds.RPC_REQUEST:
+                onRequest(callId, message);
+                break;
+            case MessageKinds.RPC_RESPONSE:
+                onResponse(callId, message);
+                break;
+            case MessageKinds.RPC_CANCEL:
+                synchronized (mLock) {
+                    mInboundCalls.remove(callId);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onRequest(long callId, ByteBuffer message) {
+        if (message.remaining() < 6) {
+            Logging.e(TAG, "Drop truncated RPC request " + callId);
+            return;
+        }
+        long timeoutMs = message.getInt() & 0xFFFFFFFFL;
+        int methodLength = message.getShort() & 0xFFFF;
+        if (message.remaining() < methodLength) {
+            Logging.e(TAG, "Drop truncated RPC request " + callId);
+            return;
+        }
+        byte[] methodBytes = new byte[methodLength];
+        message.get(methodBytes);
+        String method = new String(methodBytes, UTF_8);
+        byte[] payload = new byte[message.remaining()];
+        message.get(payload);
+
+        Handler handler;
+        synchronized (mLock) {
+            handler = mHandlers.get(method);
+            if (handler != null) {
+                mInboundCalls.put(callId, new InboundCall(
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs),
+                        OutboundScheduler.PRIORITY_INTERACTIVE));
+            }
+        }
+        if (handler == null) {
+            sendResponse(callId, STATUS_NO_HANDLER, new byte[0],
+                    OutboundScheduler.PRIORITY_INTERACTIVE);
+            return;
+        }
+        handler.onRequest(callId, method, payload);
+    }
+
+    private void onResponse(long callId, ByteBuffer message) {
+        if (!message.hasRemaining()) {
+            Logging.e(TAG, "Drop truncated RPC response " + callId);
+            return;
+        }
+        int status = message.get() & 0xFF;
+        byte[] payload = new byte[message.remaining()];
+        message.get(payload);
+        switch (status) {
+            case STATUS_OK:
+                complete(callId, null, null, payload);
+                break;
+            case STATUS_NO_HANDLER:
+                complete(callId, ERROR_NO_HANDLER, "No handler on peer", null);
+                break;
+            default:
+                complete(callId, ERROR_REMOTE, new String(payload, UTF_8), null);
+                break;
+        }
+    }
+
+    private void expire(long callId) {
+        if (complete(callId, ERROR_TIMEOUT, "Deadline exceeded", null)) {
+            sendCancel(callId);
+        }
+    }
+
+    /**
+     * @return false if the call is already completed.
+     */
+    private boolean complete(long callId, String error, String errorMessage, byte[] payload) {
+        OutboundCall call;
+        synchronized (mLock) {
+            call = mOutboundCalls.remove(callId);
+            if (call == null) {
+                return false;
+            }
+            MethodStats stats = mStats.get(call.method);
+            if (stats == null) {
+                stats = new MethodStats();
+                mStats.put(call.method, stats);
+            }
+            if (error == null) {
+                stats.latency.record((System.nanoTime() - call.startTimeNs) / 1000);
+            } else if (ERROR_TIMEOUT.equals(error)) {
+                stats.timeouts++;
+            } else if (!ERROR_CANCELLED.equals(error)) {
+                stats.errors++;
+            }
+        }
+        if (call.deadline != null) {
+            call.deadline.cancel(false);
+        }
+        if (error == null) {
+            call.callback.onResponse(payload);
+        } else {
+            call.callback.onError(error, errorMessage);
+        }
+        return true;
+    }
+
+    private void sendResponse(long callId, int status, byte[] payload, int priority) {
+        ByteBuffer response = ByteBuffer.allocate(1 + 4 + 1 + payload.length);
+        response.put((byte) MessageKinds.RPC_RESPONSE);
+        response.putInt((int) callId);
+        response.put((byte) status);
+        response.put(payload);
+        mSender.send(response.array(), priority);
+    }
+
+    private void sendCancel(long callId) {
+        ByteBuffer cancel = ByteBuffer.allocate(1 + 4);
+        cancel.put((byte) MessageKinds.RPC_CANCEL);
+        cancel.putInt((int) callId);
+        mSender.send(cancel.array(), OutboundScheduler.PRIORITY_CONTROL);
+    }
+
+    private static class OutboundCall {
+        final String method;
+        final Callback callback;
+        final long startTimeNs;
+        volatile ScheduledFuture<?> deadline;
+
+        OutboundCall(String method, Callback callback, long startTimeNs) {
+            this.method = method;
+            this.callback = callback;
+            this.startTimeNs = startTimeNs;
+        }
+    }
+
+    private static class InboundCall {
+        final long deadlineNs;
+        final int priority;
+
+        InboundCall(long deadlineNs, int priority) {
+            this.deadlineNs = deadlineNs;
+            this.priority = priority;
+        }
+    }
+
+    private static class MethodStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long errors;
+        long timeouts;
+    }
+
+    public interface Sender {
+        /**
+         * Send a binary message, which starts with its kind byte.
+         *
+         * @return false if it's rejected.
+         */
+        boolean send(byte[] message, int priority);
+    }
+
+    public interface Callback {
+        void onResponse(byte[] payload);
+
+        /**
+         * @param error one of the {@code ERROR_*} codes.
+         */
+        void onError(String error, String message);
+    }
+
+    public interface Handler {
+        /**
+         * Called on the data channel thread, the call must be answered with
+         * {@link RpcEndpoint#respond(long, String, byte[])}, from any thread.
+         */
+        void onRequest(long callId, String method, byte[] payload);
+    }
+}
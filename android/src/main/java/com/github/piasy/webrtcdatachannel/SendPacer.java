@@ -0,0 +1,177 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Token bucket between the {@link OutboundScheduler} and the data channel, so bulk senders
+ * don't fill the SCTP send buffer and inflate latency of everything behind them.
+ *
+ * <p>Every {@link #ADAPT_INTERVAL_NS} the rate is adapted to the observed drain rate of the
+ * data channel's {@code bufferedAmount}: when the buffer holds more than the target queue delay
+ * (a quarter of the RTT, within bounds) the rate drops below the drain rate, otherwise it's
+ * probed up, but only while the bucket is actually limiting. So bulk traffic settles near link
+ * capacity without a standing queue.
+ *
+ * <p>{@link #acquire(int, boolean, long)} is only called by the scheduler's drain, on the
+ * connection's executor, configuration, RTT and metrics could be accessed on any thread.
+ */
+class SendPacer {
+    static final long DEFAULT_MIN_RATE = 16 * 1024;
+    static final long DEFAULT_MAX_RATE = 32 * 1024 * 1024;
+    private static final long INITIAL_RATE = 1024 * 1024;
+
+    private static final long ADAPT_INTERVAL_NS = 100000000L;
+    private static final long BURST_NS = 10000000L;
+    private static final int MIN_BURST_BYTES = 16 * 1024;
+    private static final long DEFAULT_TARGET_DELAY_NS = 20000000L;
+    private static final long MIN_TARGET_DELAY_NS = 5000000L;
+    private static final long MAX_TARGET_DELAY_NS = 50000000L;
+    private static final double INCREASE = 1.25;
+    private static final double DECREASE = 0.85;
+    private static final double DRAIN_RATE_GAIN = 0.25;
+
+    private final BufferedAmount mBufferedAmount;
+
+    private volatile boolean mEnabled;
+    private volatile long mMinRate = DEFAULT_MIN_RATE;
+    private volatile long mMaxRate = DEFAULT_MAX_RATE;
+    private volatile long mRttUs = -1;
+
+    // written by the drain, read for metrics
+    private volatile long mRate = INITIAL_RATE;
+    private volatile double mDrainRate;
+    private volatile long mQueueDelayUs;
+    private volatile long mThrottledCount;
+
+    // only accessed by the drain
+    private double mTokens = MIN_BURST_BYTES;
+    private long mLastRefillNs;
+    private long mIntervalStartNs;
+    private long mIntervalSentBytes;
+    private long mIntervalStartBuffered;
+    private boolean mIntervalLimited;
+
+    SendPacer(BufferedAmount bufferedAmount) {
+        mBufferedAmount = bufferedAmount;
+    }
+
+    /**
+     * @param minRate lower bound of the adapted rate, in bytes per second.
+     * @param maxRate upper bound of the adapted rate, in bytes per second.
+     * @throws IllegalArgumentException if {@code minRate} isn't positive or {@code maxRate} is
+     * less than it.
+     */
+    void configure(boolean enabled, long minRate, long maxRate) {
+        checkRates(minRate, maxRate);
+        mMinRate = minRate;
+        mMaxRate = maxRate;
+        mEnabled = enabled;
+    }
+
+    /**
+     * A zero rate never recovers, since it's only ever scaled.
+     */
+    static void checkRates(long minRate, long maxRate) {
+        if (minRate <= 0 || maxRate < minRate) {
+            throw new IllegalArgumentException("Pacing rates must be 0 < min <= max: " + minRate
+                    + ", " + maxRate);
+        }
+    }
+
+    void setRttUs(long rttUs) {
+        mRttUs = rttUs;
+    }
+
+    /**
+     * Take tokens for a message of {@code bytes}, a bypassing message is charged but never
+     * held. A message larger than the bucket is sent once the bucket isn't in debt, the debt is
+     * paid by later messages.
+     *
+     * @return 0 if the message could be sent now, otherwise nanoseconds until it could.
+     */
+    long acquire(int bytes, boolean bypass, long nowNs) {
+        if (mLastRefillNs == 0) {
+            mLastRefillNs = nowNs;
+            mIntervalStartNs = nowNs;
+        }
+        adapt(nowNs);
+        long rate = mRate;
+        double burst = Math.max(MIN_BURST_BYTES, (double) rate * BURST_NS / 1e9);
+        mTokens = Math.min(burst, mTokens + (double) rate * (nowNs - mLastRefillNs) / 1e9);
+        mLastRefillNs = nowNs;
+
+        if (!mEnabled) {
+            mIntervalSentBytes += bytes;
+            return 0;
+        }
+        if (bypass || mTokens > 0) {
+            mTokens -= bytes;
+            mIntervalSentBytes += bytes;
+            return 0;
+        }
+        mIntervalLimited = true;
+        mThrottledCount++;
+        return (long) (-mTokens * 1e9 / rate) + 1;
+    }
+
+    /**
+     * @return whether it's enabled, current rate, estimated drain rate of the data channel in
+     * bytes per second, queue delay in the data channel's buffer and RTT in microseconds (-1 if
+     * unknown), and the number of times a message was held.
+     */
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("enabled", mEnabled);
+        metrics.put("rateBytesPerSec", mRate);
+        metrics.put("drainBytesPerSec", (long) mDrainRate);
+        metrics.put("queueDelayUs", mQueueDelayUs);
+        metrics.put("rttUs", mRttUs);
+        metrics.put("throttled", mThrottledCount);
+        return metrics;
+    }
+
+    private void adapt(long nowNs) {
+        long elapsedNs = nowNs - mIntervalStartNs;
+        if (elapsedNs < ADAPT_INTERVAL_NS) {
+            return;
+        }
+        long buffered = mBufferedAmount.bufferedAmount();
+        // bytes which left the buffer, the rest of what's sent is still in it
+        long drained = Math.max(0, mIntervalSentBytes - (buffered - mIntervalStartBuffered));
+        double sample = drained * 1e9 / elapsedNs;
+        double drainRate = mDrainRate == 0 ? sample
+                                           : mDrainRate + DRAIN_RATE_GAIN * (sample - mDrainRate);
+        mDrainRate = drainRate;
+
+        long queueDelayNs = drainRate > 0 ? (long) (buffered * 1e9 / drainRate)
+                                          : buffered > 0 ? Long.MAX_VALUE : 0;
+        mQueueDelayUs = queueDelayNs == Long.MAX_VALUE ? -1 : queueDelayNs / 1000;
+        long rttUs = mRttUs;
+        long targetDelayNs = rttUs < 0
+                             ? DEFAULT_TARGET_DELAY_NS
+                             : Math.max(MIN_TARGET_DELAY_NS,
+                                     Math.min(MAX_TARGET_DELAY_NS, rttUs * 1000 / 4));
+
+        long rate = mRate;
+        if (queueDelayNs > targetDelayNs && buffered > MIN_BURST_BYTES) {
+            // a standing queue, send slower than the link drains it
+            rate = (long) Math.min(rate, drainRate * DECREASE);
+        } else if (mIntervalLimited) {
+            rate = (long) (rate * INCREASE);
+        }
+        mRate = Math.max(mMinRate, Math.min(mMaxRate, rate));
+
+        mIntervalStartNs = nowNs;
+        mIntervalSentBytes = 0;
+        mIntervalStartBuffered = buffered;
+        mIntervalLimited = false;
+    }
+
+    interface BufferedAmount {
+        /**
+         * @return bytes queued in the data channel, not yet handed to the network.
+         */
+        long bufferedAmount();
+    }
+}
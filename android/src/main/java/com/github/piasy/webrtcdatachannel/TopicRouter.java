@@ -0,0 +1,185 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.webrtc.Logging;
+
+/**
+ * Topic based publish/subscribe over the data channel, with filtering on the sender.
+ *
+ * <p>Each peer tells the other its full subscription set on connect, even if it's empty, and
+ * whenever it changes, and {@link #publish(byte[], int)} drops messages of topics the peer isn't
+ * subscribed to before they are queued. Until the peer's set is known, everything is sent and the receiver filters.
+ * Received messages are routed by topic name only, the payload is handed over undecoded.
+ *
+ * <p>A topic message is {@code | topic length: u8 | topic: UTF-8 | payload |}, it's the same
+ * between Dart and native and on the wire, after the kind byte. A subscription set is
+ * {@code | count: u16 | (topic length: u8 | topic)* |}.
+ */
+public class TopicRouter {
+    private static final String TAG = "TopicRouter";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int MAX_TOPIC_BYTES = 255;
+
+    private final Sender mSender;
+    private final Listener mListener;
+
+    // immutable snapshots, replaced as a whole, so the hot paths don't lock
+    private volatile Set<String> mLocalTopics = Collections.emptySet();
+    private volatile Set<String> mRemoteTopics;
+
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private final AtomicLong mFilteredCount = new AtomicLong();
+    private final AtomicLong mReceivedCount = new AtomicLong();
+    private final AtomicLong mUnsubscribedCount = new AtomicLong();
+
+    TopicRouter(Sender sender, Listener listener) {
+        mSender = sender;
+        mListener = listener;
+    }
+
+    /**
+     * Replace the local subscription set and tell the peer.
+     *
+     * @throws IllegalArgumentException if a topic is longer than {@link #MAX_TOPIC_BYTES}.
+     */
+    public void setSubscriptions(Collection<String> topics) {
+        int size = 1 + 2;
+        byte[][] encoded = new byte[topics.size()][];
+        int i = 0;
+        for (String topic : topics) {
+            encoded[i] = encodeTopic(topic);
+            size += 1 + encoded[i].length;
+            i++;
+        }
+        ByteBuffer message = ByteBuffer.allocate(size);
+        message.put((byte) MessageKinds.TOPIC_SUBSCRIPTIONS);
+        message.putShort((short) encoded.length);
+        for (byte[] topic : encoded) {
+            message.put((byte) topic.length);
+            message.put(topic);
+        }
+        mLocalTopics = Collections.unmodifiableSet(new HashSet<>(topics));
+        mSender.send(message.array(), OutboundScheduler.PRIORITY_CONTROL);
+    }
+
+    /**
+     * Publish a topic message, dropped if the peer isn't subscribed to its topic.
+     *
+     * @param topicMessage {@code | topic length: u8 | topic | payload |}.
+     * @return false if the message is malformed or rejected because the send queue is full, a
+     * filtered message counts as sent.
+     */
+    public boolean publish(byte[] topicMessage, int priority) {
+        if (topicMessage.length < 1 || topicMessage.length < 1 + (topicMessage[0] & 0xFF)) {
+            Logging.e(TAG, "Drop malformed topic message");
+            return false;
+        }
+        Set<String> remoteTopics = mRemoteTopics;
+        if (remoteTopics != null && !remoteTopics.contains(
+                new String(topicMessage, 1, topicMessage[0] & 0xFF, UTF_8))) {
+            mFilteredCount.incrementAndGet();
+            return true;
+        }
+        byte[] message = new byte[topicMessage.length + 1];
+        message[0] = MessageKinds.TOPIC_MESSAGE;
+        System.arraycopy(topicMessage, 0, message, 1, topicMessage.length);
+        mPublishedCount.incrementAndGet();
+        return mSender.send(message, priority);
+    }
+
+    /**
+     * @return published and filtered count on the sender side, received and unsubscribed
+     * (dropped on arrival) count on the receiver side, and the known peer subscription count,
+     * -1 if unknown.
+     */
+    public Map<String, Object> getMetrics() {
+        Set<String> remoteTopics = mRemoteTopics;
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("published", mPublishedCount.get());
+        metrics.put("filtered", mFilteredCount.get());
+        metrics.put("received", mReceivedCount.get());
+        metrics.put("unsubscribed", mUnsubscribedCount.get());
+        metrics.put("remoteTopics", remoteTopics == null ? -1 : remoteTopics.size());
+        return metrics;
+    }
+
+    /**
+     * Handle a topic message, {@code message} is positioned after the kind byte.
+     */
+    void onMessage(int kind, ByteBuffer message) {
+        try {
+            if (kind == MessageKinds.TOPIC_SUBSCRIPTIONS) {
+                onSubscriptions(message);
+            } else if (kind == MessageKinds.TOPIC_MESSAGE) {
+                onTopicMessage(message);
+            }
+        } catch (RuntimeException e) {
+            // BufferUnderflowException or IndexOutOfBoundsException of a truncated message
+            Logging.e(TAG, "Drop malformed message of kind " + kind + ": " + e);
+        }
+    }
+
+    private void onSubscriptions(ByteBuffer message) {
+        int count = message.getShort() & 0xFFFF;
+        Set<String> topics = new HashSet<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            topics.add(readTopic(message));
+        }
+        mRemoteTopics = Collections.unmodifiableSet(topics);
+    }
+
+    private void onTopicMessage(ByteBuffer message) {
+        int start = message.position();
+        if (!mLocalTopics.contains(readTopic(message))) {
+            mUnsubscribedCount.incrementAndGet();
+            return;
+        }
+        message.position(start);
+        byte[] topicMessage = new byte[message.remaining()];
+        message.get(topicMessage);
+        mReceivedCount.incrementAndGet();
+        mListener.onTopicMessage(topicMessage);
+    }
+
+    private static String readTopic(ByteBuffer message) {
+        byte[] topic = new byte[message.get() & 0xFF];
+        message.get(topic);
+        return new String(topic, UTF_8);
+    }
+
+    private static byte[] encodeTopic(String topic) {
+        byte[] encoded = topic.getBytes(UTF_8);
+        if (encoded.length > MAX_TOPIC_BYTES) {
+            throw new IllegalArgumentException("Topic longer than " + MAX_TOPIC_BYTES
+                                               + " bytes: " + topic);
+        }
+        return encoded;
+    }
+
+    public interface Sender {
+        /**
+         * Send a binary message, which starts with its kind byte.
+         *
+         * @return false if it's rejected.
+         */
+        boolean send(byte[] message, int priority);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the data channel thread for messages of subscribed topics.
+         *
+         * @param topicMessage {@code | topic length: u8 | topic | payload |}.
+         */
+        void onTopicMessage(byte[] topicMessage);
+    }
+}
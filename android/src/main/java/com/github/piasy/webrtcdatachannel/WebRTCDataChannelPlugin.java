@@ -1,16 +1,33 @@
 package com.github.piasy.webrtcdatachannel;
 
-import io.flutter.plugin.common.EventChannel;
+import android.os.Handler;
+import android.os.Looper;
+import io.flutter.plugin.common.BasicMessageChannel;
+import io.flutter.plugin.common.BinaryCodec;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
 import io.flutter.plugin.common.PluginRegistry.Registrar;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.appspot.apprtc.AppRTCClient;
+import org.appspot.apprtc.EmbeddedRoomServer;
+import org.appspot.apprtc.SignalingTransport;
+import org.appspot.apprtc.RtcEventLog;
+import org.appspot.apprtc.WebSocketMux;
 import org.appspot.apprtc.WebSocketRTCClient;
+import org.appspot.apprtc.util.EventLoops;
+import org.appspot.apprtc.util.FlightRecorder;
 import org.webrtc.IceCandidate;
+import org.webrtc.Logging;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 import org.webrtc.StatsReport;
@@ -19,33 +36,149 @@ import org.webrtc.StatsReport;
  * WebrtcDataChannelPlugin
  */
 public class WebRTCDataChannelPlugin
-        implements MethodCallHandler, EventChannel.StreamHandler, AppRTCClient.SignalingEvents,
-        DataChannelPeerConnectionClient.Events {
+        implements MethodCallHandler, AppRTCClient.SignalingEvents,
+        DataChannelPeerConnectionClient.Events, BasicMessageChannel.MessageHandler<ByteBuffer> {
+    private static final String TAG = "WebRTCDataChannelPlugin";
 
     public static final String METHOD_CHANNEL_NAME = "com.github.piasy/webrtc_data_channel.method";
-    public static final String EVENT_CHANNEL_NAME = "com.github.piasy/webrtc_data_channel.event";
+    public static final String SIGNALING_STATE_CHANNEL_NAME
+            = "com.github.piasy/webrtc_data_channel.event/signaling_state";
+    public static final String ICE_STATE_CHANNEL_NAME
+            = "com.github.piasy/webrtc_data_channel.event/ice_state";
+    public static final String RPC_REQUEST_CHANNEL_NAME
+            = "com.github.piasy/webrtc_data_channel.event/rpc_request";
+    public static final String REPLICATED_MAP_CHANNEL_NAME
+            = "com.github.piasy/webrtc_data_channel.event/replicated_map";
+    public static final String PEER_UNRESPONSIVE_CHANNEL_NAME
+            = "com.github.piasy/webrtc_data_channel.event/peer_unresponsive";
+    public static final String DATA_CHANNEL_NAME = "com.github.piasy/webrtc_data_channel.data";
 
     public static final String METHOD_CONNECT_TO_ROOM = "connectToRoom";
-    public static final String METHOD_SEND_MESSAGE = "sendMessage";
     public static final String METHOD_DISCONNECT = "disconnect";
-
-    public static final int EVENT_TYPE_SIGNALING_STATE = 1;
-    public static final int EVENT_TYPE_ICE_STATE = 2;
-    public static final int EVENT_TYPE_MESSAGE = 3;
+    public static final String METHOD_SET_EVENT_BATCHING = "setEventBatching";
+    public static final String METHOD_SET_MESSAGE_LISTENING = "setMessageListening";
+    public static final String METHOD_GET_SEND_METRICS = "getSendMetrics";
+    public static final String METHOD_SET_FLIGHT_RECORDER = "setFlightRecorder";
+    public static final String METHOD_DUMP_FLIGHT_RECORDER = "dumpFlightRecorder";
+    public static final String METHOD_START_RTC_EVENT_LOG = "startRtcEventLog";
+    public static final String METHOD_STOP_RTC_EVENT_LOG = "stopRtcEventLog";
+    public static final String METHOD_COLLECT_RTC_EVENT_LOGS = "collectRtcEventLogs";
+    public static final String METHOD_START_ROOM_SERVER = "startRoomServer";
+    public static final String METHOD_STOP_ROOM_SERVER = "stopRoomServer";
+    public static final String METHOD_GET_SIGNALING_METRICS = "getSignalingMetrics";
+    public static final String METHOD_GET_CONNECTION_TIMELINE = "getConnectionTimeline";
+    public static final String METHOD_CONFIGURE_PRE_OPEN_QUEUE = "configurePreOpenQueue";
+    public static final String METHOD_RPC_CALL = "rpcCall";
+    public static final String METHOD_RPC_CANCEL = "rpcCancel";
+    public static final String METHOD_RPC_REGISTER = "rpcRegister";
+    public static final String METHOD_RPC_UNREGISTER = "rpcUnregister";
+    public static final String METHOD_RPC_RESPOND = "rpcRespond";
+    public static final String METHOD_GET_RPC_METRICS = "getRpcMetrics";
+    public static final String METHOD_SET_TOPIC_SUBSCRIPTIONS = "setTopicSubscriptions";
+    public static final String METHOD_GET_TOPIC_METRICS = "getTopicMetrics";
+    public static final String METHOD_REPLICATED_PUT = "replicatedPut";
+    public static final String METHOD_REPLICATED_REMOVE = "replicatedRemove";
+    public static final String METHOD_GET_REPLICATED_MAP = "getReplicatedMap";
+    public static final String METHOD_GET_REPLICATED_MAP_METRICS = "getReplicatedMapMetrics";
+    public static final String METHOD_CONFIGURE_PACING = "configurePacing";
+    public static final String METHOD_CONFIGURE_HEARTBEAT = "configureHeartbeat";
+    public static final String METHOD_GET_HEARTBEAT_METRICS = "getHeartbeatMetrics";
+    public static final String METHOD_GET_DELIVERY_METRICS = "getDeliveryMetrics";
+    public static final String METHOD_GET_RUNTIME_METRICS = "getRuntimeMetrics";
+    public static final String METHOD_DISPOSE = "dispose";
+    public static final String METHOD_CONFIGURE_SDP = "configureSdp";
+    public static final String METHOD_CONFIGURE_STANDBY = "configureStandby";
+    public static final String METHOD_CONFIGURE_ICE_POLICY = "configureIcePolicy";
+    public static final String METHOD_GET_ICE_METRICS = "getIceMetrics";
 
     public static final int SIGNALING_STATE_DISCONNECTED = 0;
     public static final int SIGNALING_STATE_CONNECTED = 2;
 
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    public static final long DEFAULT_RPC_TIMEOUT_MS = 5000;
+
+    private static final String FLIGHT_RECORDER_DIR = "flight_recorder";
+    private static final String RTC_EVENT_LOG_DIR = "rtc_event_log";
+
     private final Registrar mRegistrar;
+    private final Handler mMainHandler;
+    private final BasicMessageChannel<ByteBuffer> mDataChannel;
+    private final EventStream mSignalingStateStream;
+    private final EventStream mIceStateStream;
+    private final EventStream mRpcRequestStream;
+    private final EventStream mReplicatedMapStream;
+    private final EventStream mPeerUnresponsiveStream;
+    private final ReplicatedMap mReplicatedMap;
+    private final EmbeddedRoomServer mRoomServer = new EmbeddedRoomServer();
 
     private AppRTCClient mAppRTCClient;
+    private EventLoops.Loop mLoop;
     private DataChannelPeerConnectionClient mConnectionClient;
     private boolean mInitiator;
+    private DataChannelPeerConnectionClient.DataChannelParameters mDataChannelParameters;
+    private volatile int mSession;
+    private volatile boolean mIceConnected;
+
+    // a disconnected session kept warm for a reconnect to the same room, on the main thread
+    private long mStandbyGraceMs;
+    private String mStandbyKey;
+    private volatile boolean mStandby;
+    private long mStandbyReattachCount;
+    private long mStandbyExpireCount;
+    private final Runnable mStandbyExpiry = () -> {
+        mStandbyExpireCount++;
+        releaseSession();
+    };
 
-    private volatile EventChannel.EventSink mEventSink;
+    // inbound messages are handed off to the main looper through it, one post per batch
+    private volatile EventBatcher mDataBatcher;
+    private volatile boolean mMessageListening;
+
+    // RPC methods served by Dart, registered on every connection
+    private final Set<String> mRpcMethods = new HashSet<>();
+    // topics subscribed by Dart, applied to every connection
+    private List<String> mTopics = new ArrayList<>();
+
+    // applied to every connection
+    private long mPreOpenQueueMaxBytes = PreOpenQueue.DEFAULT_MAX_BYTES;
+    private PreOpenQueue.OverflowPolicy mPreOpenQueuePolicy = PreOpenQueue.OverflowPolicy.REJECT;
+    private boolean mPacingEnabled;
+    private long mPacingMinRate = SendPacer.DEFAULT_MIN_RATE;
+    private long mPacingMaxRate = SendPacer.DEFAULT_MAX_RATE;
+    private boolean mHeartbeatEnabled;
+    private long mHeartbeatIntervalMs = Heartbeat.DEFAULT_INTERVAL_MS;
+    private int mHeartbeatMissThreshold = Heartbeat.DEFAULT_MISS_THRESHOLD;
+    private boolean mDataOnlySdp;
+    private boolean mSdpCompression;
+    private IcePolicy.Mode mIceMode = IcePolicy.Mode.ALL;
+    private boolean mIceTcpCandidates;
+    private boolean mIceContinualGathering = true;
+    private Set<String> mIceCandidateTypes = new HashSet<>();
+    private long mIceSrflxTimeoutMs;
+    private long mIceRelayTimeoutMs;
+
+    // applied to every connection until stopped
+    private boolean mRtcEventLogEnabled;
+    private int mRtcEventLogSegmentMaxBytes;
+    private long mRtcEventLogTotalBudgetBytes;
 
     public WebRTCDataChannelPlugin(final Registrar registrar) {
         mRegistrar = registrar;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mDataChannel = new BasicMessageChannel<>(registrar.messenger(), DATA_CHANNEL_NAME,
+                BinaryCodec.INSTANCE);
+        mSignalingStateStream = new EventStream(registrar.messenger(),
+                SIGNALING_STATE_CHANNEL_NAME);
+        mIceStateStream = new EventStream(registrar.messenger(), ICE_STATE_CHANNEL_NAME);
+        mRpcRequestStream = new EventStream(registrar.messenger(), RPC_REQUEST_CHANNEL_NAME);
+        mReplicatedMapStream = new EventStream(registrar.messenger(),
+                REPLICATED_MAP_CHANNEL_NAME);
+        mPeerUnresponsiveStream = new EventStream(registrar.messenger(),
+                PEER_UNRESPONSIVE_CHANNEL_NAME);
+        mDataBatcher = new EventBatcher(DEFAULT_MAX_BATCH_SIZE, EventBatcher.DELAY_NONE,
+                this::sendFrames);
+        mReplicatedMap = new ReplicatedMap(ReplicatedMap.DEFAULT_TICK_MS,
+                changes -> mMainHandler.post(() -> mReplicatedMapStream.success(changes)));
     }
 
     /**
@@ -55,23 +188,284 @@ public class WebRTCDataChannelPlugin
         WebRTCDataChannelPlugin plugin = new WebRTCDataChannelPlugin(registrar);
         new MethodChannel(registrar.messenger(), METHOD_CHANNEL_NAME)
                 .setMethodCallHandler(plugin);
-        new EventChannel(registrar.messenger(), EVENT_CHANNEL_NAME)
-                .setStreamHandler(plugin);
+        plugin.mDataChannel.setMessageHandler(plugin);
     }
 
     @Override
     public void onMethodCall(MethodCall call, Result result) {
         switch (call.method) {
             case METHOD_CONNECT_TO_ROOM:
-                connectToRoom(call.argument("roomUrl"), call.argument("roomId"));
+                Integer negotiatedChannelId = call.argument("negotiatedChannelId");
+                if (negotiatedChannelId != null && (negotiatedChannelId < 0
+                        || negotiatedChannelId
+                           > DataChannelPeerConnectionClient.DataChannelParameters.MAX_ID)) {
+                    result.error("INVALID_CHANNEL_ID", "negotiatedChannelId must be in 0.."
+                            + DataChannelPeerConnectionClient.DataChannelParameters.MAX_ID,
+                            null);
+                    break;
+                }
+                result.success(connectToRoom(call.argument("roomUrl"), call.argument("roomId"),
+                        Boolean.TRUE.equals(call.argument("webSocketSignaling"))
+                        ? SignalingTransport.Type.WEBSOCKET
+                        : SignalingTransport.Type.ROOM_SERVER,
+                        Boolean.TRUE.equals(call.argument("sharedSignaling")),
+                        new DataChannelPeerConnectionClient.DataChannelParameters(
+                                negotiatedChannelId != null,
+                                negotiatedChannelId == null ? 0 : negotiatedChannelId)));
+                break;
+            case METHOD_DISCONNECT:
+                disconnect();
                 result.success(0);
                 break;
-            case METHOD_SEND_MESSAGE:
-                sendMessage(call.argument("message"));
+            case METHOD_SET_EVENT_BATCHING:
+                Integer maxBatchSize = call.argument("maxBatchSize");
+                Integer maxDelayMs = call.argument("maxDelayMs");
+                setEventBatching(Boolean.TRUE.equals(call.argument("enabled")),
+                        maxBatchSize == null ? DEFAULT_MAX_BATCH_SIZE : maxBatchSize,
+                        maxDelayMs == null ? 0 : maxDelayMs);
                 result.success(0);
                 break;
-            case METHOD_DISCONNECT:
-                disconnect();
+            case METHOD_SET_MESSAGE_LISTENING:
+                mMessageListening = Boolean.TRUE.equals(call.argument("listening"));
+                result.success(0);
+                break;
+            case METHOD_GET_SEND_METRICS:
+                DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+                result.success(connectionClient == null
+                               ? null
+                               : connectionClient.getSendMetrics());
+                break;
+            case METHOD_SET_FLIGHT_RECORDER:
+                Integer capacity = call.argument("capacity");
+                setFlightRecorder(Boolean.TRUE.equals(call.argument("enabled")),
+                        capacity == null ? FlightRecorder.DEFAULT_CAPACITY : capacity);
+                result.success(0);
+                break;
+            case METHOD_DUMP_FLIGHT_RECORDER:
+                dumpFlightRecorder(result);
+                break;
+            case METHOD_START_RTC_EVENT_LOG:
+                Integer segmentMaxBytes = call.argument("segmentMaxBytes");
+                Number totalBudgetBytes = call.argument("totalBudgetBytes");
+                startRtcEventLog(segmentMaxBytes == null
+                                 ? RtcEventLog.DEFAULT_SEGMENT_MAX_BYTES
+                                 : segmentMaxBytes,
+                        totalBudgetBytes == null
+                        ? RtcEventLog.DEFAULT_TOTAL_BUDGET_BYTES
+                        : totalBudgetBytes.longValue());
+                result.success(0);
+                break;
+            case METHOD_STOP_RTC_EVENT_LOG:
+                stopRtcEventLog();
+                result.success(0);
+                break;
+            case METHOD_COLLECT_RTC_EVENT_LOGS:
+                collectRtcEventLogs(result);
+                break;
+            case METHOD_START_ROOM_SERVER:
+                Integer port = call.argument("port");
+                startRoomServer(port == null ? 0 : port, result);
+                break;
+            case METHOD_STOP_ROOM_SERVER:
+                mRoomServer.stop();
+                result.success(0);
+                break;
+            case METHOD_GET_SIGNALING_METRICS:
+                result.success(getSignalingMetrics());
+                break;
+            case METHOD_GET_CONNECTION_TIMELINE:
+                DataChannelPeerConnectionClient timelineClient = mConnectionClient;
+                result.success(timelineClient == null
+                               ? null
+                               : timelineClient.getConnectionTimeline());
+                break;
+            case METHOD_CONFIGURE_PRE_OPEN_QUEUE:
+                Number maxBytes = call.argument("maxBytes");
+                Integer policy = call.argument("policy");
+                // sends come from the main thread, so BLOCK isn't offered
+                if (policy != null && policy != PreOpenQueue.OverflowPolicy.REJECT.ordinal()
+                        && policy != PreOpenQueue.OverflowPolicy.DROP_OLDEST.ordinal()) {
+                    result.error("INVALID_POLICY", "Unsupported pre-open policy " + policy, null);
+                    break;
+                }
+                configurePreOpenQueue(
+                        maxBytes == null ? PreOpenQueue.DEFAULT_MAX_BYTES : maxBytes.longValue(),
+                        policy == null
+                        ? PreOpenQueue.OverflowPolicy.REJECT
+                        : PreOpenQueue.OverflowPolicy.values()[policy]);
+                result.success(0);
+                break;
+            case METHOD_RPC_CALL:
+                Number rpcCallId = call.argument("callId");
+                String rpcMethod = call.argument("method");
+                Number timeoutMs = call.argument("timeoutMs");
+                Integer priority = call.argument("priority");
+                if (rpcCallId == null || rpcMethod == null) {
+                    result.error("INVALID_ARGUMENT", "callId and method are required", null);
+                    break;
+                }
+                try {
+                    rpcCall(rpcCallId.longValue(), rpcMethod, call.argument("payload"),
+                            timeoutMs == null ? DEFAULT_RPC_TIMEOUT_MS : timeoutMs.longValue(),
+                            priority == null ? OutboundScheduler.PRIORITY_INTERACTIVE : priority,
+                            result);
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", e.getMessage(), null);
+                }
+                break;
+            case METHOD_RPC_CANCEL:
+                Number cancelCallId = call.argument("callId");
+                if (cancelCallId == null) {
+                    result.error("INVALID_ARGUMENT", "callId is required", null);
+                    break;
+                }
+                DataChannelPeerConnectionClient cancelClient = mConnectionClient;
+                if (cancelClient != null) {
+                    cancelClient.getRpcEndpoint().cancel(cancelCallId.longValue());
+                }
+                result.success(0);
+                break;
+            case METHOD_RPC_REGISTER:
+                setRpcHandler(call.argument("method"), true);
+                result.success(0);
+                break;
+            case METHOD_RPC_UNREGISTER:
+                setRpcHandler(call.argument("method"), false);
+                result.success(0);
+                break;
+            case METHOD_RPC_RESPOND:
+                Number respondCallId = call.argument("callId");
+                if (respondCallId == null) {
+                    result.error("INVALID_ARGUMENT", "callId is required", null);
+                    break;
+                }
+                byte[] respondPayload = call.argument("payload");
+                DataChannelPeerConnectionClient respondClient = mConnectionClient;
+                if (respondClient != null) {
+                    respondClient.getRpcEndpoint().respond(respondCallId.longValue(),
+                            call.argument("error"),
+                            respondPayload == null ? new byte[0] : respondPayload);
+                }
+                result.success(0);
+                break;
+            case METHOD_GET_RPC_METRICS:
+                DataChannelPeerConnectionClient metricsClient = mConnectionClient;
+                result.success(metricsClient == null
+                               ? null
+                               : metricsClient.getRpcEndpoint().getMetrics());
+                break;
+            case METHOD_SET_TOPIC_SUBSCRIPTIONS:
+                List<String> topics = call.argument("topics");
+                try {
+                    setTopicSubscriptions(topics == null ? new ArrayList<>() : topics);
+                    result.success(0);
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_TOPIC", e.getMessage(), null);
+                }
+                break;
+            case METHOD_GET_TOPIC_METRICS:
+                DataChannelPeerConnectionClient topicClient = mConnectionClient;
+                result.success(topicClient == null
+                               ? null
+                               : topicClient.getTopicRouter().getMetrics());
+                break;
+            case METHOD_REPLICATED_PUT:
+            case METHOD_REPLICATED_REMOVE:
+                String key = call.argument("key");
+                if (key == null) {
+                    result.error("INVALID_KEY", "key is required", null);
+                    break;
+                }
+                try {
+                    mReplicatedMap.put(key, METHOD_REPLICATED_PUT.equals(call.method)
+                                            ? call.argument("value")
+                                            : null);
+                    result.success(0);
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_KEY", e.getMessage(), null);
+                }
+                break;
+            case METHOD_GET_REPLICATED_MAP:
+                result.success(mReplicatedMap.snapshot());
+                break;
+            case METHOD_GET_REPLICATED_MAP_METRICS:
+                result.success(mReplicatedMap.getMetrics());
+                break;
+            case METHOD_CONFIGURE_PACING:
+                Number minRate = call.argument("minBytesPerSec");
+                Number maxRate = call.argument("maxBytesPerSec");
+                try {
+                    configurePacing(!Boolean.FALSE.equals(call.argument("enabled")),
+                            minRate == null ? SendPacer.DEFAULT_MIN_RATE : minRate.longValue(),
+                            maxRate == null ? SendPacer.DEFAULT_MAX_RATE : maxRate.longValue());
+                    result.success(0);
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", e.getMessage(), null);
+                }
+                break;
+            case METHOD_CONFIGURE_HEARTBEAT:
+                Number intervalMs = call.argument("intervalMs");
+                Integer missThreshold = call.argument("missThreshold");
+                try {
+                    configureHeartbeat(Boolean.TRUE.equals(call.argument("enabled")),
+                            intervalMs == null
+                            ? Heartbeat.DEFAULT_INTERVAL_MS
+                            : intervalMs.longValue(),
+                            missThreshold == null
+                            ? Heartbeat.DEFAULT_MISS_THRESHOLD
+                            : missThreshold);
+                    result.success(0);
+                } catch (IllegalArgumentException e) {
+                    result.error("INVALID_ARGUMENT", e.getMessage(), null);
+                }
+                break;
+            case METHOD_GET_HEARTBEAT_METRICS:
+                DataChannelPeerConnectionClient heartbeatClient = mConnectionClient;
+                result.success(heartbeatClient == null
+                               ? null
+                               : heartbeatClient.getHeartbeat().getMetrics());
+                break;
+            case METHOD_GET_DELIVERY_METRICS:
+                result.success(mDataBatcher.getMetrics());
+                break;
+            case METHOD_GET_RUNTIME_METRICS:
+                result.success(EventLoops.get().getMetrics());
+                break;
+            case METHOD_DISPOSE:
+                dispose();
+                result.success(0);
+                break;
+            case METHOD_CONFIGURE_STANDBY:
+                Number graceMs = call.argument("graceMs");
+                configureStandby(graceMs == null ? 0 : graceMs.longValue());
+                result.success(0);
+                break;
+            case METHOD_CONFIGURE_ICE_POLICY:
+                String iceMode = call.argument("mode");
+                List<String> candidateTypes = call.argument("candidateTypes");
+                Number srflxTimeoutMs = call.argument("srflxTimeoutMs");
+                Number relayTimeoutMs = call.argument("relayTimeoutMs");
+                configureIcePolicy("hostOnly".equals(iceMode)
+                                   ? IcePolicy.Mode.HOST_ONLY
+                                   : "relayOnly".equals(iceMode)
+                                     ? IcePolicy.Mode.RELAY_ONLY
+                                     : IcePolicy.Mode.ALL,
+                        Boolean.TRUE.equals(call.argument("tcpCandidates")),
+                        !Boolean.FALSE.equals(call.argument("continualGathering")),
+                        candidateTypes == null
+                        ? new HashSet<>()
+                        : new HashSet<>(candidateTypes),
+                        srflxTimeoutMs == null ? 0 : srflxTimeoutMs.longValue(),
+                        relayTimeoutMs == null ? 0 : relayTimeoutMs.longValue());
+                result.success(0);
+                break;
+            case METHOD_GET_ICE_METRICS:
+                DataChannelPeerConnectionClient iceClient = mConnectionClient;
+                result.success(iceClient == null ? null : iceClient.getIcePolicy().getMetrics());
+                break;
+            case METHOD_CONFIGURE_SDP:
+                configureSdp(Boolean.TRUE.equals(call.argument("dataOnly")),
+                        Boolean.TRUE.equals(call.argument("compress")));
                 result.success(0);
                 break;
             default:
@@ -80,34 +474,447 @@ public class WebRTCDataChannelPlugin
         }
     }
 
+    /**
+     * Data frames are exchanged with Dart over a dedicated {@link BinaryCodec} channel, see
+     * {@link DataFrames} for the format. The reply holds the number of rejected frames as a
+     * big endian u32.
+     */
     @Override
-    public void onListen(final Object arguments, final EventChannel.EventSink events) {
-        mEventSink = events;
-    }
-
-    @Override
-    public void onCancel(final Object arguments) {
-        mEventSink = null;
+    public void onMessage(ByteBuffer message, BasicMessageChannel.Reply<ByteBuffer> reply) {
+        int rejected = 0;
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (connectionClient != null && message != null) {
+            rejected = connectionClient.sendFrames(message, mSession);
+        }
+        // the buffer is sent as is, its position marks the message size
+        ByteBuffer result = ByteBuffer.allocateDirect(4);
+        result.putInt(rejected);
+        reply.reply(result);
     }
 
-    public void connectToRoom(String roomUrl, String roomId) {
-        mConnectionClient = new DataChannelPeerConnectionClient(mRegistrar.context());
+    /**
+     * @return the session id, which is used to tag data frames of this connection, it's the
+     * same one if a session in standby is reattached.
+     */
+    public int connectToRoom(String roomUrl, String roomId,
+            SignalingTransport.Type signalingTransport, boolean sharedWebSocket,
+            DataChannelPeerConnectionClient.DataChannelParameters dataChannelParameters) {
+        String standbyKey = roomUrl + "|" + roomId + "|" + signalingTransport + "|"
+                            + sharedWebSocket + "|" + dataChannelParameters.negotiated + "|"
+                            + dataChannelParameters.id;
+        if (mStandby) {
+            if (standbyKey.equals(mStandbyKey)) {
+                reattach();
+                return mSession;
+            }
+            releaseSession();
+        }
+        mStandbyKey = standbyKey;
+        mIceConnected = false;
+        mDataChannelParameters = dataChannelParameters;
+        // 16 bits in data frame header
+        mSession = (mSession + 1) & 0xFFFF;
+        FlightRecorder.setSession(mSession);
+        // signaling and the peer connection of a session share one loop
+        EventLoops.Loop loop = EventLoops.get().pick();
+        mLoop = loop;
+        mConnectionClient = new DataChannelPeerConnectionClient(mRegistrar.context(),
+                loop.newExecutor());
         mConnectionClient.createPcFactory();
-        mAppRTCClient = new WebSocketRTCClient(this);
+        mConnectionClient.configurePreOpenQueue(mPreOpenQueueMaxBytes, mPreOpenQueuePolicy,
+                PreOpenQueue.DEFAULT_MAX_BLOCK_MS);
+        mConnectionClient.configurePacing(mPacingEnabled, mPacingMinRate, mPacingMaxRate);
+        mConnectionClient.setDataOnlySdp(mDataOnlySdp);
+        mConnectionClient.getIcePolicy().configure(mIceMode, mIceTcpCandidates,
+                mIceContinualGathering, mIceCandidateTypes, mIceSrflxTimeoutMs,
+                mIceRelayTimeoutMs);
+        mConnectionClient.getHeartbeat().configure(mHeartbeatEnabled, mHeartbeatIntervalMs,
+                mHeartbeatMissThreshold);
+        if (mRtcEventLogEnabled) {
+            mConnectionClient.startRtcEventLog(rtcEventLogDir(), mRtcEventLogSegmentMaxBytes,
+                    mRtcEventLogTotalBudgetBytes);
+        }
+        for (String method : mRpcMethods) {
+            mConnectionClient.getRpcEndpoint().setHandler(method, this::onRpcRequest);
+        }
+        // even if empty, so the peer doesn't send every topic to a client subscribed to none
+        mConnectionClient.getTopicRouter().setSubscriptions(mTopics);
+        mReplicatedMap.attach(mConnectionClient);
+        WebSocketRTCClient appRTCClient = new WebSocketRTCClient(this, loop.getHandler());
+        appRTCClient.setSdpCompression(mSdpCompression);
+        mAppRTCClient = appRTCClient;
 
         AppRTCClient.RoomConnectionParameters params = new AppRTCClient.RoomConnectionParameters(
-                roomUrl, roomId, false, "");
+                roomUrl, roomId, false, "", signalingTransport, sharedWebSocket);
         mAppRTCClient.connectToRoom(params);
+        return mSession;
+    }
+
+    /**
+     * Deliver received messages to Dart as batches on the main looper, once per UI frame (when
+     * {@code maxDelayMs} is 0) or per {@code maxDelayMs}, or every {@code maxBatchSize}
+     * messages. When disabled, they are delivered as soon as the main looper gets to them,
+     * still one hand-off for all messages received meanwhile. Must be called on the main thread.
+     */
+    public void setEventBatching(boolean enabled, int maxBatchSize, int maxDelayMs) {
+        EventBatcher oldDataBatcher = mDataBatcher;
+        mDataBatcher = enabled
+                       ? new EventBatcher(maxBatchSize, maxDelayMs, this::sendFrames)
+                       : new EventBatcher(DEFAULT_MAX_BATCH_SIZE, EventBatcher.DELAY_NONE,
+                               this::sendFrames);
+        oldDataBatcher.flush();
+    }
+
+    /**
+     * Record signaling, peer connection and data channel events into a ring of
+     * {@code capacity} events, it's dumped on error or by {@link #dumpFlightRecorder(Result)}.
+     */
+    public void setFlightRecorder(boolean enabled, int capacity) {
+        if (enabled) {
+            FlightRecorder.enable(capacity);
+        } else {
+            FlightRecorder.disable();
+        }
+    }
+
+    /**
+     * Dump the flight recorder on a background thread, {@code result} gets the dump file path,
+     * or null if it's disabled.
+     */
+    public void dumpFlightRecorder(Result result) {
+        EventLoops.get().io().execute(() -> {
+            try {
+                File file = FlightRecorder.dump(flightRecorderDir());
+                String path = file == null ? null : file.getAbsolutePath();
+                mMainHandler.post(() -> result.success(path));
+            } catch (IOException e) {
+                mMainHandler.post(() -> result.error("IO_ERROR", e.getMessage(), null));
+            }
+        });
+    }
+
+    /**
+     * Bound the queue of messages sent before the data channel is OPEN, for the current and
+     * later connections.
+     *
+     * @param policy {@link PreOpenQueue.OverflowPolicy#REJECT} or
+     * {@link PreOpenQueue.OverflowPolicy#DROP_OLDEST}, blocking would block the main thread.
+     * @see PreOpenQueue
+     */
+    public void configurePreOpenQueue(long maxBytes, PreOpenQueue.OverflowPolicy policy) {
+        if (policy == PreOpenQueue.OverflowPolicy.BLOCK) {
+            throw new IllegalArgumentException("BLOCK would block the main thread");
+        }
+        mPreOpenQueueMaxBytes = maxBytes;
+        mPreOpenQueuePolicy = policy;
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (connectionClient != null) {
+            connectionClient.configurePreOpenQueue(maxBytes, policy,
+                    PreOpenQueue.DEFAULT_MAX_BLOCK_MS);
+        }
+    }
+
+    /**
+     * Pace interactive and bulk messages of the current and later connections, at a rate
+     * adapted between {@code minRate} and {@code maxRate} bytes per second.
+     *
+     * @throws IllegalArgumentException if {@code minRate} isn't positive or {@code maxRate} is
+     * less than it.
+     * @see SendPacer
+     */
+    public void configurePacing(boolean enabled, long minRate, long maxRate) {
+        SendPacer.checkRates(minRate, maxRate);
+        mPacingEnabled = enabled;
+        mPacingMinRate = minRate;
+        mPacingMaxRate = maxRate;
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (connectionClient != null) {
+            connectionClient.configurePacing(enabled, minRate, maxRate);
+        }
+    }
+
+    /**
+     * Ping the peer every {@code intervalMs} once the data channel is open, for the current and
+     * later connections, it's reported unresponsive after {@code missThreshold} missed pongs.
+     *
+     * @throws IllegalArgumentException if {@code intervalMs} isn't positive.
+     * @see Heartbeat
+     */
+    public void configureHeartbeat(boolean enabled, long intervalMs, int missThreshold) {
+        Heartbeat.checkInterval(intervalMs);
+        mHeartbeatEnabled = enabled;
+        mHeartbeatIntervalMs = intervalMs;
+        mHeartbeatMissThreshold = missThreshold;
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (connectionClient != null) {
+            connectionClient.getHeartbeat().configure(enabled, intervalMs, missThreshold);
+        }
+    }
+
+    /**
+     * Call {@code method} on the peer, {@code result} gets the response payload, or an error
+     * with one of the {@code RpcEndpoint.ERROR_*} codes.
+     *
+     * @throws IllegalArgumentException if {@code callId} or {@code timeoutMs} is out of range.
+     * @see RpcEndpoint
+     */
+    public void rpcCall(long callId, String method, byte[] payload, long timeoutMs,
+            int priority, Result result) {
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (connectionClient == null) {
+            result.error(RpcEndpoint.ERROR_CLOSED, "Not connected", null);
+            return;
+        }
+        connectionClient.getRpcEndpoint().call(callId, method,
+                payload == null ? new byte[0] : payload, timeoutMs, priority,
+                new RpcEndpoint.Callback() {
+                    @Override
+                    public void onResponse(byte[] response) {
+                        mMainHandler.post(() -> result.success(response));
+                    }
+
+                    @Override
+                    public void onError(String error, String message) {
+                        mMainHandler.post(() -> result.error(error, message, null));
+                    }
+                });
+    }
+
+    /**
+     * Serve {@code method} from Dart, for the current and later connections, requests are
+     * delivered on the rpc_request event channel.
+     */
+    public void setRpcHandler(String method, boolean enabled) {
+        if (enabled) {
+            mRpcMethods.add(method);
+        } else {
+            mRpcMethods.remove(method);
+        }
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (connectionClient != null) {
+            connectionClient.getRpcEndpoint().setHandler(method,
+                    enabled ? this::onRpcRequest : null);
+        }
+    }
+
+    /**
+     * Replace the subscribed topics, for the current and later connections, the peer stops
+     * sending messages of other topics.
+     *
+     * @throws IllegalArgumentException if a topic is too long.
+     * @see TopicRouter
+     */
+    public void setTopicSubscriptions(List<String> topics) {
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (connectionClient != null) {
+            connectionClient.getTopicRouter().setSubscriptions(topics);
+        }
+        mTopics = topics;
+    }
+
+    /**
+     * Capture the RTC event log of current and later connections, into rotating segments of
+     * {@code segmentMaxBytes}, compressed, and capped at {@code totalBudgetBytes} on disk.
+     */
+    public void startRtcEventLog(int segmentMaxBytes, long totalBudgetBytes) {
+        mRtcEventLogEnabled = true;
+        mRtcEventLogSegmentMaxBytes = segmentMaxBytes;
+        mRtcEventLogTotalBudgetBytes = totalBudgetBytes;
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (connectionClient != null) {
+            connectionClient.startRtcEventLog(rtcEventLogDir(), segmentMaxBytes,
+                    totalBudgetBytes);
+        }
+    }
+
+    public void stopRtcEventLog() {
+        mRtcEventLogEnabled = false;
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (connectionClient != null) {
+            connectionClient.stopRtcEventLog();
+        }
     }
 
-    public void sendMessage(String message) {
+    /**
+     * {@code result} gets paths of compressed RTC event log segments, oldest first.
+     */
+    public void collectRtcEventLogs(Result result) {
+        RtcEventLog.CollectCallback callback = segments -> {
+            List<String> paths = new ArrayList<>(segments.size());
+            for (File segment : segments) {
+                paths.add(segment.getAbsolutePath());
+            }
+            mMainHandler.post(() -> result.success(paths));
+        };
         DataChannelPeerConnectionClient connectionClient = mConnectionClient;
         if (connectionClient != null) {
-            connectionClient.sendMessage(message);
+            connectionClient.collectRtcEventLogs(rtcEventLogDir(), callback);
+        } else {
+            File dir = rtcEventLogDir();
+            EventLoops.get().io().execute(
+                    () -> callback.onCollected(RtcEventLog.listCompressedSegments(dir)));
+        }
+    }
+
+    /**
+     * Start the embedded AppRTC compatible room server on a background thread, {@code result}
+     * gets the port it listens on, {@code http://<address>:<port>} is the room url.
+     */
+    public void startRoomServer(int port, Result result) {
+        EventLoops.get().io().execute(() -> {
+            try {
+                int boundPort = mRoomServer.start(port);
+                mMainHandler.post(() -> result.success(boundPort));
+            } catch (IOException | IllegalStateException e) {
+                mMainHandler.post(() -> result.error("ROOM_SERVER_ERROR", e.getMessage(), null));
+            }
+        });
+    }
+
+    /**
+     * Use the data only SDP profile, and send SDP compressed, for later connections. Compression
+     * needs a peer which understands it.
+     *
+     * @see org.appspot.apprtc.SdpCodec
+     */
+    public void configureSdp(boolean dataOnly, boolean compress) {
+        mDataOnlySdp = dataOnly;
+        mSdpCompression = compress;
+    }
+
+    /**
+     * Choose ICE candidates of the current and later connections, ICE servers and transports of
+     * the mode, TCP candidates and continual gathering take effect from the next connection,
+     * candidate filtering takes effect immediately.
+     *
+     * @see IcePolicy
+     */
+    public void configureIcePolicy(IcePolicy.Mode mode, boolean tcpCandidates,
+            boolean continualGathering, Set<String> candidateTypes, long srflxTimeoutMs,
+            long relayTimeoutMs) {
+        mIceMode = mode;
+        mIceTcpCandidates = tcpCandidates;
+        mIceContinualGathering = continualGathering;
+        mIceCandidateTypes = candidateTypes;
+        mIceSrflxTimeoutMs = srflxTimeoutMs;
+        mIceRelayTimeoutMs = relayTimeoutMs;
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (connectionClient != null) {
+            connectionClient.getIcePolicy().configure(mode, tcpCandidates, continualGathering,
+                    candidateTypes, srflxTimeoutMs, relayTimeoutMs);
+        }
+    }
+
+    /**
+     * Keep a disconnected session warm for {@code graceMs}, a reconnect to the same room in the
+     * meantime reattaches to its signaling and peer connection instead of negotiating a new
+     * one, its resources are released once the grace period expires, or as soon as ICE
+     * disconnects or fails. 0 disables it, which is the default. Must be called on the main
+     * thread.
+     */
+    public void configureStandby(long graceMs) {
+        mStandbyGraceMs = Math.max(0, graceMs);
+        if (mStandbyGraceMs == 0 && mStandby) {
+            releaseSession();
+        }
+    }
+
+    /**
+     * @return offer to answer latency in microseconds, -1 until measured, only measured by the
+     * initiator, sizes of the last local SDP as created, as minimized, and of its signaling
+     * message, -1 if none, shared WebSocket metrics keyed by {@code sharedWebSocket}, and
+     * whether the session is in {@code standby}, with the number of {@code standbyReattached}
+     * and {@code standbyExpired} ones.
+     * @see WebSocketMux#getMetrics()
+     */
+    public Map<String, Object> getSignalingMetrics() {
+        AppRTCClient appRTCClient = mAppRTCClient;
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        Map<String, Object> metrics = connectionClient == null
+                                      ? new HashMap<>()
+                                      : connectionClient.getSdpSizes();
+        if (connectionClient == null) {
+            metrics.put("localSdpBytes", -1);
+            metrics.put("minimizedSdpBytes", -1);
+        }
+        metrics.put("offerAnswerLatencyUs", appRTCClient instanceof WebSocketRTCClient
+                                            ? ((WebSocketRTCClient) appRTCClient)
+                                                    .getOfferAnswerLatencyUs()
+                                            : -1L);
+        metrics.put("sdpMessageBytes", appRTCClient instanceof WebSocketRTCClient
+                                       ? ((WebSocketRTCClient) appRTCClient)
+                                               .getSdpMessageBytes()
+                                       : -1);
+        metrics.put("sharedWebSocket", WebSocketMux.getMetrics());
+        metrics.put("standby", mStandby);
+        metrics.put("standbyReattached", mStandbyReattachCount);
+        metrics.put("standbyExpired", mStandbyExpireCount);
+        return metrics;
+    }
+
+    /**
+     * Disconnect, stop the room server, and stop the shared threads once the disconnection is
+     * done, they are started again by the next connection.
+     */
+    public void dispose() {
+        EventLoops.Loop loop = mLoop;
+        mLoop = null;
+        releaseSession();
+        mRoomServer.stop();
+        Runnable shutdown = () -> {
+            WebSocketMux.closeIdle();
+            EventLoops.shutdown();
+        };
+        if (loop != null) {
+            // after the disconnection queued on the session's loop, which detaches it from a
+            // shared WebSocket
+            loop.getHandler().post(shutdown);
+        } else {
+            shutdown.run();
         }
     }
 
+    /**
+     * Disconnect from the room, or put the session in standby if it's configured.
+     *
+     * @see #configureStandby(long)
+     */
     public void disconnect() {
+        if (mStandby) {
+            return;
+        }
+        if (mStandbyGraceMs > 0 && mConnectionClient != null) {
+            // inbound messages are dropped and outbound ones are up to Dart meanwhile
+            mStandby = true;
+            mReplicatedMap.detach();
+            mMainHandler.postDelayed(mStandbyExpiry, mStandbyGraceMs);
+            mSignalingStateStream.success(SIGNALING_STATE_DISCONNECTED);
+            return;
+        }
+        releaseSession();
+    }
+
+    private void reattach() {
+        mMainHandler.removeCallbacks(mStandbyExpiry);
+        mStandby = false;
+        mStandbyReattachCount++;
+        mReplicatedMap.attach(mConnectionClient);
+        mSignalingStateStream.success(SIGNALING_STATE_CONNECTED);
+        if (mIceConnected) {
+            mIceStateStream.success(PeerConnection.IceConnectionState.CONNECTED.ordinal());
+        }
+    }
+
+    private void releaseStandby() {
+        if (mStandby) {
+            releaseSession();
+        }
+    }
+
+    private void releaseSession() {
+        mMainHandler.removeCallbacks(mStandbyExpiry);
+        mStandby = false;
+        mReplicatedMap.detach();
         AppRTCClient appRTCClient = mAppRTCClient;
         if (appRTCClient != null) {
             appRTCClient.disconnectFromRoom();
@@ -128,10 +935,10 @@ public class WebRTCDataChannelPlugin
             return;
         }
 
-        notifyEvent(EVENT_TYPE_SIGNALING_STATE, "state", SIGNALING_STATE_CONNECTED);
+        mMainHandler.post(() -> mSignalingStateStream.success(SIGNALING_STATE_CONNECTED));
 
         mInitiator = params.initiator;
-        connectionClient.createPc(params, this);
+        connectionClient.createPc(params, mDataChannelParameters, this);
 
         if (params.initiator) {
             connectionClient.createOffer();
@@ -178,7 +985,13 @@ public class WebRTCDataChannelPlugin
 
     @Override
     public void onChannelClose() {
-        disconnect();
+        // the room is gone, nothing to reattach to
+        AppRTCClient closed = mAppRTCClient;
+        mMainHandler.post(() -> {
+            if (mAppRTCClient == closed) {
+                releaseSession();
+            }
+        });
     }
 
     @Override
@@ -212,19 +1025,31 @@ public class WebRTCDataChannelPlugin
 
     @Override
     public void onIceConnected() {
-        notifyEvent(EVENT_TYPE_ICE_STATE, "state",
-                PeerConnection.IceConnectionState.CONNECTED.ordinal());
+        mIceConnected = true;
+        mMainHandler.post(() -> {
+            // Dart saw the session disconnect, reattach() tells it the ICE state
+            if (!mStandby) {
+                mIceStateStream.success(PeerConnection.IceConnectionState.CONNECTED.ordinal());
+            }
+        });
     }
 
     @Override
     public void onIceDisconnected() {
-        notifyEvent(EVENT_TYPE_ICE_STATE, "state",
-                PeerConnection.IceConnectionState.DISCONNECTED.ordinal());
+        mIceConnected = false;
+        mMainHandler.post(() -> {
+            if (mStandby) {
+                // a reattach would get a dead transport, FAILED is released by the error
+                releaseStandby();
+                return;
+            }
+            mIceStateStream.success(PeerConnection.IceConnectionState.DISCONNECTED.ordinal());
+        });
     }
 
     @Override
     public void onPeerConnectionClosed() {
-        notifyEvent(EVENT_TYPE_SIGNALING_STATE, "state", SIGNALING_STATE_DISCONNECTED);
+        mMainHandler.post(() -> mSignalingStateStream.success(SIGNALING_STATE_DISCONNECTED));
     }
 
     @Override
@@ -233,29 +1058,107 @@ public class WebRTCDataChannelPlugin
 
     @Override
     public void onPeerConnectionError(String description) {
+        if (mStandby) {
+            mMainHandler.post(this::releaseStandby);
+        }
         notifyError(description);
     }
 
     @Override
-    public void onMessage(String message) {
-        notifyEvent(EVENT_TYPE_MESSAGE, "message", message);
+    public void onMessage(byte[] message, boolean binary) {
+        if (!mMessageListening || mStandby) {
+            return;
+        }
+        postFrame(binary ? DataFrames.FLAG_BINARY : 0, message);
+    }
+
+    @Override
+    public void onTopicMessage(byte[] topicMessage) {
+        if (mStandby) {
+            return;
+        }
+        postFrame(DataFrames.FLAG_TOPIC, topicMessage);
+    }
+
+    @Override
+    public void onPeerUnresponsive(boolean unresponsive) {
+        if (unresponsive && mStandby) {
+            // no point keeping a dead peer warm
+            mMainHandler.post(this::releaseStandby);
+        }
+        mMainHandler.post(() -> mPeerUnresponsiveStream.success(unresponsive));
     }
 
-    private void notifyEvent(int type, String key, Object value) {
-        EventChannel.EventSink eventSink = mEventSink;
-        if (eventSink != null) {
-            Map<String, Object> event = new HashMap<>();
-            event.put("type", type);
-            event.put(key, value);
-            eventSink.success(event);
+    @Override
+    public void onObjectMessage(byte[] encoded) {
+        if (mMessageListening && !mStandby) {
+            // decoded by Dart, it's the same codec
+            postFrame(DataFrames.FLAG_OBJECT, encoded);
         }
     }
 
+    /**
+     * Deliver an inbound RPC request to Dart as {@code [callId, method, payload]}, it's answered
+     * by {@link #METHOD_RPC_RESPOND}.
+     */
+    private void onRpcRequest(long callId, String method, byte[] payload) {
+        DataChannelPeerConnectionClient connectionClient = mConnectionClient;
+        if (!mRpcRequestStream.hasListener()) {
+            if (connectionClient != null) {
+                connectionClient.getRpcEndpoint().respond(callId, "No listener", new byte[0]);
+            }
+            return;
+        }
+        List<Object> request = new ArrayList<>(3);
+        request.add(callId);
+        request.add(method);
+        request.add(payload);
+        mMainHandler.post(() -> mRpcRequestStream.success(request));
+    }
+
+    /**
+     * Called on the data channel thread, straight from its callback, it's the only hand-off of
+     * an inbound message.
+     */
+    private void postFrame(int flags, byte[] payload) {
+        // stamp the session now, it may change before the frame is flushed
+        mDataBatcher.post((mSession << 8) | flags, payload);
+    }
+
+    /**
+     * Send {@code [session << 8 | flags, payload]} pairs to Dart as one data message, must be
+     * called on the main thread.
+     */
+    private void sendFrames(List<Object> frames) {
+        int size = 0;
+        for (int i = 1; i < frames.size(); i += 2) {
+            size += DataFrames.frameSize(((byte[]) frames.get(i)).length);
+        }
+        // the buffer is sent as is, its position marks the message size
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < frames.size(); i += 2) {
+            int tag = (Integer) frames.get(i);
+            DataFrames.write(buffer, tag >>> 8, 0, tag & 0xFF, (byte[]) frames.get(i + 1));
+        }
+        mDataChannel.send(buffer);
+    }
+
+    private File rtcEventLogDir() {
+        return new File(mRegistrar.context().getCacheDir(), RTC_EVENT_LOG_DIR);
+    }
+
+    private File flightRecorderDir() {
+        return new File(mRegistrar.context().getCacheDir(), FLIGHT_RECORDER_DIR);
+    }
+
     private void notifyError(String error) {
-        EventChannel.EventSink eventSink = mEventSink;
-        if (eventSink != null) {
-            eventSink.error("", error, null);
-            eventSink.endOfStream();
+        if (FlightRecorder.isEnabled()) {
+            File dir = flightRecorderDir();
+            EventLoops.get().io().execute(() -> FlightRecorder.dumpOnError(dir));
         }
+        mMainHandler.post(() -> {
+            mSignalingStateStream.error(error);
+            mIceStateStream.error(error);
+        });
     }
 }
@@ -27,12 +27,26 @@ public interface AppRTCClient {
     public final String roomId;
     public final boolean loopback;
     public final String urlParameters;
-    public RoomConnectionParameters(
-        String roomUrl, String roomId, boolean loopback, String urlParameters) {
+    public final SignalingTransport.Type signalingTransport;
+    // Register on the WebSocket shared by all rooms on the server, see WebSocketMux.
+    public final boolean sharedWebSocket;
+    public RoomConnectionParameters(String roomUrl, String roomId, boolean loopback,
+        String urlParameters, SignalingTransport.Type signalingTransport,
+        boolean sharedWebSocket) {
       this.roomUrl = roomUrl;
       this.roomId = roomId;
       this.loopback = loopback;
       this.urlParameters = urlParameters;
+      this.signalingTransport = signalingTransport;
+      this.sharedWebSocket = sharedWebSocket;
+    }
+    public RoomConnectionParameters(String roomUrl, String roomId, boolean loopback,
+        String urlParameters, SignalingTransport.Type signalingTransport) {
+      this(roomUrl, roomId, loopback, urlParameters, signalingTransport, false);
+    }
+    public RoomConnectionParameters(
+        String roomUrl, String roomId, boolean loopback, String urlParameters) {
+      this(roomUrl, roomId, loopback, urlParameters, SignalingTransport.Type.ROOM_SERVER);
     }
     public RoomConnectionParameters(String roomUrl, String roomId, boolean loopback) {
       this(roomUrl, roomId, loopback, null /* urlParameters */);
@@ -0,0 +1,682 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Base64;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Minimal AppRTC compatible signaling server, for LAN use and offline tests.
+ *
+ * <p>It serves the room server HTTP endpoints ({@code POST /join/<room>},
+ * {@code POST /message/<room>/<client>}, {@code POST /leave/<room>/<client>}) and the
+ * WebSocket server ({@code /ws} with register and send commands, plus {@code POST} and
+ * {@code DELETE /<room>/<client>}) on a single port, so {@link WebSocketRTCClient} works
+ * unchanged with {@code http://<host>:<port>} as room url.
+ *
+ * <p>Like AppRTC, messages of a client alone in its room are handed to the next client in the
+ * join response, and messages to a client which hasn't registered its WebSocket yet are queued
+ * until it registers. Each connection is served by its own thread, which is fine for the
+ * handful of clients it's meant for.
+ *
+ * <p>A WebSocket may register several clients, for {@link WebSocketMux}: sends name the
+ * registration with {@code roomid} and {@code clientid}, defaulting to the last one, and
+ * messages to a client are tagged with its ids.
+ */
+public class EmbeddedRoomServer {
+  private static final String TAG = "EmbeddedRoomServer";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+  private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final int MAX_CLIENTS_PER_ROOM = 2;
+  private static final int MAX_LINE_BYTES = 8192;
+  private static final int MAX_BODY_BYTES = 1 << 20;
+
+  private static final int OPCODE_CONTINUATION = 0x0;
+  private static final int OPCODE_TEXT = 0x1;
+  private static final int OPCODE_CLOSE = 0x8;
+  private static final int OPCODE_PING = 0x9;
+  private static final int OPCODE_PONG = 0xA;
+
+  private final Object lock = new Object();
+  // Guarded by lock.
+  private final Map<String, Room> rooms = new HashMap<>();
+  private final Set<Socket> sockets = new HashSet<>();
+  private final SecureRandom random = new SecureRandom();
+  private ServerSocket serverSocket;
+
+  private static class Room {
+    final Map<String, Client> clients = new HashMap<>();
+  }
+
+  private static class Client {
+    final String id;
+    // Messages sent while alone in the room, handed to the next client on join.
+    final List<String> savedMessages = new ArrayList<>();
+    // Messages sent to this client before it registered its WebSocket.
+    final List<String> pendingMessages = new ArrayList<>();
+    WebSocketConnection webSocket;
+
+    Client(String id) {
+      this.id = id;
+    }
+  }
+
+  /**
+   * Start listening on all interfaces.
+   *
+   * @param port 0 to pick a free port.
+   * @return the port it listens on.
+   */
+  public int start(int port) throws IOException {
+    ServerSocket socket = new ServerSocket();
+    socket.setReuseAddress(true);
+    socket.bind(new InetSocketAddress(port));
+    synchronized (lock) {
+      if (serverSocket != null) {
+        socket.close();
+        throw new IllegalStateException("Already started");
+      }
+      serverSocket = socket;
+    }
+    final ServerSocket acceptSocket = socket;
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptLoop(acceptSocket);
+      }
+    }, TAG).start();
+    Log.d(TAG, "Listening on port " + socket.getLocalPort());
+    return socket.getLocalPort();
+  }
+
+  /**
+   * Stop listening and close all connections, rooms are dropped.
+   */
+  public void stop() {
+    List<Socket> toClose;
+    ServerSocket toStop;
+    synchronized (lock) {
+      toStop = serverSocket;
+      serverSocket = null;
+      toClose = new ArrayList<>(sockets);
+      sockets.clear();
+      rooms.clear();
+    }
+    if (toStop != null) {
+      closeQuietly(toStop);
+    }
+    for (Socket socket : toClose) {
+      closeQuietly(socket);
+    }
+  }
+
+  public boolean isRunning() {
+    synchronized (lock) {
+      return serverSocket != null;
+    }
+  }
+
+  private void acceptLoop(ServerSocket acceptSocket) {
+    while (true) {
+      final Socket socket;
+      try {
+        socket = acceptSocket.accept();
+      } catch (IOException e) {
+        // closed by stop()
+        return;
+      }
+      synchronized (lock) {
+        if (serverSocket != acceptSocket) {
+          closeQuietly(socket);
+          return;
+        }
+        sockets.add(socket);
+      }
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          serve(socket);
+        }
+      }, TAG + "-connection").start();
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      socket.setTcpNoDelay(true);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      // HttpURLConnection may keep the connection alive for several requests.
+      while (true) {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty()) {
+          return;
+        }
+        Map<String, String> headers = readHeaders(in);
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+          writeResponse(out, 400, "Bad Request", "");
+          return;
+        }
+        if ("websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+          serveWebSocket(in, out, headers);
+          return;
+        }
+        int contentLength = parseContentLength(headers.get("content-length"));
+        if (contentLength < 0 || contentLength > MAX_BODY_BYTES) {
+          writeResponse(out, 413, "Payload Too Large", "");
+          return;
+        }
+        byte[] body = new byte[contentLength];
+        readFully(in, body);
+        handleHttp(out, parts[0], parts[1], headers.get("host"), new String(body, UTF_8));
+        if ("close".equalsIgnoreCase(headers.get("connection"))) {
+          return;
+        }
+      }
+    } catch (IOException e) {
+      Log.d(TAG, "Connection closed: " + e.getMessage());
+    } catch (RuntimeException e) {
+      // a malformed request must not take the app down with this thread
+      Log.e(TAG, "Connection failed", e);
+    } finally {
+      synchronized (lock) {
+        sockets.remove(socket);
+      }
+      closeQuietly(socket);
+    }
+  }
+
+  // --------------------------------------------------------------------
+  // Room server.
+  private void handleHttp(OutputStream out, String method, String target, String host,
+      String body) throws IOException {
+    int query = target.indexOf('?');
+    String path = query < 0 ? target : target.substring(0, query);
+    String[] segments = path.split("/");
+    // segments[0] is empty since path starts with "/"
+    String action = segments.length > 1 ? segments[1] : "";
+    String response = null;
+    if ("POST".equals(method) && "join".equals(action) && segments.length == 3) {
+      response = join(segments[2], host);
+    } else if ("POST".equals(method) && "message".equals(action) && segments.length == 4) {
+      route(segments[2], segments[3], body);
+      response = "{\"result\": \"SUCCESS\"}";
+    } else if ("POST".equals(method) && "leave".equals(action) && segments.length == 4) {
+      leave(segments[2], segments[3]);
+      response = "";
+    } else if ("POST".equals(method) && segments.length == 3) {
+      // WebSocket server POST
+      route(segments[1], segments[2], body);
+      response = "";
+    } else if ("DELETE".equals(method) && segments.length == 3) {
+      // WebSocket server DELETE
+      unregister(segments[1], segments[2], null);
+      response = "";
+    }
+    if (response == null) {
+      writeResponse(out, 404, "Not Found", "");
+    } else {
+      writeResponse(out, 200, "OK", response);
+    }
+  }
+
+  private String join(String roomId, String host) {
+    String clientId;
+    boolean initiator;
+    JSONArray messages = new JSONArray();
+    synchronized (lock) {
+      Room room = rooms.get(roomId);
+      if (room == null) {
+        room = new Room();
+        rooms.put(roomId, room);
+      }
+      if (room.clients.size() >= MAX_CLIENTS_PER_ROOM) {
+        return "{\"result\": \"FULL\"}";
+      }
+      initiator = room.clients.isEmpty();
+      for (Client other : room.clients.values()) {
+        for (String message : other.savedMessages) {
+          messages.put(message);
+        }
+        other.savedMessages.clear();
+      }
+      do {
+        clientId = String.valueOf(10000000 + random.nextInt(90000000));
+      } while (room.clients.containsKey(clientId));
+      room.clients.put(clientId, new Client(clientId));
+    }
+    Log.d(TAG, "Client " + clientId + " joined room " + roomId);
+    try {
+      JSONObject pcConfig = new JSONObject();
+      pcConfig.put("iceServers", new JSONArray());
+      JSONObject params = new JSONObject();
+      params.put("room_id", roomId);
+      params.put("client_id", clientId);
+      params.put("wss_url", "ws://" + host + "/ws");
+      params.put("wss_post_url", "http://" + host);
+      params.put("is_initiator", initiator);
+      params.put("messages", messages);
+      params.put("pc_config", pcConfig);
+      params.put("ice_server_url", "");
+      JSONObject response = new JSONObject();
+      response.put("result", "SUCCESS");
+      response.put("params", params);
+      return response.toString();
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void leave(String roomId, String clientId) {
+    WebSocketConnection webSocket = null;
+    synchronized (lock) {
+      Room room = rooms.get(roomId);
+      if (room == null) {
+        return;
+      }
+      Client client = room.clients.remove(clientId);
+      if (client != null) {
+        webSocket = client.webSocket;
+      }
+      if (room.clients.isEmpty()) {
+        rooms.remove(roomId);
+      }
+    }
+    Log.d(TAG, "Client " + clientId + " left room " + roomId);
+    if (webSocket != null) {
+      webSocket.close();
+    }
+  }
+
+  /**
+   * Deliver {@code message} from {@code clientId} to the other client of the room.
+   */
+  private void route(String roomId, String clientId, String message) {
+    WebSocketConnection target = null;
+    String targetId = null;
+    synchronized (lock) {
+      Room room = rooms.get(roomId);
+      Client sender = room == null ? null : room.clients.get(clientId);
+      if (sender == null) {
+        Log.w(TAG, "Message from unknown client " + clientId + " of room " + roomId);
+        return;
+      }
+      Client other = null;
+      for (Client client : room.clients.values()) {
+        if (client != sender) {
+          other = client;
+        }
+      }
+      if (other == null) {
+        sender.savedMessages.add(message);
+      } else if (other.webSocket == null) {
+        other.pendingMessages.add(message);
+      } else {
+        target = other.webSocket;
+        targetId = other.id;
+      }
+    }
+    if (target != null) {
+      target.sendMessage(roomId, targetId, message);
+    }
+  }
+
+  private void register(String roomId, String clientId, WebSocketConnection webSocket) {
+    List<String> pending;
+    synchronized (lock) {
+      Room room = rooms.get(roomId);
+      Client client = room == null ? null : room.clients.get(clientId);
+      if (client == null) {
+        pending = null;
+      } else {
+        client.webSocket = webSocket;
+        pending = new ArrayList<>(client.pendingMessages);
+        client.pendingMessages.clear();
+      }
+    }
+    if (pending == null) {
+      webSocket.sendError(roomId, clientId, "Unknown client " + clientId + " of room " + roomId);
+      return;
+    }
+    for (String message : pending) {
+      webSocket.sendMessage(roomId, clientId, message);
+    }
+  }
+
+  /**
+   * @param webSocket only unregister if it's still the registered one, null for any.
+   */
+  private void unregister(String roomId, String clientId, WebSocketConnection webSocket) {
+    synchronized (lock) {
+      Room room = rooms.get(roomId);
+      Client client = room == null ? null : room.clients.get(clientId);
+      if (client != null && (webSocket == null || client.webSocket == webSocket)) {
+        client.webSocket = null;
+      }
+    }
+  }
+
+  // --------------------------------------------------------------------
+  // WebSocket server.
+  private void serveWebSocket(InputStream in, OutputStream out, Map<String, String> headers)
+      throws IOException {
+    String key = headers.get("sec-websocket-key");
+    if (key == null) {
+      writeResponse(out, 400, "Bad Request", "");
+      return;
+    }
+    String accept;
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      accept = Base64.encodeToString(
+          sha1.digest((key.trim() + WEBSOCKET_GUID).getBytes(ISO_8859_1)), Base64.NO_WRAP);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+    out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                   + "Upgrade: websocket\r\n"
+                   + "Connection: Upgrade\r\n"
+                   + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n")
+                  .getBytes(ISO_8859_1));
+    out.flush();
+
+    WebSocketConnection webSocket = new WebSocketConnection(out);
+    // Registrations on this WebSocket, as {room id, client id}, the last one is the default.
+    List<String[]> registrations = new ArrayList<>();
+    try {
+      ByteArrayOutputStream message = new ByteArrayOutputStream();
+      while (true) {
+        int head = in.read();
+        int lengthByte = in.read();
+        if (head < 0 || lengthByte < 0) {
+          return;
+        }
+        int opcode = head & 0x0F;
+        boolean fin = (head & 0x80) != 0;
+        long length = lengthByte & 0x7F;
+        if (length == 126) {
+          length = (readByte(in) << 8) | readByte(in);
+        } else if (length == 127) {
+          length = 0;
+          for (int i = 0; i < 8; i++) {
+            length = (length << 8) | readByte(in);
+          }
+        }
+        // RFC 6455 requires the most significant bit of a 64 bit length to be 0
+        if (length < 0 || length > MAX_BODY_BYTES || message.size() + length > MAX_BODY_BYTES) {
+          webSocket.close();
+          return;
+        }
+        byte[] mask = new byte[4];
+        if ((lengthByte & 0x80) != 0) {
+          readFully(in, mask);
+        }
+        byte[] payload = new byte[(int) length];
+        readFully(in, payload);
+        for (int i = 0; i < payload.length; i++) {
+          payload[i] ^= mask[i & 3];
+        }
+
+        if (opcode == OPCODE_CLOSE) {
+          webSocket.close();
+          return;
+        } else if (opcode == OPCODE_PING) {
+          webSocket.sendFrame(OPCODE_PONG, payload);
+          continue;
+        } else if (opcode != OPCODE_TEXT && opcode != OPCODE_CONTINUATION) {
+          continue;
+        }
+        message.write(payload);
+        if (!fin) {
+          continue;
+        }
+        String text = new String(message.toByteArray(), UTF_8);
+        message.reset();
+
+        try {
+          JSONObject json = new JSONObject(text);
+          String cmd = json.optString("cmd");
+          if ("register".equals(cmd)) {
+            String roomId = json.getString("roomid");
+            String clientId = json.getString("clientid");
+            registrations.add(new String[] {roomId, clientId});
+            register(roomId, clientId, webSocket);
+          } else if ("send".equals(cmd) && !registrations.isEmpty()) {
+            String[] sender = findRegistration(
+                registrations, json.optString("roomid"), json.optString("clientid"));
+            if (sender == null) {
+              webSocket.sendError("Send from unregistered client");
+            } else {
+              route(sender[0], sender[1], json.getString("msg"));
+            }
+          } else {
+            webSocket.sendError("Unexpected command: " + cmd);
+          }
+        } catch (JSONException e) {
+          webSocket.sendError("Invalid JSON: " + e.getMessage());
+        }
+      }
+    } finally {
+      for (String[] registration : registrations) {
+        unregister(registration[0], registration[1], webSocket);
+      }
+    }
+  }
+
+  /**
+   * @return the registration named by {@code roomId} and {@code clientId}, the last one if
+   * they are empty, or null if it's not registered on this WebSocket.
+   */
+  private static String[] findRegistration(
+      List<String[]> registrations, String roomId, String clientId) {
+    if (roomId.isEmpty() && clientId.isEmpty()) {
+      return registrations.get(registrations.size() - 1);
+    }
+    for (String[] registration : registrations) {
+      if (registration[0].equals(roomId) && registration[1].equals(clientId)) {
+        return registration;
+      }
+    }
+    return null;
+  }
+
+  private static class WebSocketConnection {
+    private final OutputStream out;
+    private boolean closed;
+
+    WebSocketConnection(OutputStream out) {
+      this.out = out;
+    }
+
+    void sendMessage(String roomId, String clientId, String message) {
+      sendJson(roomId, clientId, message, "");
+    }
+
+    void sendError(String roomId, String clientId, String error) {
+      sendJson(roomId, clientId, "", error);
+    }
+
+    // Not addressed to a registration, about the WebSocket itself.
+    void sendError(String error) {
+      sendJson(null, null, "", error);
+    }
+
+    void close() {
+      sendFrame(OPCODE_CLOSE, new byte[0]);
+      synchronized (this) {
+        closed = true;
+      }
+    }
+
+    private void sendJson(String roomId, String clientId, String message, String error) {
+      JSONObject json = new JSONObject();
+      try {
+        if (roomId != null) {
+          json.put("roomid", roomId);
+          json.put("clientid", clientId);
+        }
+        json.put("msg", message);
+        json.put("error", error);
+      } catch (JSONException e) {
+        throw new RuntimeException(e);
+      }
+      sendFrame(OPCODE_TEXT, json.toString().getBytes(UTF_8));
+    }
+
+    // Server frames are not masked.
+    synchronized void sendFrame(int opcode, byte[] payload) {
+      if (closed) {
+        return;
+      }
+      try {
+        byte[] header;
+        if (payload.length < 126) {
+          header = new byte[] {(byte) (0x80 | opcode), (byte) payload.length};
+        } else if (payload.length < 65536) {
+          header = new byte[] {(byte) (0x80 | opcode), 126, (byte) (payload.length >> 8),
+              (byte) payload.length};
+        } else {
+          header = new byte[10];
+          header[0] = (byte) (0x80 | opcode);
+          header[1] = 127;
+          for (int i = 0; i < 8; i++) {
+            header[9 - i] = (byte) ((long) payload.length >> (8 * i));
+          }
+        }
+        out.write(header);
+        out.write(payload);
+        out.flush();
+      } catch (IOException e) {
+        Log.d(TAG, "WebSocket send failed: " + e.getMessage());
+        closed = true;
+      }
+    }
+  }
+
+  // --------------------------------------------------------------------
+  // Helper functions.
+  private static void writeResponse(OutputStream out, int code, String reason, String body)
+      throws IOException {
+    byte[] content = body.getBytes(UTF_8);
+    out.write(("HTTP/1.1 " + code + " " + reason + "\r\n"
+                   + "Content-Type: application/json; charset=utf-8\r\n"
+                   + "Content-Length: " + content.length + "\r\n\r\n")
+                  .getBytes(ISO_8859_1));
+    out.write(content);
+    out.flush();
+  }
+
+  // Returns null at end of stream.
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    while (true) {
+      int b = in.read();
+      if (b < 0) {
+        return line.size() == 0 ? null : line.toString("ISO-8859-1");
+      }
+      if (b == '\n') {
+        break;
+      }
+      if (b != '\r') {
+        line.write(b);
+      }
+      if (line.size() > MAX_LINE_BYTES) {
+        throw new IOException("Line too long");
+      }
+    }
+    return line.toString("ISO-8859-1");
+  }
+
+  // Header names are lower cased.
+  private static Map<String, String> readHeaders(InputStream in) throws IOException {
+    Map<String, String> headers = new HashMap<>();
+    String line;
+    while ((line = readLine(in)) != null && !line.isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+            line.substring(colon + 1).trim());
+      }
+    }
+    return headers;
+  }
+
+  private static int parseContentLength(String value) {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new IOException("Unexpected end of stream");
+    }
+    return b;
+  }
+
+  private static void readFully(InputStream in, byte[] buffer) throws IOException {
+    int offset = 0;
+    while (offset < buffer.length) {
+      int read = in.read(buffer, offset, buffer.length - offset);
+      if (read < 0) {
+        throw new IOException("Unexpected end of stream");
+      }
+      offset += read;
+    }
+  }
+
+  // Sockets are only Closeable since API 19.
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  private static void closeQuietly(ServerSocket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+}
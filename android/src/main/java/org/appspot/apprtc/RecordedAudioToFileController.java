@@ -14,125 +14,281 @@ import android.media.AudioFormat;
 import android.os.Environment;
 import android.util.Log;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.concurrent.ExecutorService;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import org.webrtc.voiceengine.WebRtcAudioRecord;
 import org.webrtc.voiceengine.WebRtcAudioRecord.AudioSamples;
 import org.webrtc.voiceengine.WebRtcAudioRecord.WebRtcAudioRecordSamplesReadyCallback;
 
 /**
  * Implements the WebRtcAudioRecordSamplesReadyCallback interface and writes
- * recorded raw audio samples to an output file.
+ * recorded raw audio samples to rolling WAV files.
+ *
+ * <p>The audio thread copies each callback into a slot of a preallocated ring
+ * of direct buffers, it never blocks or allocates, and drops the samples if the
+ * ring is full. A single writer thread drains the ring periodically with
+ * gathered writes through a {@link FileChannel}, and starts a new segment when
+ * the current one is full or the audio format changes, keeping at most
+ * {@code maxSegments} segments.
  */
 public class RecordedAudioToFileController implements WebRtcAudioRecordSamplesReadyCallback {
   private static final String TAG = "RecordedAudioToFile";
-  private static final long MAX_FILE_SIZE_IN_BYTES = 58348800L;
+  // Approximately 10 minutes of recording in mono at 48kHz.
+  public static final long DEFAULT_SEGMENT_MAX_BYTES = 58348800L;
+  public static final int DEFAULT_MAX_SEGMENTS = 6;
+
+  // 10 ms of 16-bit stereo at 96kHz fits in a slot.
+  private static final int SLOT_BYTES = 4096;
+  // 1.28 seconds of 10 ms callbacks.
+  private static final int SLOT_COUNT = 128;
+  private static final long WRITE_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int WAV_HEADER_BYTES = 44;
+  private static final int BITS_PER_SAMPLE = 16;
+
+  private final File dir;
+  private final long segmentMaxBytes;
+  private final int maxSegments;
 
-  private final Object lock = new Object();
-  private final ExecutorService executor;
-  private OutputStream rawAudioFileOutputStream = null;
-  private long fileSizeInBytes = 0;
+  private final ByteBuffer[] slots = new ByteBuffer[SLOT_COUNT];
+  private final int[] slotSampleRates = new int[SLOT_COUNT];
+  private final int[] slotChannelCounts = new int[SLOT_COUNT];
+  // written by the audio thread only
+  private volatile long tail;
+  // written by the writer thread only
+  private volatile long head;
+  private final AtomicLong droppedCallbacks = new AtomicLong();
 
-  public RecordedAudioToFileController(ExecutorService executor) {
+  private volatile boolean running;
+  private Thread writerThread;
+
+  // only accessed on writer thread
+  private final ByteBuffer header =
+      ByteBuffer.allocateDirect(WAV_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer[] gather = new ByteBuffer[SLOT_COUNT];
+  private final LinkedList<File> segments = new LinkedList<>();
+  private FileChannel channel;
+  private long segmentDataBytes;
+  private int segmentSampleRate;
+  private int segmentChannelCount;
+
+  public RecordedAudioToFileController() {
+    this(Environment.getExternalStorageDirectory(), DEFAULT_SEGMENT_MAX_BYTES,
+        DEFAULT_MAX_SEGMENTS);
+  }
+
+  public RecordedAudioToFileController(File dir, long segmentMaxBytes, int maxSegments) {
     Log.d(TAG, "ctor");
-    this.executor = executor;
+    this.dir = dir;
+    this.segmentMaxBytes = segmentMaxBytes;
+    this.maxSegments = maxSegments;
+    for (int i = 0; i < SLOT_COUNT; i++) {
+      slots[i] = ByteBuffer.allocateDirect(SLOT_BYTES);
+    }
   }
 
   /**
-   * Should be called on the same executor thread as the one provided at
-   * construction.
+   * Should be called on the same thread as {@link #stop()}.
    */
   public boolean start() {
     Log.d(TAG, "start");
-    if (!isExternalStorageWritable()) {
-      Log.e(TAG, "Writing to external media is not possible");
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      Log.e(TAG, "Writing to " + dir + " is not possible");
       return false;
     }
+    running = true;
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "RecordedAudioWriter");
+    writerThread.start();
     // Register this class as receiver of recorded audio samples for storage.
     WebRtcAudioRecord.setOnAudioSamplesReady(this);
     return true;
   }
 
   /**
-   * Should be called on the same executor thread as the one provided at
-   * construction.
+   * Waits for queued samples to be written.
    */
   public void stop() {
     Log.d(TAG, "stop");
     // De-register this class as receiver of recorded audio samples for storage.
     WebRtcAudioRecord.setOnAudioSamplesReady(null);
-    synchronized (lock) {
-      if (rawAudioFileOutputStream != null) {
-        try {
-          rawAudioFileOutputStream.close();
-        } catch (IOException e) {
-          Log.e(TAG, "Failed to close file with saved input audio: " + e);
+    if (writerThread == null) {
+      return;
+    }
+    running = false;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writerThread = null;
+    long dropped = droppedCallbacks.getAndSet(0);
+    if (dropped > 0) {
+      Log.w(TAG, "Dropped " + dropped + " audio callbacks");
+    }
+  }
+
+  // Called on the audio thread when new audio samples are ready.
+  @Override
+  public void onWebRtcAudioRecordSamplesReady(AudioSamples samples) {
+    byte[] data = samples.getData();
+    long currentTail = tail;
+    // The native audio layer on Android should use 16-bit PCM format.
+    if (samples.getAudioFormat() != AudioFormat.ENCODING_PCM_16BIT || data.length > SLOT_BYTES
+        || currentTail - head == SLOT_COUNT) {
+      droppedCallbacks.incrementAndGet();
+      return;
+    }
+    int index = (int) (currentTail % SLOT_COUNT);
+    ByteBuffer slot = slots[index];
+    slot.clear();
+    slot.put(data);
+    slot.flip();
+    slotSampleRates[index] = samples.getSampleRate();
+    slotChannelCounts[index] = samples.getChannelCount();
+    // publishes the slot to the writer
+    tail = currentTail + 1;
+  }
+
+  private void writeLoop() {
+    while (running) {
+      LockSupport.parkNanos(this, WRITE_INTERVAL_NS);
+      drain();
+    }
+    drain();
+    closeSegment();
+  }
+
+  private void drain() {
+    long currentHead = head;
+    long end = tail;
+    while (currentHead < end) {
+      int index = (int) (currentHead % SLOT_COUNT);
+      if (channel == null || slotSampleRates[index] != segmentSampleRate
+          || slotChannelCounts[index] != segmentChannelCount
+          || segmentDataBytes + slots[index].remaining() > segmentMaxBytes) {
+        closeSegment();
+        openSegment(slotSampleRates[index], slotChannelCounts[index]);
+      }
+      // gather slots of the same format that fit in this segment
+      int count = 0;
+      long bytes = 0;
+      while (currentHead + count < end) {
+        int next = (int) ((currentHead + count) % SLOT_COUNT);
+        int remaining = slots[next].remaining();
+        if (slotSampleRates[next] != segmentSampleRate
+            || slotChannelCounts[next] != segmentChannelCount
+            || (segmentDataBytes + bytes + remaining > segmentMaxBytes
+                && segmentDataBytes + bytes > 0)) {
+          break;
         }
-        rawAudioFileOutputStream = null;
+        gather[count++] = slots[next];
+        bytes += remaining;
       }
-      fileSizeInBytes = 0;
+      write(count, bytes);
+      currentHead += count;
+      // releases the slots to the audio thread
+      head = currentHead;
     }
   }
 
-  // Checks if external storage is available for read and write.
-  private boolean isExternalStorageWritable() {
-    String state = Environment.getExternalStorageState();
-    if (Environment.MEDIA_MOUNTED.equals(state)) {
-      return true;
+  private void write(int count, long bytes) {
+    if (channel != null) {
+      try {
+        long written = 0;
+        while (written < bytes) {
+          written += channel.write(gather, 0, count);
+        }
+        segmentDataBytes += bytes;
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to write audio to file: " + e.getMessage());
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      gather[i] = null;
     }
-    return false;
   }
 
   // Utilizes audio parameters to create a file name which contains sufficient
   // information so that the file can be played using an external file player.
-  // Example: /sdcard/recorded_audio_16bits_48000Hz_mono.pcm.
-  private void openRawAudioOutputFile(int sampleRate, int channelCount) {
-    final String fileName = Environment.getExternalStorageDirectory().getPath() + File.separator
-        + "recorded_audio_16bits_" + String.valueOf(sampleRate) + "Hz"
-        + ((channelCount == 1) ? "_mono" : "_stereo") + ".pcm";
-    final File outputFile = new File(fileName);
+  // Example: /sdcard/recorded_audio_16bits_48000Hz_mono_1526356800000.wav.
+  private void openSegment(int sampleRate, int channelCount) {
+    segmentSampleRate = sampleRate;
+    segmentChannelCount = channelCount;
+    segmentDataBytes = 0;
+    File file = new File(dir, "recorded_audio_16bits_" + sampleRate + "Hz"
+        + ((channelCount == 1) ? "_mono_" : "_stereo_") + System.currentTimeMillis() + ".wav");
     try {
-      rawAudioFileOutputStream = new FileOutputStream(outputFile);
-    } catch (FileNotFoundException e) {
+      channel = new FileOutputStream(file).getChannel();
+      writeHeader();
+      channel.position(WAV_HEADER_BYTES);
+    } catch (IOException e) {
       Log.e(TAG, "Failed to open audio output file: " + e.getMessage());
+      closeChannel();
+      return;
     }
-    Log.d(TAG, "Opened file for recording: " + fileName);
+    segments.add(file);
+    while (segments.size() > maxSegments) {
+      segments.removeFirst().delete();
+    }
+    Log.d(TAG, "Opened file for recording: " + file);
   }
 
-  // Called when new audio samples are ready.
-  @Override
-  public void onWebRtcAudioRecordSamplesReady(AudioSamples samples) {
-    // The native audio layer on Android should use 16-bit PCM format.
-    if (samples.getAudioFormat() != AudioFormat.ENCODING_PCM_16BIT) {
-      Log.e(TAG, "Invalid audio format");
+  private void closeSegment() {
+    if (channel == null) {
       return;
     }
-    // Open a new file for the first callback only since it allows us to add
-    // audio parameters to the file name.
-    synchronized (lock) {
-      if (rawAudioFileOutputStream == null) {
-        openRawAudioOutputFile(samples.getSampleRate(), samples.getChannelCount());
-        fileSizeInBytes = 0;
-      }
+    try {
+      // sizes are only known now
+      writeHeader();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to finish WAV header: " + e.getMessage());
     }
-    // Append the recorded 16-bit audio samples to the open output file.
-    executor.execute(() -> {
-      if (rawAudioFileOutputStream != null) {
-        try {
-          // Set a limit on max file size. 58348800 bytes corresponds to
-          // approximately 10 minutes of recording in mono at 48kHz.
-          if (fileSizeInBytes < MAX_FILE_SIZE_IN_BYTES) {
-            // Writes samples.getData().length bytes to output stream.
-            rawAudioFileOutputStream.write(samples.getData());
-            fileSizeInBytes += samples.getData().length;
-          }
-        } catch (IOException e) {
-          Log.e(TAG, "Failed to write audio to file: " + e.getMessage());
-        }
+    closeChannel();
+  }
+
+  private void closeChannel() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close file with saved input audio: " + e);
       }
-    });
+      channel = null;
+    }
+  }
+
+  private void writeHeader() throws IOException {
+    int byteRate = segmentSampleRate * segmentChannelCount * BITS_PER_SAMPLE / 8;
+    header.clear();
+    header.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+    header.putInt((int) (WAV_HEADER_BYTES - 8 + segmentDataBytes));
+    header.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+    header.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+    header.putInt(16);
+    // PCM
+    header.putShort((short) 1);
+    header.putShort((short) segmentChannelCount);
+    header.putInt(segmentSampleRate);
+    header.putInt(byteRate);
+    header.putShort((short) (segmentChannelCount * BITS_PER_SAMPLE / 8));
+    header.putShort((short) BITS_PER_SAMPLE);
+    header.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+    header.putInt((int) segmentDataBytes);
+    header.flip();
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
   }
 }
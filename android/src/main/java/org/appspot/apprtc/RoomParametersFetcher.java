@@ -110,7 +110,7 @@ public class RoomParametersFetcher {
           Log.d(TAG, "GAE->C #" + i + " : " + messageString);
           if (messageType.equals("offer")) {
             offerSdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(messageType), message.getString("sdp"));
+                SessionDescription.Type.fromCanonicalForm(messageType), SdpCodec.getSdp(message));
           } else if (messageType.equals("candidate")) {
             IceCandidate candidate = new IceCandidate(
                 message.getString("id"), message.getInt("label"), message.getString("candidate"));
@@ -13,14 +13,66 @@ package org.appspot.apprtc;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.appspot.apprtc.util.EventLoops;
 import org.webrtc.PeerConnection;
 
+/**
+ * Captures the RTC event log into rotating segments under a directory.
+ *
+ * <p>WebRTC stops writing once a file reaches the size passed to it, so the active segment is
+ * checked periodically and restarted into a new file once it's 3/4 full. Finished segments are
+ * gzipped one at a time on the shared IO pool, then the oldest segments are deleted until the
+ * directory fits the total budget.
+ *
+ * <p>The compression queue is shared by all instances, and it tracks the segments being written
+ * or compressed, so raw segments swept up on start are only the ones no live instance owns,
+ * even if a previous session is still being disposed.
+ *
+ * <p>{@link #start()}, {@link #stop()}, {@link #collect(CollectCallback)} and
+ * {@link #dispose()} must be called on {@code executor}, which is the thread the peer connection
+ * is used on.
+ */
 public class RtcEventLog {
   private static final String TAG = "RtcEventLog";
-  private static final int OUTPUT_FILE_MAX_BYTES = 10_000_000;
+  public static final int DEFAULT_SEGMENT_MAX_BYTES = 2_000_000;
+  public static final long DEFAULT_TOTAL_BUDGET_BYTES = 20_000_000;
+  private static final long ROTATION_CHECK_INTERVAL_MS = 2000;
+  private static final String SEGMENT_PREFIX = "event_log_";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String COMPRESSED_SUFFIX = ".gz";
+  private static final String TEMP_SUFFIX = ".tmp";
+
   private final PeerConnection peerConnection;
+  private final ScheduledExecutorService executor;
+  private final Executor io;
+  private final File dir;
+  private final int segmentMaxBytes;
+  private final long totalBudgetBytes;
   private RtcEventLogState state = RtcEventLogState.INACTIVE;
+  private ScheduledFuture<?> rotationCheck;
+  private File currentSegment;
+  // Process wide, guarded by compressions.
+  private static final ArrayDeque<Runnable> compressions = new ArrayDeque<>();
+  private static boolean compressing;
+  private static final Set<File> activeSegments = new HashSet<>();
+  private static final Set<File> pendingSegments = new HashSet<>();
 
   enum RtcEventLogState {
     INACTIVE,
@@ -28,46 +80,285 @@ public class RtcEventLog {
     STOPPED,
   }
 
-  public RtcEventLog(PeerConnection peerConnection) {
+  /**
+   * Called on an IO pool thread.
+   */
+  public interface CollectCallback {
+    void onCollected(List<File> segments);
+  }
+
+  public RtcEventLog(PeerConnection peerConnection, ScheduledExecutorService executor, File dir,
+      int segmentMaxBytes, long totalBudgetBytes) {
     if (peerConnection == null) {
       throw new NullPointerException("The peer connection is null.");
     }
     this.peerConnection = peerConnection;
+    this.executor = executor;
+    this.dir = dir;
+    this.segmentMaxBytes = segmentMaxBytes;
+    this.totalBudgetBytes = totalBudgetBytes;
+    this.io = EventLoops.get().io();
   }
 
-  public void start(final File outputFile) {
+  public void start() {
     if (state == RtcEventLogState.STARTED) {
       Log.e(TAG, "RtcEventLog has already started.");
       return;
     }
+    if (!dir.exists() && !dir.mkdirs()) {
+      Log.e(TAG, "Failed to create dir " + dir);
+      return;
+    }
+    // segments left uncompressed by a previous process or session
+    synchronized (compressions) {
+      for (File segment : listSegments(dir, SEGMENT_SUFFIX)) {
+        if (!activeSegments.contains(segment) && !pendingSegments.contains(segment)) {
+          compressSegment(segment);
+        }
+      }
+    }
+    if (!startSegment()) {
+      return;
+    }
+    state = RtcEventLogState.STARTED;
+    rotationCheck = executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        checkRotation();
+      }
+    }, ROTATION_CHECK_INTERVAL_MS, ROTATION_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    Log.d(TAG, "RtcEventLog started.");
+  }
+
+  public void stop() {
+    if (state != RtcEventLogState.STARTED) {
+      Log.e(TAG, "RtcEventLog was not started.");
+      return;
+    }
+    rotationCheck.cancel(false);
+    rotationCheck = null;
+    finishSegment();
+    state = RtcEventLogState.STOPPED;
+    Log.d(TAG, "RtcEventLog stopped.");
+  }
+
+  /**
+   * Finish the active segment, so it's included, and report all compressed segments once
+   * pending compression is done.
+   */
+  public void collect(final CollectCallback callback) {
+    if (state == RtcEventLogState.STARTED) {
+      finishSegment();
+      startSegment();
+    }
+    compressLater(new Runnable() {
+      @Override
+      public void run() {
+        callback.onCollected(listSegments(dir, COMPRESSED_SUFFIX));
+      }
+    });
+  }
+
+  /**
+   * Stop capturing if started, pending compression still completes.
+   */
+  public void dispose() {
+    if (state == RtcEventLogState.STARTED) {
+      stop();
+    }
+  }
+
+  /**
+   * @return compressed segments under {@code dir}, oldest first.
+   */
+  public static List<File> listCompressedSegments(File dir) {
+    return listSegments(dir, COMPRESSED_SUFFIX);
+  }
+
+  private void checkRotation() {
+    File segment = currentSegment;
+    if (state == RtcEventLogState.STARTED && segment != null
+        && segment.length() >= segmentMaxBytes / 4 * 3) {
+      finishSegment();
+      startSegment();
+    }
+  }
+
+  private boolean startSegment() {
+    File segment = new File(dir, SEGMENT_PREFIX + System.currentTimeMillis() + SEGMENT_SUFFIX);
+    synchronized (compressions) {
+      activeSegments.add(segment);
+    }
     final ParcelFileDescriptor fileDescriptor;
     try {
-      fileDescriptor = ParcelFileDescriptor.open(outputFile,
+      fileDescriptor = ParcelFileDescriptor.open(segment,
           ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE
               | ParcelFileDescriptor.MODE_TRUNCATE);
     } catch (IOException e) {
       Log.e(TAG, "Failed to create a new file", e);
-      return;
+      releaseSegment(segment);
+      return false;
     }
 
     // Passes ownership of the file to WebRTC.
-    boolean success =
-        peerConnection.startRtcEventLog(fileDescriptor.detachFd(), OUTPUT_FILE_MAX_BYTES);
+    boolean success = peerConnection.startRtcEventLog(fileDescriptor.detachFd(), segmentMaxBytes);
     if (!success) {
       Log.e(TAG, "Failed to start RTC event log.");
-      return;
+      releaseSegment(segment);
+      return false;
     }
-    state = RtcEventLogState.STARTED;
-    Log.d(TAG, "RtcEventLog started.");
+    currentSegment = segment;
+    return true;
   }
 
-  public void stop() {
-    if (state != RtcEventLogState.STARTED) {
-      Log.e(TAG, "RtcEventLog was not started.");
-      return;
+  private static void releaseSegment(File segment) {
+    synchronized (compressions) {
+      activeSegments.remove(segment);
     }
+  }
+
+  private void finishSegment() {
     peerConnection.stopRtcEventLog();
-    state = RtcEventLogState.STOPPED;
-    Log.d(TAG, "RtcEventLog stopped.");
+    File segment = currentSegment;
+    currentSegment = null;
+    if (segment != null) {
+      compressSegment(segment);
+    }
+  }
+
+  private void compressSegment(final File segment) {
+    synchronized (compressions) {
+      pendingSegments.add(segment);
+      activeSegments.remove(segment);
+    }
+    compressLater(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compress(segment);
+          enforceBudget();
+        } finally {
+          synchronized (compressions) {
+            pendingSegments.remove(segment);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Run {@code task} on the IO pool after the ones queued before it, by any instance, so a
+   * collection sees the segments finished before it compressed.
+   */
+  private void compressLater(Runnable task) {
+    synchronized (compressions) {
+      compressions.add(task);
+      if (compressing) {
+        return;
+      }
+      compressing = true;
+    }
+    runNextCompression(io);
+  }
+
+  // One task per IO pool task, so a backlog doesn't hold a pool thread.
+  private static void runNextCompression(final Executor io) {
+    try {
+      io.execute(new Runnable() {
+        @Override
+        public void run() {
+          Runnable task;
+          synchronized (compressions) {
+            task = compressions.poll();
+          }
+          try {
+            task.run();
+          } finally {
+            boolean more;
+            synchronized (compressions) {
+              more = !compressions.isEmpty();
+              compressing = more;
+            }
+            if (more) {
+              runNextCompression(io);
+            }
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Raw segments are compressed on the next start.
+      Log.w(TAG, "Drop pending compression, the IO pool is shut down");
+      synchronized (compressions) {
+        compressions.clear();
+        pendingSegments.clear();
+        compressing = false;
+      }
+    }
+  }
+
+  private static void compress(File segment) {
+    File temp = new File(segment.getPath() + COMPRESSED_SUFFIX + TEMP_SUFFIX);
+    File compressed = new File(segment.getPath() + COMPRESSED_SUFFIX);
+    byte[] buffer = new byte[64 * 1024];
+    try {
+      InputStream in = new FileInputStream(segment);
+      try {
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), buffer.length);
+        try {
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+          }
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      if (!temp.renameTo(compressed)) {
+        throw new IOException("Failed to rename " + temp);
+      }
+      segment.delete();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to compress " + segment, e);
+      temp.delete();
+    }
+  }
+
+  // Raw segments count towards the budget, but only compressed ones are evicted: a raw one is
+  // either active or still queued for compression.
+  private void enforceBudget() {
+    long total = 0;
+    for (File segment : listSegments(dir, null)) {
+      total += segment.length();
+    }
+    for (File segment : listSegments(dir, COMPRESSED_SUFFIX)) {
+      if (total <= totalBudgetBytes) {
+        break;
+      }
+      total -= segment.length();
+      segment.delete();
+    }
+  }
+
+  /**
+   * @param suffix null for both raw and compressed segments.
+   * @return segments sorted by name, which is by start time.
+   */
+  private static List<File> listSegments(File dir, String suffix) {
+    List<File> segments = new ArrayList<>();
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return segments;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName();
+      if (name.startsWith(SEGMENT_PREFIX) && !name.endsWith(TEMP_SUFFIX)
+          && (suffix == null || name.endsWith(suffix))) {
+        segments.add(file);
+      }
+    }
+    return segments;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Base64;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Shrinks SDP of data only sessions, and encodes it in signaling messages.
+ *
+ * <p>A compressed SDP is raw deflate in URL safe base64 under {@code sdpz} instead of the plain
+ * text under {@code sdp}, so it needs no JSON escaping however many times the message is
+ * wrapped. Both peers must understand {@code sdpz}, the plain form is always understood.
+ */
+public final class SdpCodec {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String CRLF = "\r\n";
+  private static final int BASE64_FLAGS = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+
+  // Session level attributes a data only session has no use for.
+  private static final String[] UNUSED_SESSION_ATTRIBUTES = {
+      "a=msid-semantic", "a=extmap-allow-mixed"};
+
+  private SdpCodec() {}
+
+  /**
+   * Drop every media section but the data channel's ({@code m=application}) and unused session
+   * attributes, and trim the BUNDLE group to what's left. It must be applied before the
+   * description is set locally, so both peers see the same sections.
+   */
+  public static String minimizeDataOnly(String sdp) {
+    String[] lines = sdp.split("\r?\n");
+    List<String> session = new ArrayList<>();
+    List<String> kept = new ArrayList<>();
+    List<String> keptMids = new ArrayList<>();
+    boolean inMedia = false;
+    boolean keep = true;
+    for (String line : lines) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      if (line.startsWith("m=")) {
+        inMedia = true;
+        keep = line.startsWith("m=application");
+      }
+      if (!inMedia) {
+        if (!isUnusedSessionAttribute(line)) {
+          session.add(line);
+        }
+      } else if (keep) {
+        kept.add(line);
+        if (line.startsWith("a=mid:")) {
+          keptMids.add(line.substring("a=mid:".length()));
+        }
+      }
+    }
+
+    StringBuilder minimized = new StringBuilder(sdp.length());
+    for (String line : session) {
+      if (line.startsWith("a=group:BUNDLE")) {
+        if (keptMids.isEmpty()) {
+          continue;
+        }
+        minimized.append("a=group:BUNDLE");
+        for (String mid : keptMids) {
+          minimized.append(' ').append(mid);
+        }
+      } else {
+        minimized.append(line);
+      }
+      minimized.append(CRLF);
+    }
+    for (String line : kept) {
+      minimized.append(line).append(CRLF);
+    }
+    return minimized.toString();
+  }
+
+  /**
+   * Put {@code sdp} into a signaling message, compressed if {@code compress}.
+   */
+  public static void putSdp(JSONObject json, String sdp, boolean compress) throws JSONException {
+    if (compress) {
+      json.put("sdpz", compress(sdp));
+    } else {
+      json.put("sdp", sdp);
+    }
+  }
+
+  /**
+   * @return the SDP of a signaling message, in either form.
+   */
+  public static String getSdp(JSONObject json) throws JSONException {
+    if (json.has("sdpz")) {
+      return decompress(json.getString("sdpz"));
+    }
+    return json.getString("sdp");
+  }
+
+  static String compress(String sdp) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    deflater.setInput(sdp.getBytes(UTF_8));
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(sdp.length() / 2);
+    byte[] buffer = new byte[1024];
+    while (!deflater.finished()) {
+      out.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    return Base64.encodeToString(out.toByteArray(), BASE64_FLAGS);
+  }
+
+  static String decompress(String compressed) throws JSONException {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(Base64.decode(compressed, BASE64_FLAGS));
+      ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length() * 3);
+      byte[] buffer = new byte[1024];
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(buffer);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new JSONException("Truncated compressed SDP");
+        }
+        out.write(buffer, 0, inflated);
+      }
+      return new String(out.toByteArray(), UTF_8);
+    } catch (DataFormatException | IllegalArgumentException e) {
+      throw new JSONException("Invalid compressed SDP: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static boolean isUnusedSessionAttribute(String line) {
+    for (String attribute : UNUSED_SESSION_ATTRIBUTES) {
+      if (line.startsWith(attribute)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
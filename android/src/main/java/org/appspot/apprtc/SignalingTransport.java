@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Delivers signaling messages (SDP, ICE candidates) to the other participant of a room.
+ *
+ * <p>Methods are called on the looper thread of the owning {@link AppRTCClient}.
+ */
+public interface SignalingTransport {
+  /**
+   * Transport used for a room connection, see
+   * {@link AppRTCClient.RoomConnectionParameters#signalingTransport}.
+   */
+  enum Type {
+    /**
+     * The initiator POSTs each message to the room server, the receiver sends on the
+     * WebSocket, which is how the AppRTC web app signals.
+     */
+    ROOM_SERVER,
+    /**
+     * Both roles send on the persistent WebSocket, the server queues messages until the other
+     * participant registers.
+     */
+    WEBSOCKET,
+  }
+
+  void send(String message);
+}
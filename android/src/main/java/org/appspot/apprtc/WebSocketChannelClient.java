@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.List;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.util.FlightRecorder;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -30,13 +31,18 @@ import org.json.JSONObject;
  * <p>All public methods should be called from a looper executor thread
  * passed in a constructor, otherwise exception will be thrown.
  * All events are dispatched on the same thread.
+ *
+ * <p>A shared client registers on the {@link WebSocketMux} socket of its server instead of
+ * opening its own.
  */
 public class WebSocketChannelClient {
   private static final String TAG = "WSChannelRTCClient";
   private static final int CLOSE_TIMEOUT = 1000;
   private final WebSocketChannelEvents events;
   private final Handler handler;
+  private final boolean shared;
   private WebSocketConnection ws;
+  private WebSocketMux mux;
   private String wsServerUrl;
   private String postServerUrl;
   private String roomID;
@@ -67,8 +73,16 @@ public class WebSocketChannelClient {
   }
 
   public WebSocketChannelClient(Handler handler, WebSocketChannelEvents events) {
+    this(handler, events, false);
+  }
+
+  /**
+   * @param shared register on the socket shared by all rooms on the same server.
+   */
+  public WebSocketChannelClient(Handler handler, WebSocketChannelEvents events, boolean shared) {
     this.handler = handler;
     this.events = events;
+    this.shared = shared;
     roomID = null;
     clientID = null;
     state = WebSocketConnectionState.NEW;
@@ -89,8 +103,12 @@ public class WebSocketChannelClient {
     closeEvent = false;
 
     Log.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
-    ws = new WebSocketConnection();
     wsObserver = new WebSocketObserver();
+    if (shared) {
+      mux = WebSocketMux.acquire(wsUrl, wsObserver);
+      return;
+    }
+    ws = new WebSocketConnection();
     try {
       ws.connect(new URI(wsServerUrl), wsObserver);
     } catch (URISyntaxException e) {
@@ -114,8 +132,12 @@ public class WebSocketChannelClient {
       json.put("cmd", "register");
       json.put("roomid", roomID);
       json.put("clientid", clientID);
-      Log.d(TAG, "C->WSS: " + json.toString());
-      ws.sendTextMessage(json.toString());
+      String message = json.toString();
+      FlightRecorder.record(FlightRecorder.EVENT_WS_SEND, message.length(), 0);
+      if (mux != null) {
+        mux.register(roomID, clientID, wsObserver);
+      }
+      sendTextMessage(message);
       state = WebSocketConnectionState.REGISTERED;
       // Send any previously accumulated messages.
       for (String sendMessage : wsSendQueue) {
@@ -134,21 +156,25 @@ public class WebSocketChannelClient {
       case CONNECTED:
         // Store outgoing messages and send them after websocket client
         // is registered.
-        Log.d(TAG, "WS ACC: " + message);
         wsSendQueue.add(message);
         return;
       case ERROR:
       case CLOSED:
-        Log.e(TAG, "WebSocket send() in error or closed state : " + message);
+        Log.e(TAG, "WebSocket send() in error or closed state");
         return;
       case REGISTERED:
         JSONObject json = new JSONObject();
         try {
           json.put("cmd", "send");
           json.put("msg", message);
+          if (mux != null) {
+            // Which registration on the shared socket it's sent from.
+            json.put("roomid", roomID);
+            json.put("clientid", clientID);
+          }
           message = json.toString();
-          Log.d(TAG, "C->WSS: " + message);
-          ws.sendTextMessage(message);
+          FlightRecorder.record(FlightRecorder.EVENT_WS_SEND, message.length(), 0);
+          sendTextMessage(message);
         } catch (JSONException e) {
           reportError("WebSocket send JSON error: " + e.getMessage());
         }
@@ -173,6 +199,14 @@ public class WebSocketChannelClient {
       // Send http DELETE to http WebSocket server.
       sendWSSMessage("DELETE", "");
     }
+    if (mux != null) {
+      // The shared socket stays open for other rooms.
+      mux.release(wsObserver);
+      mux = null;
+      state = WebSocketConnectionState.CLOSED;
+      Log.d(TAG, "Disconnecting WebSocket done.");
+      return;
+    }
     // Close WebSocket in CONNECTED or ERROR states only.
     if (state == WebSocketConnectionState.CONNECTED || state == WebSocketConnectionState.ERROR) {
       ws.disconnect();
@@ -209,6 +243,14 @@ public class WebSocketChannelClient {
     });
   }
 
+  private void sendTextMessage(String message) {
+    if (mux != null) {
+      mux.sendTextMessage(message);
+    } else {
+      ws.sendTextMessage(message);
+    }
+  }
+
   // Asynchronously send POST/DELETE to WebSocket server.
   private void sendWSSMessage(final String method, final String message) {
     String postUrl = postServerUrl + "/" + roomID + "/" + clientID;
@@ -271,7 +313,7 @@ public class WebSocketChannelClient {
 
     @Override
     public void onTextMessage(String payload) {
-      Log.d(TAG, "WSS->C: " + payload);
+      FlightRecorder.record(FlightRecorder.EVENT_WS_RECV, payload.length(), 0);
       final String message = payload;
       handler.post(new Runnable() {
         @Override
@@ -0,0 +1,286 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.os.Handler;
+import android.util.Log;
+import de.tavendo.autobahn.WebSocket.WebSocketConnectionObserver;
+import de.tavendo.autobahn.WebSocket.WebSocketConnectionObserver.WebSocketCloseNotification;
+import de.tavendo.autobahn.WebSocketConnection;
+import de.tavendo.autobahn.WebSocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.appspot.apprtc.util.EventLoops;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * One signaling WebSocket per server, shared by the {@link WebSocketChannelClient}s of all
+ * rooms on it, so the TCP and TLS handshakes are paid once per server instead of once per room.
+ * It runs on an {@link EventLoops} loop.
+ *
+ * <p>Each client registers its own room and client id on the shared socket, sends carry the ids
+ * of the sender and the server tags each message with the ids it's addressed to, which is how
+ * inbound messages are demultiplexed. Send queues stay per client. The server must accept
+ * several registrations on one socket, {@link EmbeddedRoomServer} does, the AppRTC collider
+ * doesn't.
+ *
+ * <p>Once the last client detaches, the socket lingers for {@link #IDLE_CLOSE_MS} so a
+ * reconnect reuses it.
+ */
+public class WebSocketMux {
+  private static final String TAG = "WebSocketMux";
+  static final long IDLE_CLOSE_MS = 30000;
+
+  private static final Object lock = new Object();
+  // Guarded by lock.
+  private static final Map<String, WebSocketMux> muxes = new HashMap<>();
+  private static long handshakeCount;
+
+  private final String wsUrl;
+  private final Handler handler;
+  private final WebSocketConnection ws = new WebSocketConnection();
+  // Held for the same reason as in WebSocketChannelClient, the library keeps it weakly.
+  private final Observer observer = new Observer();
+  private final Runnable idleCloseRunnable = new Runnable() {
+    @Override
+    public void run() {
+      closeIfIdle();
+    }
+  };
+
+  // Guarded by lock.
+  private final List<WebSocketConnectionObserver> endpoints = new ArrayList<>();
+  private final Map<String, WebSocketConnectionObserver> registrations = new HashMap<>();
+  private boolean open;
+  private boolean closed;
+
+  private WebSocketMux(String wsUrl) {
+    this.wsUrl = wsUrl;
+    handler = EventLoops.get().pick().getHandler();
+  }
+
+  /**
+   * Attach {@code endpoint} to the shared socket of {@code wsUrl}, connecting it if there is
+   * none. It gets {@code onOpen} once the socket is open, or right away if it already is, and
+   * {@code onClose} if the socket closes while attached.
+   */
+  static WebSocketMux acquire(String wsUrl, WebSocketConnectionObserver endpoint) {
+    WebSocketMux mux;
+    boolean created = false;
+    boolean alreadyOpen;
+    synchronized (lock) {
+      mux = muxes.get(wsUrl);
+      if (mux == null) {
+        mux = new WebSocketMux(wsUrl);
+        muxes.put(wsUrl, mux);
+        handshakeCount++;
+        created = true;
+      }
+      mux.endpoints.add(endpoint);
+      alreadyOpen = mux.open;
+    }
+    if (created) {
+      mux.connect();
+    } else {
+      mux.handler.removeCallbacks(mux.idleCloseRunnable);
+      if (alreadyOpen) {
+        endpoint.onOpen();
+      }
+    }
+    return mux;
+  }
+
+  /**
+   * @return number of shared sockets, registrations on them, and handshakes made since start.
+   */
+  public static Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new HashMap<>();
+    synchronized (lock) {
+      int registrationCount = 0;
+      for (WebSocketMux mux : muxes.values()) {
+        registrationCount += mux.registrations.size();
+      }
+      metrics.put("sockets", muxes.size());
+      metrics.put("registrations", registrationCount);
+      metrics.put("handshakes", handshakeCount);
+    }
+    return metrics;
+  }
+
+  /**
+   * Close shared sockets no client is attached to now, instead of letting them linger.
+   */
+  public static void closeIdle() {
+    List<WebSocketMux> idle = new ArrayList<>();
+    synchronized (lock) {
+      for (WebSocketMux mux : muxes.values()) {
+        if (mux.endpoints.isEmpty()) {
+          idle.add(mux);
+        }
+      }
+    }
+    for (WebSocketMux mux : idle) {
+      mux.handler.removeCallbacks(mux.idleCloseRunnable);
+      mux.handler.post(mux.idleCloseRunnable);
+    }
+  }
+
+  /**
+   * Route messages addressed to {@code roomId} and {@code clientId} to {@code endpoint}, call
+   * it before sending the register command, so nothing the server flushes on register is
+   * missed.
+   */
+  void register(String roomId, String clientId, WebSocketConnectionObserver endpoint) {
+    synchronized (lock) {
+      registrations.put(key(roomId, clientId), endpoint);
+    }
+  }
+
+  /**
+   * It could be called on any thread.
+   */
+  void sendTextMessage(String message) {
+    ws.sendTextMessage(message);
+  }
+
+  /**
+   * Detach {@code endpoint}, it gets no more callbacks.
+   */
+  void release(WebSocketConnectionObserver endpoint) {
+    boolean idle;
+    synchronized (lock) {
+      endpoints.remove(endpoint);
+      registrations.values().remove(endpoint);
+      idle = endpoints.isEmpty();
+    }
+    if (idle) {
+      handler.postDelayed(idleCloseRunnable, IDLE_CLOSE_MS);
+    }
+  }
+
+  private static String key(String roomId, String clientId) {
+    return roomId + "/" + clientId;
+  }
+
+  private void connect() {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        Log.d(TAG, "Connecting shared WebSocket to: " + wsUrl);
+        try {
+          ws.connect(new URI(wsUrl), observer);
+        } catch (URISyntaxException e) {
+          observer.onClose(WebSocketCloseNotification.CANNOT_CONNECT,
+              "URI error: " + e.getMessage());
+        } catch (WebSocketException e) {
+          observer.onClose(WebSocketCloseNotification.CANNOT_CONNECT,
+              "WebSocket connection error: " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  // Runs on the looper thread.
+  private void closeIfIdle() {
+    synchronized (lock) {
+      if (!endpoints.isEmpty() || closed) {
+        return;
+      }
+      closed = true;
+      if (muxes.get(wsUrl) == this) {
+        muxes.remove(wsUrl);
+      }
+    }
+    Log.d(TAG, "Closing idle shared WebSocket to: " + wsUrl);
+    ws.disconnect();
+  }
+
+  private List<WebSocketConnectionObserver> endpointsSnapshot() {
+    synchronized (lock) {
+      return new ArrayList<>(endpoints);
+    }
+  }
+
+  // Callbacks are on the looper thread, endpoints post to their own.
+  private class Observer implements WebSocketConnectionObserver {
+    @Override
+    public void onOpen() {
+      Log.d(TAG, "Shared WebSocket opened to: " + wsUrl);
+      synchronized (lock) {
+        open = true;
+      }
+      for (WebSocketConnectionObserver endpoint : endpointsSnapshot()) {
+        endpoint.onOpen();
+      }
+    }
+
+    @Override
+    public void onClose(WebSocketCloseNotification code, String reason) {
+      Log.d(TAG, "Shared WebSocket closed. Code: " + code + ". Reason: " + reason);
+      List<WebSocketConnectionObserver> closedEndpoints;
+      synchronized (lock) {
+        closed = true;
+        open = false;
+        if (muxes.get(wsUrl) == WebSocketMux.this) {
+          muxes.remove(wsUrl);
+        }
+        closedEndpoints = new ArrayList<>(endpoints);
+        endpoints.clear();
+        registrations.clear();
+      }
+      for (WebSocketConnectionObserver endpoint : closedEndpoints) {
+        endpoint.onClose(code, reason);
+      }
+      handler.removeCallbacks(idleCloseRunnable);
+    }
+
+    @Override
+    public void onTextMessage(String payload) {
+      String roomId;
+      String clientId;
+      try {
+        JSONObject json = new JSONObject(payload);
+        roomId = json.optString("roomid");
+        clientId = json.optString("clientid");
+      } catch (JSONException e) {
+        roomId = "";
+        clientId = "";
+      }
+      if (roomId.isEmpty() || clientId.isEmpty()) {
+        // Not addressed, e.g. an error about the socket itself, every room gets it.
+        for (WebSocketConnectionObserver endpoint : endpointsSnapshot()) {
+          endpoint.onTextMessage(payload);
+        }
+        return;
+      }
+      WebSocketConnectionObserver endpoint;
+      synchronized (lock) {
+        endpoint = registrations.get(key(roomId, clientId));
+      }
+      if (endpoint != null) {
+        endpoint.onTextMessage(payload);
+      } else {
+        Log.w(TAG, "Drop message to unregistered client " + clientId + " of room " + roomId);
+      }
+    }
+
+    @Override
+    public void onRawTextMessage(byte[] payload) {}
+
+    @Override
+    public void onBinaryMessage(byte[] payload) {}
+  }
+}
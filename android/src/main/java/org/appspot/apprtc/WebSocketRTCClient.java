@@ -18,6 +18,7 @@ import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
 import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.util.FlightRecorder;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -32,7 +33,8 @@ import org.webrtc.SessionDescription;
  * call connectToRoom().  Once room connection is established
  * onConnectedToRoom() callback with room parameters is invoked.
  * Messages to other party (with local Ice candidates and answer SDP) can
- * be sent after WebSocket connection is established.
+ * be sent after WebSocket connection is established, through the
+ * {@link SignalingTransport} chosen in the connection parameters.
  */
 public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents {
   private static final String TAG = "WSRTCClient";
@@ -45,6 +47,8 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   private enum MessageType { MESSAGE, LEAVE }
 
   private final Handler handler;
+  // Whether the looper is ours to quit, or shared with other sessions.
+  private final boolean ownsLooper;
   private boolean initiator;
   private SignalingEvents events;
   private WebSocketChannelClient wsClient;
@@ -52,6 +56,11 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   private RoomConnectionParameters connectionParameters;
   private String messageUrl;
   private String leaveUrl;
+  private SignalingTransport transport;
+  private long offerSentTimeNs;
+  private volatile long offerAnswerLatencyUs = -1;
+  private volatile boolean compressSdp;
+  private volatile int sdpMessageBytes = -1;
 
   public WebSocketRTCClient(SignalingEvents events) {
     this.events = events;
@@ -59,6 +68,18 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     final HandlerThread handlerThread = new HandlerThread(TAG);
     handlerThread.start();
     handler = new Handler(handlerThread.getLooper());
+    ownsLooper = true;
+  }
+
+  /**
+   * Run on the looper of {@code handler}, shared with other sessions, e.g. an
+   * {@link org.appspot.apprtc.util.EventLoops} loop, it's left running on disconnect.
+   */
+  public WebSocketRTCClient(SignalingEvents events, Handler handler) {
+    this.events = events;
+    roomState = ConnectionState.NEW;
+    this.handler = handler;
+    ownsLooper = false;
   }
 
   // --------------------------------------------------------------------
@@ -82,7 +103,9 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
       @Override
       public void run() {
         disconnectFromRoomInternal();
-        handler.getLooper().quit();
+        if (ownsLooper) {
+          handler.getLooper().quit();
+        }
       }
     });
   }
@@ -92,7 +115,8 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     String connectionUrl = getConnectionUrl(connectionParameters);
     Log.d(TAG, "Connect to room: " + connectionUrl);
     roomState = ConnectionState.NEW;
-    wsClient = new WebSocketChannelClient(handler, this);
+    wsClient = new WebSocketChannelClient(
+        handler, this, connectionParameters.sharedWebSocket);
 
     RoomParametersFetcherEvents callbacks = new RoomParametersFetcherEvents() {
       @Override
@@ -123,7 +147,9 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     }
     roomState = ConnectionState.CLOSED;
     if (wsClient != null) {
-      wsClient.disconnect(true);
+      // Waiting for the close event only matters when the looper quits right after, a shared
+      // one shouldn't be blocked.
+      wsClient.disconnect(ownsLooper);
     }
   }
 
@@ -172,6 +198,11 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     Log.d(TAG, "Message URL: " + messageUrl);
     Log.d(TAG, "Leave URL: " + leaveUrl);
     roomState = ConnectionState.CONNECTED;
+    if (connectionParameters.signalingTransport == SignalingTransport.Type.WEBSOCKET) {
+      transport = new WebSocketSignalingTransport(wsClient);
+    } else {
+      transport = new RoomServerTransport();
+    }
 
     // Fire connection and signaling parameters events.
     events.onConnectedToRoom(signalingParameters);
@@ -192,9 +223,10 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
           return;
         }
         JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
+        putSdp(json, sdp.description);
         jsonPut(json, "type", "offer");
-        sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+        offerSentTimeNs = System.nanoTime();
+        sendSdpMessage(json.toString());
         if (connectionParameters.loopback) {
           // In loopback mode rename this offer to answer and route it back.
           SessionDescription sdpAnswer = new SessionDescription(
@@ -216,9 +248,9 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
           return;
         }
         JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
+        putSdp(json, sdp.description);
         jsonPut(json, "type", "answer");
-        wsClient.send(json.toString());
+        sendSdpMessage(json.toString());
       }
     });
   }
@@ -235,18 +267,16 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         jsonPut(json, "id", candidate.sdpMid);
         jsonPut(json, "candidate", candidate.sdp);
         if (initiator) {
-          // Call initiator sends ice candidates to GAE server.
           if (roomState != ConnectionState.CONNECTED) {
             reportError("Sending ICE candidate in non connected state.");
             return;
           }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+          transport.send(json.toString());
           if (connectionParameters.loopback) {
             events.onRemoteIceCandidate(candidate);
           }
         } else {
-          // Call receiver sends ice candidates to websocket server.
-          wsClient.send(json.toString());
+          transport.send(json.toString());
         }
       }
     });
@@ -266,18 +296,16 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         }
         jsonPut(json, "candidates", jsonArray);
         if (initiator) {
-          // Call initiator sends ice candidates to GAE server.
           if (roomState != ConnectionState.CONNECTED) {
             reportError("Sending ICE candidate removals in non connected state.");
             return;
           }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+          transport.send(json.toString());
           if (connectionParameters.loopback) {
             events.onRemoteIceCandidatesRemoved(candidates);
           }
         } else {
-          // Call receiver sends ice candidates to websocket server.
-          wsClient.send(json.toString());
+          transport.send(json.toString());
         }
       }
     });
@@ -311,8 +339,9 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
           events.onRemoteIceCandidatesRemoved(candidates);
         } else if (type.equals("answer")) {
           if (initiator) {
+            recordOfferAnswerLatency();
             SessionDescription sdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
+                SessionDescription.Type.fromCanonicalForm(type), SdpCodec.getSdp(json));
             events.onRemoteDescription(sdp);
           } else {
             reportError("Received answer for call initiator: " + msg);
@@ -320,7 +349,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         } else if (type.equals("offer")) {
           if (!initiator) {
             SessionDescription sdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
+                SessionDescription.Type.fromCanonicalForm(type), SdpCodec.getSdp(json));
             events.onRemoteDescription(sdp);
           } else {
             reportError("Received offer for call receiver: " + msg);
@@ -352,6 +381,59 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     reportError("WebSocket error: " + description);
   }
 
+  /**
+   * @return latency from sending the offer to receiving the answer in microseconds, -1 until
+   * the answer is received, only measured by the initiator.
+   */
+  public long getOfferAnswerLatencyUs() {
+    return offerAnswerLatencyUs;
+  }
+
+  /**
+   * Send offer and answer SDP compressed, the remote peer must understand it.
+   *
+   * @see SdpCodec
+   */
+  public void setSdpCompression(boolean compress) {
+    compressSdp = compress;
+  }
+
+  /**
+   * @return characters of the last offer or answer message sent, -1 if none.
+   */
+  public int getSdpMessageBytes() {
+    return sdpMessageBytes;
+  }
+
+  private void sendSdpMessage(String message) {
+    sdpMessageBytes = message.length();
+    transport.send(message);
+  }
+
+  private void recordOfferAnswerLatency() {
+    if (offerSentTimeNs == 0) {
+      return;
+    }
+    offerAnswerLatencyUs = (System.nanoTime() - offerSentTimeNs) / 1000;
+    offerSentTimeNs = 0;
+    Log.d(TAG, "Offer to answer latency " + offerAnswerLatencyUs + " us over "
+        + connectionParameters.signalingTransport);
+    FlightRecorder.record(FlightRecorder.EVENT_OFFER_ANSWER, offerAnswerLatencyUs,
+        connectionParameters.signalingTransport.ordinal());
+  }
+
+  // Initiator POSTs to the room server, receiver sends on the WebSocket.
+  private class RoomServerTransport implements SignalingTransport {
+    @Override
+    public void send(String message) {
+      if (initiator) {
+        sendPostMessage(MessageType.MESSAGE, messageUrl, message);
+      } else {
+        wsClient.send(message);
+      }
+    }
+  }
+
   // --------------------------------------------------------------------
   // Helper functions.
   private void reportError(final String errorMessage) {
@@ -376,14 +458,19 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     }
   }
 
+  private void putSdp(JSONObject json, String sdp) {
+    try {
+      SdpCodec.putSdp(json, sdp, compressSdp);
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   // Send SDP or ICE candidate to a room server.
   private void sendPostMessage(
       final MessageType messageType, final String url, final String message) {
-    String logInfo = url;
-    if (message != null) {
-      logInfo += ". Message: " + message;
-    }
-    Log.d(TAG, "C->GAE: " + logInfo);
+    FlightRecorder.record(
+        FlightRecorder.EVENT_GAE_POST, message == null ? 0 : message.length(), 0);
     AsyncHttpURLConnection httpConnection =
         new AsyncHttpURLConnection("POST", url, message, new AsyncHttpEvents() {
           @Override
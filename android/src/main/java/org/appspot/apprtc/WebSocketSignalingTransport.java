@@ -0,0 +1,28 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Sends every message on the WebSocket, it's queued by {@link WebSocketChannelClient} until
+ * the WebSocket is registered.
+ */
+class WebSocketSignalingTransport implements SignalingTransport {
+  private final WebSocketChannelClient wsClient;
+
+  WebSocketSignalingTransport(WebSocketChannelClient wsClient) {
+    this.wsClient = wsClient;
+  }
+
+  @Override
+  public void send(String message) {
+    wsClient.send(message);
+  }
+}
@@ -50,7 +50,7 @@ public class AsyncHttpURLConnection {
   }
 
   public void send() {
-    new Thread(this ::sendHttpMessage).start();
+    EventLoops.get().io().execute(this ::sendHttpMessage);
   }
 
   private void sendHttpMessage() {
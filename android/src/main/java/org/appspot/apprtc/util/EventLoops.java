@@ -0,0 +1,429 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by all sessions: a small fixed set of looper threads, and a bounded pool for
+ * blocking IO, so thread count doesn't grow with sessions and requests.
+ *
+ * <p>A session is pinned to one loop, the least loaded when it starts, and runs all its work
+ * there through {@link Loop#newExecutor()}, so its tasks keep their order. Shutting the
+ * executor down drops the session's pending tasks, not the loop.
+ *
+ * <p>{@link #shutdown()} quits the loops once their queued tasks have run, executors of sessions
+ * still attached are shut down then, so they reject later tasks instead of posting to a dead
+ * loop. The next {@link #get()} starts new loops.
+ */
+public class EventLoops {
+  private static final String TAG = "EventLoops";
+  private static final int MAX_LOOPS = 4;
+  private static final int MAX_IO_THREADS = 4;
+  private static final long IO_KEEP_ALIVE_MS = 30000;
+
+  private static EventLoops instance;
+
+  private final Loop[] loops;
+  private final ThreadPoolExecutor io;
+
+  private EventLoops() {
+    int count = Math.max(2, Math.min(MAX_LOOPS, Runtime.getRuntime().availableProcessors()));
+    loops = new Loop[count];
+    for (int i = 0; i < count; i++) {
+      loops[i] = new Loop(TAG + "-" + i);
+    }
+    final AtomicInteger ioThreadCount = new AtomicInteger();
+    io = new ThreadPoolExecutor(MAX_IO_THREADS, MAX_IO_THREADS, IO_KEEP_ALIVE_MS,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, TAG + "-io-" + ioThreadCount.getAndIncrement());
+          }
+        });
+    io.allowCoreThreadTimeOut(true);
+  }
+
+  public static synchronized EventLoops get() {
+    if (instance == null) {
+      instance = new EventLoops();
+    }
+    return instance;
+  }
+
+  /**
+   * Quit all loops once their queued tasks have run, delayed tasks are dropped and executors
+   * still attached are shut down, and let the IO pool finish its queue.
+   */
+  public static synchronized void shutdown() {
+    if (instance == null) {
+      return;
+    }
+    for (Loop loop : instance.loops) {
+      loop.quit();
+    }
+    instance.io.shutdown();
+    instance = null;
+  }
+
+  /**
+   * @return the loop with the fewest sessions.
+   */
+  public synchronized Loop pick() {
+    Loop picked = loops[0];
+    for (Loop loop : loops) {
+      if (loop.sessions.get() < picked.sessions.get()) {
+        picked = loop;
+      }
+    }
+    return picked;
+  }
+
+  /**
+   * For blocking work, like HTTP requests and file IO, never for anything a loop waits on.
+   */
+  public ExecutorService io() {
+    return io;
+  }
+
+  /**
+   * @return per loop metrics keyed by {@code loops}, each with its sessions, queued tasks, tasks
+   * run, busy time in microseconds and utilization since start, and IO pool metrics keyed by
+   * {@code io}, with active threads, queued and completed tasks.
+   */
+  public Map<String, Object> getMetrics() {
+    List<Object> loopMetrics = new ArrayList<>();
+    for (Loop loop : loops) {
+      loopMetrics.add(loop.getMetrics());
+    }
+    Map<String, Object> ioMetrics = new HashMap<>();
+    ioMetrics.put("active", io.getActiveCount());
+    ioMetrics.put("queued", io.getQueue().size());
+    ioMetrics.put("completed", io.getCompletedTaskCount());
+    Map<String, Object> metrics = new HashMap<>();
+    metrics.put("loops", loopMetrics);
+    metrics.put("io", ioMetrics);
+    return metrics;
+  }
+
+  /**
+   * One looper thread.
+   */
+  public static class Loop {
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final long startNs = System.nanoTime();
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    // Guarded by itself.
+    private final Set<LoopExecutor> executors = new HashSet<>();
+    // Written on the loop thread.
+    private volatile long busyNs;
+    private volatile long taskCount;
+
+    Loop(String name) {
+      thread = new HandlerThread(name);
+      thread.start();
+      handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * For code that needs a looper, like the WebSocket library, posts through it aren't
+     * counted in the metrics.
+     */
+    public Handler getHandler() {
+      return handler;
+    }
+
+    /**
+     * @return an executor for one session, running its tasks on this loop in order.
+     */
+    public ScheduledExecutorService newExecutor() {
+      sessions.incrementAndGet();
+      LoopExecutor executor = new LoopExecutor(this);
+      synchronized (executors) {
+        executors.add(executor);
+      }
+      return executor;
+    }
+
+    Map<String, Object> getMetrics() {
+      long uptimeNs = System.nanoTime() - startNs;
+      long busy = busyNs;
+      Map<String, Object> metrics = new HashMap<>();
+      metrics.put("name", thread.getName());
+      metrics.put("sessions", sessions.get());
+      metrics.put("queued", queued.get());
+      metrics.put("tasks", taskCount);
+      metrics.put("busyUs", busy / 1000);
+      metrics.put("utilization", uptimeNs == 0 ? 0.0 : (double) busy / uptimeNs);
+      return metrics;
+    }
+
+    private void quit() {
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          List<LoopExecutor> attached;
+          synchronized (executors) {
+            attached = new ArrayList<>(executors);
+          }
+          for (LoopExecutor executor : attached) {
+            executor.shutdown();
+          }
+          Looper.myLooper().quit();
+        }
+      });
+    }
+  }
+
+  /**
+   * A session's view of a {@link Loop}, a {@link ScheduledExecutorService} backed by its
+   * handler. Unlike {@code ScheduledThreadPoolExecutor}, {@link #shutdown()} also drops delayed
+   * and periodic tasks, the loop is shared, so nothing of a finished session should linger on
+   * it.
+   */
+  private static class LoopExecutor extends AbstractExecutorService
+      implements ScheduledExecutorService {
+    private final Loop loop;
+    private final Handler handler;
+
+    // Guarded by this.
+    private final Set<LoopTask<?>> pending = new HashSet<>();
+    private boolean shutdown;
+    private boolean running;
+
+    LoopExecutor(Loop loop) {
+      this.loop = loop;
+      handler = loop.handler;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      return enqueue(new LoopTask<Void>(
+          Executors.<Void>callable(command, null), triggerTimeNs(delay, unit), 0), true);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+      return enqueue(new LoopTask<V>(callable, triggerTimeNs(delay, unit), 0), true);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(
+        Runnable command, long initialDelay, long period, TimeUnit unit) {
+      if (period <= 0) {
+        throw new IllegalArgumentException("Non positive period " + period);
+      }
+      return enqueue(new LoopTask<Void>(Executors.<Void>callable(command, null),
+          triggerTimeNs(initialDelay, unit), unit.toNanos(period)), true);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(
+        Runnable command, long initialDelay, long delay, TimeUnit unit) {
+      if (delay <= 0) {
+        throw new IllegalArgumentException("Non positive delay " + delay);
+      }
+      // A negative period means a fixed delay, like ScheduledThreadPoolExecutor.
+      return enqueue(new LoopTask<Void>(Executors.<Void>callable(command, null),
+          triggerTimeNs(initialDelay, unit), -unit.toNanos(delay)), true);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+      if (shutdown) {
+        return;
+      }
+      shutdown = true;
+      for (LoopTask<?> task : pending) {
+        handler.removeCallbacks(task);
+        task.cancelWithoutDequeue();
+      }
+      loop.queued.addAndGet(-pending.size());
+      pending.clear();
+      loop.sessions.decrementAndGet();
+      synchronized (loop.executors) {
+        loop.executors.remove(this);
+      }
+      notifyAll();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      List<Runnable> dropped;
+      synchronized (this) {
+        dropped = new ArrayList<Runnable>(pending);
+      }
+      shutdown();
+      return dropped;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+      return shutdown && !running;
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException {
+      long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+      while (!isTerminated()) {
+        long remainingNs = deadlineNs - System.nanoTime();
+        if (remainingNs <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+      }
+      return true;
+    }
+
+    private static long triggerTimeNs(long delay, TimeUnit unit) {
+      return System.nanoTime() + Math.max(0, unit.toNanos(delay));
+    }
+
+    /**
+     * @param reject whether to throw if it's shut down, a periodic task rescheduling itself is
+     * dropped silently.
+     */
+    private <V> LoopTask<V> enqueue(LoopTask<V> task, boolean reject) {
+      synchronized (this) {
+        if (shutdown) {
+          if (reject) {
+            throw new RejectedExecutionException("Executor of the session is shut down");
+          }
+          return task;
+        }
+        pending.add(task);
+      }
+      loop.queued.incrementAndGet();
+      long delayMs = TimeUnit.NANOSECONDS.toMillis(task.getDelay(TimeUnit.NANOSECONDS));
+      if (delayMs > 0) {
+        handler.postDelayed(task, delayMs);
+      } else {
+        handler.post(task);
+      }
+      return task;
+    }
+
+    private boolean dequeue(LoopTask<?> task) {
+      synchronized (this) {
+        if (!pending.remove(task)) {
+          return false;
+        }
+      }
+      loop.queued.decrementAndGet();
+      return true;
+    }
+
+    private class LoopTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+      private final long periodNs;
+      private volatile long timeNs;
+
+      LoopTask(Callable<V> callable, long timeNs, long periodNs) {
+        super(callable);
+        this.timeNs = timeNs;
+        this.periodNs = periodNs;
+      }
+
+      @Override
+      public boolean isPeriodic() {
+        return periodNs != 0;
+      }
+
+      @Override
+      public long getDelay(TimeUnit unit) {
+        return unit.convert(timeNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+
+      @Override
+      public int compareTo(Delayed other) {
+        long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+
+      // Dispatched by the handler on the loop thread.
+      @Override
+      public void run() {
+        if (!dequeue(this)) {
+          // Cancelled or shut down after it was dispatched.
+          return;
+        }
+        synchronized (LoopExecutor.this) {
+          running = true;
+        }
+        long startNs = System.nanoTime();
+        try {
+          if (!isPeriodic()) {
+            super.run();
+          } else if (super.runAndReset()) {
+            timeNs = periodNs > 0 ? timeNs + periodNs : System.nanoTime() - periodNs;
+            enqueue(this, false);
+          }
+        } finally {
+          loop.busyNs += System.nanoTime() - startNs;
+          loop.taskCount++;
+          synchronized (LoopExecutor.this) {
+            running = false;
+            LoopExecutor.this.notifyAll();
+          }
+        }
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        // Never interrupt, the loop thread is shared.
+        boolean cancelled = super.cancel(false);
+        if (cancelled && dequeue(this)) {
+          handler.removeCallbacks(this);
+        }
+        return cancelled;
+      }
+
+      void cancelWithoutDequeue() {
+        super.cancel(false);
+      }
+    }
+  }
+}
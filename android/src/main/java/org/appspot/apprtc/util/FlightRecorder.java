@@ -0,0 +1,163 @@
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low overhead flight recorder of signaling, peer connection and data channel events.
+ *
+ * <p>Events are kept in a fixed size ring of binary records, each record is 4 longs:
+ * {@code timestampNs, eventId << 32 | session, arg0, arg1}, the meaning of args depends on the
+ * event id. When disabled, {@link #record(int, long, long)} is a single volatile read.
+ *
+ * <p>Dump file format, all big endian: {@code magic: i32, version: i32, count: i32}, followed
+ * by {@code count} records, oldest first.
+ */
+public final class FlightRecorder {
+  private static final String TAG = "FlightRecorder";
+
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  /** arg0: message bytes. */
+  public static final int EVENT_WS_SEND = 1;
+  /** arg0: message bytes. */
+  public static final int EVENT_WS_RECV = 2;
+  /** arg0: message bytes. */
+  public static final int EVENT_GAE_POST = 3;
+  /** arg0: latency from sending the offer to receiving the answer in us, arg1: transport. */
+  public static final int EVENT_OFFER_ANSWER = 4;
+  /** arg0: SessionDescription.Type ordinal, arg1: sdp bytes. */
+  public static final int EVENT_SDP_LOCAL = 10;
+  /** arg0: SessionDescription.Type ordinal, arg1: sdp bytes. */
+  public static final int EVENT_SDP_REMOTE = 11;
+  /** arg0: sdpMLineIndex, arg1: candidate bytes. */
+  public static final int EVENT_ICE_CANDIDATE_LOCAL = 12;
+  /** arg0: sdpMLineIndex, arg1: candidate bytes. */
+  public static final int EVENT_ICE_CANDIDATE_REMOTE = 13;
+  /** arg0: IceConnectionState ordinal. */
+  public static final int EVENT_ICE_STATE = 14;
+  /**
+   * A candidate filtered by the ICE policy, arg0: 0 if local, 1 if remote, arg1: index of its
+   * type in host, srflx, prflx, relay, -1 if unknown.
+   */
+  public static final int EVENT_ICE_CANDIDATE_FILTERED = 15;
+  /** arg0: DataChannel.State ordinal. */
+  public static final int EVENT_DC_STATE = 20;
+  /** arg0: message bytes, arg1: 1 if binary. */
+  public static final int EVENT_DC_SEND = 21;
+  /** arg0: message bytes, arg1: 1 if binary. */
+  public static final int EVENT_DC_RECV = 22;
+  /** No args. */
+  public static final int EVENT_ERROR = 30;
+
+  private static final int MAGIC = 0x57444652;
+  private static final int VERSION = 1;
+  private static final int RECORD_LONGS = 4;
+
+  private static volatile Ring ring;
+  private static volatile int session;
+
+  private FlightRecorder() {}
+
+  /** Start recording into a new ring of {@code capacity} events, rounded up to power of 2. */
+  public static void enable(int capacity) {
+    ring = new Ring(capacity);
+  }
+
+  public static void disable() {
+    ring = null;
+  }
+
+  public static boolean isEnabled() {
+    return ring != null;
+  }
+
+  /** Set the session id tagged on subsequent events. */
+  public static void setSession(int newSession) {
+    session = newSession;
+  }
+
+  public static void record(int event, long arg0, long arg1) {
+    Ring current = ring;
+    if (current != null) {
+      current.record(event, session, arg0, arg1);
+    }
+  }
+
+  /**
+   * Write recorded events into a new file under {@code dir}, events recorded concurrently may
+   * be torn.
+   *
+   * @return the dump file, or null if it's disabled.
+   */
+  public static File dump(File dir) throws IOException {
+    Ring current = ring;
+    if (current == null) {
+      return null;
+    }
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Failed to create dir " + dir);
+    }
+    File file = new File(dir, "flight_" + System.currentTimeMillis() + ".bin");
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      current.writeTo(out);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /** Dump on error, failures are only logged. */
+  public static void dumpOnError(File dir) {
+    record(EVENT_ERROR, 0, 0);
+    try {
+      File file = dump(dir);
+      if (file != null) {
+        Log.e(TAG, "Flight recorder dumped to " + file);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to dump flight recorder", e);
+    }
+  }
+
+  private static class Ring {
+    private final long[] records;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    Ring(int capacity) {
+      int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+      records = new long[size * RECORD_LONGS];
+      mask = size - 1;
+    }
+
+    void record(int event, int session, long arg0, long arg1) {
+      int base = (int) (next.getAndIncrement() & mask) * RECORD_LONGS;
+      records[base] = System.nanoTime();
+      records[base + 1] = ((long) event << 32) | (session & 0xFFFFFFFFL);
+      records[base + 2] = arg0;
+      records[base + 3] = arg1;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      long end = next.get();
+      long start = Math.max(0, end - (mask + 1));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt((int) (end - start));
+      for (long i = start; i < end; i++) {
+        int base = (int) (i & mask) * RECORD_LONGS;
+        for (int j = 0; j < RECORD_LONGS; j++) {
+          out.writeLong(records[base + j]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class DataFramesTest {
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void framesRoundTrip() {
+        ByteBuffer frames = encode(7, DataFrames.FLAG_BINARY, new byte[] { 1, 2, 3 }, 3);
+        int[] count = new int[1];
+        DataFrames.read(frames, (session, lane, flags, payload) -> {
+            assertEquals(7, session);
+            assertEquals(OutboundScheduler.PRIORITY_BULK, lane);
+            assertEquals(DataFrames.FLAG_BINARY, flags);
+            assertEquals(3, payload.length);
+            count[0]++;
+        });
+        assertEquals(3, count[0]);
+        assertFalse(frames.hasRemaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedFrameIsRejected() {
+        ByteBuffer frames = encode(7, 0, new byte[] { 1, 2, 3 }, 1);
+        frames.limit(frames.limit() - 1);
+        DataFrames.read(frames, (session, lane, flags, payload) -> {
+        });
+    }
+
+    @Test
+    public void sendFramesSkipsOtherSessionsAndCountsRejected() {
+        DataChannelPeerConnectionClient client =
+                new DataChannelPeerConnectionClient(null, mExecutor);
+        // room for two frames before the data channel opens
+        client.configurePreOpenQueue(8, PreOpenQueue.OverflowPolicy.REJECT,
+                PreOpenQueue.DEFAULT_MAX_BLOCK_MS);
+        ByteBuffer frames = ByteBuffer.allocate(DataFrames.frameSize(3) * 4);
+        frames.put(encode(8, 0, new byte[3], 1));
+        frames.put(encode(7, 0, new byte[3], 3));
+        frames.flip();
+
+        assertEquals(1, client.sendFrames(frames, 7));
+        Map<?, ?> preOpen = (Map<?, ?>) client.getSendMetrics().get("preOpen");
+        assertEquals(2, preOpen.get("depth"));
+        assertEquals(1L, preOpen.get("rejected"));
+    }
+
+    private static ByteBuffer encode(int session, int flags, byte[] payload, int count) {
+        ByteBuffer frames = ByteBuffer.allocate(DataFrames.frameSize(payload.length) * count);
+        for (int i = 0; i < count; i++) {
+            DataFrames.write(frames, session, OutboundScheduler.PRIORITY_BULK, flags, payload);
+        }
+        frames.flip();
+        return frames;
+    }
+}
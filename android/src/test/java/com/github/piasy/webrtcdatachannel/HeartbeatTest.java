@@ -0,0 +1,37 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HeartbeatTest {
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    private final Heartbeat mHeartbeat = new Heartbeat(mTimer, (message, priority) -> true,
+            unresponsive -> {
+            });
+
+    @After
+    public void tearDown() {
+        mHeartbeat.stop();
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void nonPositiveIntervalIsRejectedBeforeStart() {
+        for (long intervalMs : new long[] { 0, -1 }) {
+            try {
+                mHeartbeat.configure(true, intervalMs, 3);
+                fail("interval " + intervalMs + " accepted");
+            } catch (IllegalArgumentException expected) {
+                // the previous configuration is kept
+            }
+        }
+        // would throw from scheduleAtFixedRate if the bad interval was kept
+        mHeartbeat.start();
+        assertEquals(false, mHeartbeat.getMetrics().get("unresponsive"));
+    }
+}
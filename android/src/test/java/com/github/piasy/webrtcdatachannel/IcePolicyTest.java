@@ -0,0 +1,64 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IcePolicyTest {
+    private static final IceCandidate HOST = candidate("192.168.1.2 54321 typ host");
+    private static final IceCandidate SRFLX = candidate(
+            "203.0.113.7 61234 typ srflx raddr 192.168.1.2 rport 54321");
+    private static final IceCandidate RELAY = candidate(
+            "198.51.100.9 3478 typ relay raddr 203.0.113.7 rport 61234");
+
+    private final IcePolicy mPolicy = new IcePolicy();
+
+    @Test
+    public void typeOfCandidateLine() {
+        assertEquals(IcePolicy.TYPE_HOST, IcePolicy.typeOf(HOST));
+        assertEquals(0, IcePolicy.typeIndexOf(HOST));
+        assertEquals(3, IcePolicy.typeIndexOf(RELAY));
+        assertEquals(-1, IcePolicy.typeIndexOf(candidate("192.168.1.2 54321")));
+    }
+
+    @Test
+    public void hostOnlyFiltersBothDirections() {
+        mPolicy.configure(IcePolicy.Mode.HOST_ONLY, false, true, null, 0, 0);
+        assertTrue(mPolicy.acceptLocal(HOST, 0));
+        assertFalse(mPolicy.acceptLocal(SRFLX, 0));
+        assertTrue(mPolicy.acceptRemote(HOST));
+        assertFalse(mPolicy.acceptRemote(RELAY));
+        Map<?, ?> relay = (Map<?, ?>) mPolicy.getMetrics().get(IcePolicy.TYPE_RELAY);
+        assertEquals(1L, relay.get("received"));
+        assertEquals(1L, relay.get("rejected"));
+        assertEquals(0L, mPolicy.getMetrics().get("firstCandidateMs"));
+    }
+
+    @Test
+    public void lateServerReflexiveCandidatesAreDropped() {
+        mPolicy.configure(IcePolicy.Mode.ALL, false, true,
+                Collections.<String>emptySet(), 500, 0);
+        assertTrue(mPolicy.acceptLocal(SRFLX, 400 * 1000000L));
+        assertFalse(mPolicy.acceptLocal(SRFLX, 600 * 1000000L));
+        // no timeout for relays
+        assertTrue(mPolicy.acceptLocal(RELAY, 60000 * 1000000L));
+        assertEquals(400L, mPolicy.getMetrics().get("firstCandidateMs"));
+    }
+
+    @Test
+    public void candidateTypesFilter() {
+        mPolicy.configure(IcePolicy.Mode.ALL, false, true,
+                Collections.singleton(IcePolicy.TYPE_RELAY), 0, 0);
+        assertFalse(mPolicy.acceptRemote(HOST));
+        assertTrue(mPolicy.acceptRemote(RELAY));
+    }
+
+    private static IceCandidate candidate(String tail) {
+        return new IceCandidate("data", 0, "candidate:1 1 udp 2122260223 " + tail);
+    }
+}
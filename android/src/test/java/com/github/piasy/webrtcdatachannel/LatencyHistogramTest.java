@@ -0,0 +1,63 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentileUs(50));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 7; i++) {
+            histogram.record(i);
+        }
+        assertEquals(4, histogram.percentileUs(50));
+        assertEquals(7, histogram.percentileUs(100));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketWidth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100000, histogram.count());
+        for (double percentile : new double[] { 50, 90, 99 }) {
+            long exact = (long) (100000 * percentile / 100);
+            long reported = histogram.percentileUs(percentile);
+            assertTrue(percentile + ": " + reported, reported >= exact);
+            assertTrue(percentile + ": " + reported, reported <= exact * 1.125);
+        }
+        assertEquals(100000, histogram.percentileUs(100));
+    }
+
+    @Test
+    public void negativeAndHugeValuesAreRecorded() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.percentileUs(50));
+        assertEquals(Long.MAX_VALUE, histogram.percentileUs(100));
+    }
+
+    @Test
+    public void resetAndToMap() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        Map<String, Object> map = histogram.toMap();
+        assertEquals(1L, map.get("count"));
+        assertEquals(1000L, map.get("maxUs"));
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0L, histogram.toMap().get("p99Us"));
+    }
+}
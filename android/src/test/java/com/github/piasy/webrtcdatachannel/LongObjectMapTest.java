@@ -0,0 +1,73 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LongObjectMapTest {
+    @Test
+    public void putGetRemove() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.get(1));
+        assertNull(map.get(2));
+        assertEquals(1, map.size());
+        assertEquals("b", map.remove(1));
+        assertNull(map.remove(1));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        LongObjectMap<Long> map = new LongObjectMap<>(4);
+        for (long key = 0; key < 1000; key++) {
+            map.put(key, key);
+        }
+        assertEquals(1000, map.size());
+        for (long key = 0; key < 1000; key++) {
+            assertEquals(Long.valueOf(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        // few distinct keys, so probe runs collide and removal shifts entries back often
+        LongObjectMap<Integer> map = new LongObjectMap<>();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(64) * 0x100000000L + random.nextInt(4);
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        int[] visited = new int[1];
+        map.forEach((key, value) -> {
+            assertEquals(expected.get(key), value);
+            visited[0]++;
+        });
+        assertEquals(expected.size(), visited[0]);
+    }
+
+    @Test
+    public void clearRemovesAll() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        map.put(-1, "a");
+        map.put(Long.MAX_VALUE, "b");
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(-1));
+        assertNull(map.get(Long.MAX_VALUE));
+    }
+}
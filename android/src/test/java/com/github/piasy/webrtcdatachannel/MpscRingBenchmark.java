@@ -0,0 +1,107 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Several threads sending through {@link MpscRing}s drained by one consumer, against the
+ * executor task per message the sends used to cost.
+ *
+ * <p>It's not part of the unit tests, remove the {@code @Ignore} to run it.
+ */
+@Ignore("benchmark")
+public class MpscRingBenchmark {
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES_PER_PRODUCER = 25000;
+    private static final int ROUNDS = 5;
+
+    private final AtomicLong mSentCount = new AtomicLong();
+
+    @Test
+    public void ringVsExecutor() throws InterruptedException {
+        byte[] payload = new byte[64];
+        long executorNs = Long.MAX_VALUE;
+        long ringNs = Long.MAX_VALUE;
+        // the first rounds warm up, the best round counts
+        for (int round = 0; round < ROUNDS; round++) {
+            executorNs = Math.min(executorNs, executor(payload));
+            ringNs = Math.min(ringNs, ring(payload));
+        }
+        assertEquals(2L * ROUNDS * PRODUCERS * MESSAGES_PER_PRODUCER, mSentCount.get());
+        System.out.println("executor task per message: " + executorNs / 1000 + " us, "
+                           + "MpscRing: " + ringNs / 1000 + " us, for "
+                           + PRODUCERS * MESSAGES_PER_PRODUCER + " messages");
+    }
+
+    private long executor(byte[] payload) throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch done = new CountDownLatch(PRODUCERS * MESSAGES_PER_PRODUCER);
+        long startNs = System.nanoTime();
+        Thread[] producers = startProducers(() -> {
+            for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                executor.execute(() -> {
+                    send(payload);
+                    done.countDown();
+                });
+            }
+        });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        long elapsedNs = System.nanoTime() - startNs;
+        join(producers);
+        executor.shutdown();
+        return elapsedNs;
+    }
+
+    private long ring(byte[] payload) throws InterruptedException {
+        MpscRing ring = new MpscRing(OutboundScheduler.DEFAULT_RING_CAPACITY);
+        long total = PRODUCERS * MESSAGES_PER_PRODUCER;
+        long startNs = System.nanoTime();
+        Thread[] producers = startProducers(() -> {
+            for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                while (!ring.offer(payload, true, 0)) {
+                    Thread.yield();
+                }
+            }
+        });
+        long received = 0;
+        while (received < total) {
+            if (ring.isEmpty()) {
+                Thread.yield();
+                continue;
+            }
+            send(ring.peekPayload());
+            ring.remove();
+            received++;
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        join(producers);
+        return elapsedNs;
+    }
+
+    private static Thread[] startProducers(Runnable producer) {
+        Thread[] threads = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            threads[i] = new Thread(producer);
+            threads[i].start();
+        }
+        return threads;
+    }
+
+    private static void join(Thread[] threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void send(byte[] payload) {
+        mSentCount.incrementAndGet();
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MpscRingTest {
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        MpscRing ring = new MpscRing(5);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ring.offer(new byte[0], false, 0));
+        }
+        assertFalse(ring.offer(new byte[0], false, 0));
+        assertEquals(8, ring.size());
+    }
+
+    @Test
+    public void firstInFirstOutAcrossWrapAround() {
+        MpscRing ring = new MpscRing(4);
+        int next = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ring.offer(new byte[] { (byte) (round * 3 + i) }, i % 2 == 0, i));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertFalse(ring.isEmpty());
+                assertArrayEquals(new byte[] { (byte) next++ }, ring.peekPayload());
+                assertEquals(i % 2 == 0, ring.peekBinary());
+                assertEquals(i, ring.peekEnqueueTimeNs());
+                ring.remove();
+            }
+            assertTrue(ring.isEmpty());
+        }
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void clearReleasesAllSlots() {
+        MpscRing ring = new MpscRing(4);
+        for (int i = 0; i < 4; i++) {
+            ring.offer(new byte[0], false, 0);
+        }
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(new byte[0], false, 0));
+        }
+    }
+
+    @Test
+    public void concurrentProducersLoseNothingAndKeepPerProducerOrder()
+            throws InterruptedException {
+        int producers = 4;
+        int perProducer = 20000;
+        MpscRing ring = new MpscRing(64);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    byte[] payload = ByteBuffer.allocate(8).putInt(producer).putInt(i).array();
+                    while (!ring.offer(payload, false, 0)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        int[] nextByProducer = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            if (ring.isEmpty()) {
+                Thread.yield();
+                continue;
+            }
+            ByteBuffer payload = ByteBuffer.wrap(ring.peekPayload());
+            ring.remove();
+            int producer = payload.getInt();
+            assertEquals(nextByProducer[producer]++, payload.getInt());
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Encoding and decoding a typical state update with {@link ObjectMessages} against the JSON
+ * string it replaces, which Dart encoded and native passed through as UTF-8 text.
+ *
+ * <p>It's not part of the unit tests, remove the {@code @Ignore} to run it.
+ */
+@Ignore("benchmark")
+public class ObjectMessagesBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MESSAGES = 20000;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void codecVsJson() throws JSONException {
+        Map<String, Object> value = sample();
+        byte[] encoded = ObjectMessages.encode(value);
+        byte[] json = new JSONObject(value).toString().getBytes(UTF_8);
+        long codecNs = Long.MAX_VALUE;
+        long jsonNs = Long.MAX_VALUE;
+        long sink = 0;
+        // the first rounds warm up, the best round counts
+        for (int round = 0; round < ROUNDS; round++) {
+            long startNs = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                sink += ((Map<?, ?>) ObjectMessages.decode(ObjectMessages.encode(value))).size();
+            }
+            codecNs = Math.min(codecNs, System.nanoTime() - startNs);
+
+            startNs = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                byte[] text = new JSONObject(value).toString().getBytes(UTF_8);
+                sink += new JSONObject(new String(text, UTF_8)).length();
+            }
+            jsonNs = Math.min(jsonNs, System.nanoTime() - startNs);
+        }
+        assertEquals(2L * ROUNDS * MESSAGES * value.size(), sink);
+        System.out.println("codec: " + encoded.length + " bytes, " + codecNs / 1000 + " us, "
+                           + "JSON: " + json.length + " bytes, " + jsonNs / 1000 + " us, for "
+                           + MESSAGES + " round trips");
+    }
+
+    private static Map<String, Object> sample() {
+        Map<String, Object> value = new HashMap<>();
+        value.put("id", 123456);
+        value.put("timestamp", System.currentTimeMillis());
+        value.put("x", 0.25);
+        value.put("y", -12.5);
+        value.put("active", true);
+        value.put("name", "player one");
+        List<Object> scores = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            scores.add(i * 1000);
+        }
+        value.put("scores", scores);
+        return value;
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ObjectMessagesTest {
+    @Test
+    public void roundTrip() {
+        Map<String, Object> value = new HashMap<>();
+        value.put("int", 42);
+        value.put("long", 1L << 40);
+        value.put("double", 0.5);
+        value.put("bool", true);
+        value.put("string", "h\u00e9llo");
+        value.put("null", null);
+        value.put("list", Arrays.asList(1, "two", Arrays.asList(3.0)));
+        value.put("bytes", new byte[] { 1, 2, 3 });
+
+        Map<?, ?> decoded = (Map<?, ?>) ObjectMessages.decode(ObjectMessages.encode(value));
+        assertEquals(value.size(), decoded.size());
+        assertEquals(42, decoded.get("int"));
+        assertEquals(1L << 40, decoded.get("long"));
+        assertEquals(0.5, decoded.get("double"));
+        assertEquals(true, decoded.get("bool"));
+        assertEquals("h\u00e9llo", decoded.get("string"));
+        assertNull(decoded.get("null"));
+        assertEquals(value.get("list"), decoded.get("list"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) decoded.get("bytes"));
+    }
+
+    @Test
+    public void nullIsEmpty() {
+        assertEquals(0, ObjectMessages.encode(null).length);
+        assertNull(ObjectMessages.decode(new byte[0]));
+    }
+
+    @Test
+    public void toMessagePrefixesTheKind() {
+        byte[] encoded = ObjectMessages.encode(Arrays.asList(1, 2));
+        byte[] message = ObjectMessages.toMessage(encoded);
+        assertEquals(MessageKinds.OBJECT, message[0]);
+        assertEquals(Arrays.asList(1, 2),
+                (List<?>) ObjectMessages.decode(Arrays.copyOfRange(message, 1, message.length)));
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundSchedulerTest {
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final List<byte[]> mSent = Collections.synchronizedList(new ArrayList<>());
+    private final OutboundScheduler mScheduler = new OutboundScheduler(mExecutor,
+            (payload, binary) -> mSent.add(payload));
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void drainsOnTheExecutorInOrder() throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(mScheduler.enqueue(OutboundScheduler.PRIORITY_BULK,
+                    new byte[] { (byte) i }, true));
+        }
+        awaitExecutor();
+        assertEquals(1000, mSent.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals((byte) i, mSent.get(i)[0]);
+        }
+        assertEquals(1000L, ((Map<?, ?>) mScheduler.getMetrics().get("bulk")).get("sent"));
+    }
+
+    @Test
+    public void controlGoesAheadOfQueuedBulk() throws InterruptedException {
+        CountDownLatch release = blockExecutor();
+        for (int i = 0; i < 100; i++) {
+            mScheduler.enqueue(OutboundScheduler.PRIORITY_BULK, new byte[1024], true);
+        }
+        mScheduler.enqueue(OutboundScheduler.PRIORITY_CONTROL, new byte[1], true);
+        release.countDown();
+        awaitExecutor();
+        assertEquals(101, mSent.size());
+        assertEquals(1, mSent.get(0).length);
+    }
+
+    @Test
+    public void nothingIsSentAfterShutdown() throws InterruptedException {
+        CountDownLatch release = blockExecutor();
+        // like closing the connection with a drain queued behind it
+        mExecutor.execute(mScheduler::shutdown);
+        assertTrue(mScheduler.enqueue(OutboundScheduler.PRIORITY_INTERACTIVE, new byte[1], true));
+        release.countDown();
+        awaitExecutor();
+        assertTrue(mSent.isEmpty());
+        assertFalse(mScheduler.enqueue(OutboundScheduler.PRIORITY_INTERACTIVE, new byte[1], true));
+        awaitExecutor();
+        assertTrue(mSent.isEmpty());
+    }
+
+    private CountDownLatch blockExecutor() {
+        CountDownLatch release = new CountDownLatch(1);
+        mExecutor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return release;
+    }
+
+    // a drain posts the next batch behind tasks queued meanwhile, each round lets one batch run
+    private void awaitExecutor() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            CountDownLatch done = new CountDownLatch(1);
+            mExecutor.execute(done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
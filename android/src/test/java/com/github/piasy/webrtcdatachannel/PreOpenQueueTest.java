@@ -0,0 +1,79 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreOpenQueueTest {
+    private static final int RING_CAPACITY = 16;
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final List<byte[]> mSent = Collections.synchronizedList(new ArrayList<>());
+    private final PreOpenQueue mQueue = new PreOpenQueue(new OutboundScheduler(mExecutor,
+            (payload, binary) -> mSent.add(payload), RING_CAPACITY));
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void acceptedMessagesAllFitInTheRingsOnOpen() throws InterruptedException {
+        for (int i = 0; i < RING_CAPACITY; i++) {
+            assertTrue(mQueue.send(OutboundScheduler.PRIORITY_BULK, new byte[] { (byte) i },
+                    true));
+        }
+        // far below the byte bound, but the bulk ring would overflow on open
+        assertFalse(mQueue.send(OutboundScheduler.PRIORITY_BULK, new byte[1], true));
+        // other classes have their own room
+        assertTrue(mQueue.send(OutboundScheduler.PRIORITY_CONTROL, new byte[1], true));
+
+        mQueue.open();
+        awaitExecutor();
+        Map<String, Object> metrics = mQueue.getMetrics();
+        assertEquals((long) RING_CAPACITY + 1, metrics.get("flushed"));
+        assertEquals(1L, metrics.get("rejected"));
+        assertEquals(RING_CAPACITY + 1, mSent.size());
+    }
+
+    @Test
+    public void dropOldestMakesRoomInTheFullClass() throws InterruptedException {
+        mQueue.configure(PreOpenQueue.DEFAULT_MAX_BYTES, PreOpenQueue.OverflowPolicy.DROP_OLDEST,
+                0);
+        assertTrue(mQueue.send(OutboundScheduler.PRIORITY_INTERACTIVE, new byte[] { -1 }, true));
+        for (int i = 0; i < RING_CAPACITY + 4; i++) {
+            assertTrue(mQueue.send(OutboundScheduler.PRIORITY_BULK, new byte[] { (byte) i },
+                    true));
+        }
+
+        mQueue.open();
+        awaitExecutor();
+        Map<String, Object> metrics = mQueue.getMetrics();
+        assertEquals((long) RING_CAPACITY + 1, metrics.get("flushed"));
+        assertEquals(4L, metrics.get("dropped"));
+        assertEquals(0L, metrics.get("rejected"));
+        assertEquals(RING_CAPACITY + 1, mSent.size());
+        assertEquals(-1, mSent.get(0)[0]);
+        assertEquals(4, mSent.get(1)[0]);
+    }
+
+    private void awaitExecutor() throws InterruptedException {
+        // drains re-post themselves until the rings are empty
+        for (int i = 0; i < 10; i++) {
+            CountDownLatch done = new CountDownLatch(1);
+            mExecutor.execute(done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicatedMapTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<Object> mChanges = new ArrayList<>();
+    private final ReplicatedMap mMap = new ReplicatedMap(ReplicatedMap.DEFAULT_TICK_MS,
+            mChanges::addAll);
+
+    @Test
+    public void newerVersionWins() throws IOException {
+        merge(new Message().entry("a", 1, 7, new byte[] { 1 }));
+        merge(new Message().entry("a", 3, 7, new byte[] { 3 }).entry("b", 1, 7, null));
+        // older than what's merged
+        merge(new Message().entry("a", 2, 7, new byte[] { 2 }));
+
+        assertEquals(1, mMap.snapshot().size());
+        assertArrayEquals(new byte[] { 3 }, mMap.snapshot().get("a"));
+        assertEquals(3L, mMap.getMetrics().get("merged"));
+        assertEquals(1L, mMap.getMetrics().get("stale"));
+        assertEquals(1, mMap.getMetrics().get("tombstones"));
+        // key, value pairs of each merged entry
+        assertEquals(6, mChanges.size());
+        assertEquals(Arrays.asList("a", "a", "b"),
+                Arrays.asList(mChanges.get(0), mChanges.get(2), mChanges.get(4)));
+        assertNull(mChanges.get(5));
+    }
+
+    @Test
+    public void concurrentWritesResolveByNode() throws IOException {
+        merge(new Message().entry("a", 5, 1, new byte[] { 1 }));
+        merge(new Message().entry("a", 5, 2, new byte[] { 2 }));
+        merge(new Message().entry("a", 5, 1, new byte[] { 3 }));
+        assertArrayEquals(new byte[] { 2 }, mMap.snapshot().get("a"));
+    }
+
+    @Test
+    public void localWritesFollowMergedVersions() throws IOException {
+        merge(new Message().entry("a", 100, Integer.MAX_VALUE, new byte[] { 1 }));
+        mMap.put("a", new byte[] { 2 });
+        // the local write got a later version, so the peer's write of version 100 is stale
+        merge(new Message().entry("a", 100, Integer.MAX_VALUE, new byte[] { 3 }));
+        assertArrayEquals(new byte[] { 2 }, mMap.snapshot().get("a"));
+    }
+
+    @Test
+    public void removalWinsOverStaleValue() throws IOException {
+        merge(new Message().entry("a", 1, 7, new byte[] { 1 }));
+        mMap.remove("a");
+        merge(new Message().entry("a", 1, 7, new byte[] { 1 }));
+        assertTrue(mMap.snapshot().isEmpty());
+        assertEquals(1, mMap.getMetrics().get("tombstones"));
+    }
+
+    @Test
+    public void oversizedValueLengthIsDroppedBeforeAllocating() throws IOException {
+        Message message = new Message().entry("a", 1, 7, new byte[] { 1 });
+        message.count++;
+        message.out.writeShort(1);
+        message.out.write('b');
+        message.out.writeLong(2);
+        message.out.writeInt(7);
+        message.out.writeInt(Integer.MAX_VALUE);
+        merge(message);
+        assertEquals(1, mMap.snapshot().size());
+        assertFalse(mMap.snapshot().containsKey("b"));
+    }
+
+    @Test
+    public void negativeValueLengthOtherThanTombstoneIsDropped() throws IOException {
+        Message message = new Message().entry("a", 1, 7, new byte[] { 1 });
+        message.count++;
+        message.out.writeShort(1);
+        message.out.write('b');
+        message.out.writeLong(2);
+        message.out.writeInt(7);
+        message.out.writeInt(-2);
+        merge(message);
+        assertEquals(1L, mMap.getMetrics().get("merged"));
+        assertEquals(0, mMap.getMetrics().get("tombstones"));
+    }
+
+    @Test
+    public void rejectedSnapshotIsRetriedOnceTheChannelOpens() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            DataChannelPeerConnectionClient client =
+                    new DataChannelPeerConnectionClient(null, executor);
+            // too small for the snapshot
+            client.configurePreOpenQueue(1, PreOpenQueue.OverflowPolicy.REJECT,
+                    PreOpenQueue.DEFAULT_MAX_BLOCK_MS);
+            mMap.put("a", new byte[] { 1 });
+            mMap.attach(client);
+            assertEquals(0L, mMap.getMetrics().get("snapshotBytes"));
+            mMap.flush();
+            assertEquals(0L, mMap.getMetrics().get("snapshotBytes"));
+
+            client.onOpen();
+            mMap.flush();
+            assertTrue((Long) mMap.getMetrics().get("snapshotBytes") > 0);
+            // the snapshot covered the pending change
+            assertEquals(0L, mMap.getMetrics().get("deltas"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keyLongerThanMaxIsRejected() {
+        char[] key = new char[ReplicatedMap.MAX_KEY_BYTES / 2 + 1];
+        // two UTF-8 bytes each
+        Arrays.fill(key, '\u00e9');
+        mMap.put(new String(key), new byte[0]);
+    }
+
+    private void merge(Message message) throws IOException {
+        mMap.onMessage(MessageKinds.REPLICA_DELTA, message.toBuffer());
+    }
+
+    private static class Message {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        int count;
+
+        Message entry(String key, long version, int node, byte[] value) throws IOException {
+            byte[] encoded = key.getBytes(UTF_8);
+            out.writeShort(encoded.length);
+            out.write(encoded);
+            out.writeLong(version);
+            out.writeInt(node);
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+            count++;
+            return this;
+        }
+
+        ByteBuffer toBuffer() {
+            byte[] entries = bytes.toByteArray();
+            ByteBuffer buffer = ByteBuffer.allocate(4 + entries.length);
+            buffer.putInt(count).put(entries);
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
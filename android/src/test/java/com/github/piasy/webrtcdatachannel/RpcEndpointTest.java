@@ -0,0 +1,120 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RpcEndpointTest {
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    private RpcEndpoint mCaller;
+    private RpcEndpoint mCallee;
+
+    @After
+    public void tearDown() {
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void callIdsUseAllThirtyTwoBits() {
+        connect();
+        mCallee.setHandler("echo", (callId, method, payload) ->
+                mCallee.respond(callId, null, payload));
+        AtomicReference<byte[]> response = new AtomicReference<>();
+        AtomicReference<String> error = new AtomicReference<>();
+        mCaller.call(0xFFFFFFFFL, "echo", new byte[] { 1, 2 }, 0xFFFFFFFFL,
+                OutboundScheduler.PRIORITY_INTERACTIVE, callback(response, error));
+        assertNull(error.get());
+        assertArrayEquals(new byte[] { 1, 2 }, response.get());
+        assertEquals(1L, ((Map<?, ?>) mCaller.getMetrics().get("echo")).get("count"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void callIdPastThirtyTwoBitsIsRejected() {
+        connect();
+        mCaller.call(0x100000000L, "echo", new byte[0], 1000,
+                OutboundScheduler.PRIORITY_INTERACTIVE, callback(null, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeCallIdIsRejected() {
+        connect();
+        mCaller.call(-1, "echo", new byte[0], 1000, OutboundScheduler.PRIORITY_INTERACTIVE,
+                callback(null, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void timeoutPastThirtyTwoBitsIsRejected() {
+        connect();
+        mCaller.call(1, "echo", new byte[0], 0x100000000L,
+                OutboundScheduler.PRIORITY_INTERACTIVE, callback(null, null));
+    }
+
+    @Test
+    public void missingHandlerFailsTheCall() {
+        connect();
+        AtomicReference<String> error = new AtomicReference<>();
+        mCaller.call(1, "nope", new byte[0], 1000, OutboundScheduler.PRIORITY_INTERACTIVE,
+                callback(null, error));
+        assertEquals(RpcEndpoint.ERROR_NO_HANDLER, error.get());
+    }
+
+    @Test
+    public void duplicateCallIdFailsWithoutTouchingTheCallInFlight() {
+        connect();
+        // answered later
+        mCallee.setHandler("slow", (callId, method, payload) -> {
+        });
+        AtomicReference<byte[]> firstResponse = new AtomicReference<>();
+        AtomicReference<String> firstError = new AtomicReference<>();
+        mCaller.call(1, "slow", new byte[0], 1000, OutboundScheduler.PRIORITY_INTERACTIVE,
+                callback(firstResponse, firstError));
+        AtomicReference<String> secondError = new AtomicReference<>();
+        mCaller.call(1, "slow", new byte[0], 1000, OutboundScheduler.PRIORITY_INTERACTIVE,
+                callback(null, secondError));
+        assertEquals(RpcEndpoint.ERROR_DUPLICATE_ID, secondError.get());
+
+        mCallee.respond(1, null, new byte[] { 3 });
+        assertNull(firstError.get());
+        assertArrayEquals(new byte[] { 3 }, firstResponse.get());
+    }
+
+    // messages are delivered synchronously, like two peers on one thread
+    private void connect() {
+        mCaller = new RpcEndpoint(mTimer, (message, priority) -> {
+            deliver(mCallee, message);
+            return true;
+        });
+        mCallee = new RpcEndpoint(mTimer, (message, priority) -> {
+            deliver(mCaller, message);
+            return true;
+        });
+    }
+
+    private static void deliver(RpcEndpoint endpoint, byte[] message) {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        endpoint.onMessage(buffer.get(), buffer);
+    }
+
+    private static RpcEndpoint.Callback callback(AtomicReference<byte[]> response,
+            AtomicReference<String> error) {
+        return new RpcEndpoint.Callback() {
+            @Override
+            public void onResponse(byte[] payload) {
+                response.set(payload);
+            }
+
+            @Override
+            public void onError(String code, String message) {
+                error.set(code);
+            }
+        };
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Native side cost of a burst sent by {@code sendMessages}, one buffer of data frames handed to
+ * {@link DataChannelPeerConnectionClient#sendFrames(ByteBuffer, int)} like the plugin does,
+ * against a platform message of one frame per message, both until the connection's executor
+ * drained them. The platform channel call saved per message comes on top of it.
+ *
+ * <p>It's not part of the unit tests, remove the {@code @Ignore} to run it.
+ */
+@Ignore("benchmark")
+public class SendMessagesBenchmark {
+    private static final int SESSION = 7;
+    // fits in the bulk ring, nothing is rejected
+    private static final int MESSAGES = 4000;
+    private static final int PAYLOAD_SIZE = 64;
+    private static final int ROUNDS = 5;
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final DataChannelPeerConnectionClient mClient =
+            new DataChannelPeerConnectionClient(null, mExecutor);
+    private long mSent;
+
+    @Before
+    public void setUp() {
+        mClient.onOpen();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void batchedVsPerCall() {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        // built by Dart
+        ByteBuffer batch = encode(payload, MESSAGES);
+        ByteBuffer[] calls = new ByteBuffer[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            calls[i] = encode(payload, 1);
+        }
+        long perCallNs = Long.MAX_VALUE;
+        long batchedNs = Long.MAX_VALUE;
+        // the first rounds warm up, the best round counts
+        for (int round = 0; round < ROUNDS; round++) {
+            long startNs = System.nanoTime();
+            for (ByteBuffer call : calls) {
+                assertEquals(0, mClient.sendFrames(call.duplicate(), SESSION));
+            }
+            awaitDrained();
+            perCallNs = Math.min(perCallNs, System.nanoTime() - startNs);
+
+            startNs = System.nanoTime();
+            assertEquals(0, mClient.sendFrames(batch.duplicate(), SESSION));
+            awaitDrained();
+            batchedNs = Math.min(batchedNs, System.nanoTime() - startNs);
+        }
+        System.out.println("sendMessage x " + MESSAGES + ": " + perCallNs / 1000 + " us, "
+                           + "sendMessages: " + batchedNs / 1000 + " us");
+    }
+
+    private void awaitDrained() {
+        mSent += MESSAGES;
+        long deadlineNs = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (bulkSent() < mSent) {
+            assertTrue(System.nanoTime() < deadlineNs);
+            Thread.yield();
+        }
+    }
+
+    private long bulkSent() {
+        return (Long) ((Map<?, ?>) mClient.getSendMetrics().get("bulk")).get("sent");
+    }
+
+    private static ByteBuffer encode(byte[] payload, int count) {
+        ByteBuffer frames = ByteBuffer.allocate(DataFrames.frameSize(payload.length) * count);
+        for (int i = 0; i < count; i++) {
+            DataFrames.write(frames, SESSION, OutboundScheduler.PRIORITY_BULK,
+                    DataFrames.FLAG_BINARY, payload);
+        }
+        frames.flip();
+        return frames;
+    }
+}
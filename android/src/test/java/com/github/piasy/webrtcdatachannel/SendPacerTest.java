@@ -0,0 +1,50 @@
+package com.github.piasy.webrtcdatachannel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SendPacerTest {
+    private static final long INTERVAL_NS = 100000000L;
+
+    private long mBuffered;
+    private final SendPacer mPacer = new SendPacer(() -> mBuffered);
+
+    @Test
+    public void disabledByDefault() {
+        assertEquals(false, mPacer.getMetrics().get("enabled"));
+        assertEquals(0L, mPacer.acquire(1024 * 1024, false, 1));
+        assertEquals(0L, mPacer.acquire(1024 * 1024, false, 2));
+    }
+
+    @Test
+    public void invalidRatesAreRejected() {
+        long[][] rates = { { 0, 1024 }, { -1, 1024 }, { 2048, 1024 } };
+        for (long[] rate : rates) {
+            try {
+                mPacer.configure(true, rate[0], rate[1]);
+                fail("rates " + rate[0] + ", " + rate[1] + " accepted");
+            } catch (IllegalArgumentException expected) {
+                // kept disabled
+            }
+        }
+        assertEquals(false, mPacer.getMetrics().get("enabled"));
+    }
+
+    @Test
+    public void stalledChannelKeepsTheMinRate() {
+        mPacer.configure(true, 1024, 1024 * 1024);
+        long now = 1;
+        // nothing drains while the buffer only grows
+        for (int i = 0; i < 50; i++) {
+            mBuffered += 64 * 1024;
+            mPacer.acquire(64 * 1024, true, now);
+            now += INTERVAL_NS;
+        }
+        assertEquals(1024L, mPacer.getMetrics().get("rateBytesPerSec"));
+        long waitNs = mPacer.acquire(1, false, now);
+        assertTrue(waitNs > 0);
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.piasy.webrtcdatachannel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopicRouterTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<byte[]> mSent = new ArrayList<>();
+    private final List<byte[]> mReceived = new ArrayList<>();
+    private final TopicRouter mRouter = new TopicRouter((message, priority) -> mSent.add(message),
+            mReceived::add);
+
+    @Test
+    public void subscriptionSetFraming() {
+        mRouter.setSubscriptions(Arrays.asList("a", "\u00e9t\u00e9"));
+        assertEquals(1, mSent.size());
+        ByteBuffer message = ByteBuffer.wrap(mSent.get(0));
+        assertEquals(MessageKinds.TOPIC_SUBSCRIPTIONS, message.get());
+        assertEquals(2, message.getShort());
+        List<String> topics = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            byte[] topic = new byte[message.get() & 0xFF];
+            message.get(topic);
+            topics.add(new String(topic, UTF_8));
+        }
+        assertFalse(message.hasRemaining());
+        // the order of the set isn't specified
+        Collections.sort(topics);
+        assertEquals(Arrays.asList("a", "\u00e9t\u00e9"), topics);
+    }
+
+    @Test
+    public void publishPrefixesTheKindAndFiltersOnPeerSubscriptions() {
+        byte[] news = topicMessage("news", new byte[] { 1, 2 });
+        // peer subscriptions unknown, everything is sent
+        assertTrue(mRouter.publish(topicMessage("sports", new byte[0]), 0));
+        assertEquals(1, mSent.size());
+
+        receive(MessageKinds.TOPIC_SUBSCRIPTIONS, subscriptions("news"));
+        assertTrue(mRouter.publish(news, 0));
+        assertTrue(mRouter.publish(topicMessage("sports", new byte[0]), 0));
+        assertEquals(2, mSent.size());
+        byte[] sent = mSent.get(1);
+        assertEquals(MessageKinds.TOPIC_MESSAGE, sent[0]);
+        assertArrayEquals(news, Arrays.copyOfRange(sent, 1, sent.length));
+        assertEquals(1L, mRouter.getMetrics().get("filtered"));
+        assertEquals(1, mRouter.getMetrics().get("remoteTopics"));
+    }
+
+    @Test
+    public void receivedMessagesAreRoutedBySubscription() {
+        mRouter.setSubscriptions(Collections.singletonList("news"));
+        byte[] news = topicMessage("news", new byte[] { 3 });
+        receive(MessageKinds.TOPIC_MESSAGE, news);
+        receive(MessageKinds.TOPIC_MESSAGE, topicMessage("sports", new byte[] { 4 }));
+        assertEquals(1, mReceived.size());
+        assertArrayEquals(news, mReceived.get(0));
+        assertEquals(1L, mRouter.getMetrics().get("unsubscribed"));
+    }
+
+    @Test
+    public void malformedMessagesAreDropped() {
+        mRouter.setSubscriptions(Collections.singletonList("news"));
+        assertFalse(mRouter.publish(new byte[0], 0));
+        assertFalse(mRouter.publish(new byte[] { 5, 'n' }, 0));
+        // topic length past the end
+        receive(MessageKinds.TOPIC_MESSAGE, new byte[] { 9, 'n', 'e', 'w', 's' });
+        // more topics announced than present
+        receive(MessageKinds.TOPIC_SUBSCRIPTIONS, new byte[] { 0, 2, 1, 'a' });
+        assertTrue(mReceived.isEmpty());
+        assertEquals(-1, mRouter.getMetrics().get("remoteTopics"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void topicLongerThanMaxIsRejected() {
+        char[] topic = new char[TopicRouter.MAX_TOPIC_BYTES + 1];
+        Arrays.fill(topic, 'x');
+        mRouter.setSubscriptions(Collections.singletonList(new String(topic)));
+    }
+
+    private void receive(int kind, byte[] body) {
+        mRouter.onMessage(kind, ByteBuffer.wrap(body));
+    }
+
+    private static byte[] subscriptions(String topic) {
+        byte[] encoded = topic.getBytes(UTF_8);
+        return ByteBuffer.allocate(2 + 1 + encoded.length)
+                .putShort((short) 1)
+                .put((byte) encoded.length)
+                .put(encoded)
+                .array();
+    }
+
+    private static byte[] topicMessage(String topic, byte[] payload) {
+        byte[] encoded = topic.getBytes(UTF_8);
+        return ByteBuffer.allocate(1 + encoded.length + payload.length)
+                .put((byte) encoded.length)
+                .put(encoded)
+                .put(payload)
+                .array();
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmbeddedRoomServerTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int TIMEOUT_MS = 5000;
+  private static final String ROOM = "test-room";
+
+  private final EmbeddedRoomServer server = new EmbeddedRoomServer();
+  private int port;
+
+  @Before
+  public void setUp() throws IOException {
+    port = server.start(0);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Test
+  public void joinHandsSavedMessagesToTheNextClient() throws Exception {
+    JSONObject first = join();
+    assertTrue(first.getBoolean("is_initiator"));
+    assertEquals(0, first.getJSONArray("messages").length());
+    assertEquals("ws://127.0.0.1:" + port + "/ws", first.getString("wss_url"));
+
+    JSONObject result = new JSONObject(
+        post("/message/" + ROOM + "/" + first.getString("client_id"), "offer"));
+    assertEquals("SUCCESS", result.getString("result"));
+
+    JSONObject second = join();
+    assertFalse(second.getBoolean("is_initiator"));
+    JSONArray messages = second.getJSONArray("messages");
+    assertEquals(1, messages.length());
+    assertEquals("offer", messages.getString(0));
+
+    assertEquals("FULL", new JSONObject(post("/join/" + ROOM, "")).getString("result"));
+  }
+
+  @Test
+  public void webSocketRegisterSendAndLeave() throws Exception {
+    String first = join().getString("client_id");
+    String second = join().getString("client_id");
+
+    // queued until the first client registers
+    post("/message/" + ROOM + "/" + second, "early");
+    WebSocket firstSocket = new WebSocket(port);
+    firstSocket.sendText(command("register", first, null));
+    assertMessage(firstSocket.readText(), first, "early");
+
+    WebSocket secondSocket = new WebSocket(port);
+    secondSocket.sendText(command("register", second, null));
+    firstSocket.sendText(command("send", first, "over websocket"));
+    assertMessage(secondSocket.readText(), second, "over websocket");
+
+    // WebSocket server POST
+    post("/" + ROOM + "/" + second, "over post");
+    assertMessage(firstSocket.readText(), first, "over post");
+
+    post("/leave/" + ROOM + "/" + first, "");
+    assertEquals(0x8, firstSocket.readFrame()[0]);
+
+    // there's room for another client once one left
+    assertTrue(join().has("client_id"));
+    firstSocket.close();
+    secondSocket.close();
+  }
+
+  @Test
+  public void malformedFrameLengthOnlyClosesItsConnection() throws Exception {
+    String clientId = join().getString("client_id");
+    WebSocket socket = new WebSocket(port);
+    socket.sendText(command("register", clientId, null));
+    // 64 bit length with the most significant bit set
+    socket.out.write(new byte[] {(byte) 0x81, (byte) (0x80 | 127), (byte) 0x80, 0, 0, 0, 0, 0,
+        0, 1, 0, 0, 0, 0});
+    socket.out.flush();
+    assertEquals(0x8, socket.readFrame()[0]);
+    socket.close();
+
+    assertTrue(server.isRunning());
+    assertTrue(join().has("client_id"));
+  }
+
+  private JSONObject join() throws IOException, JSONException {
+    JSONObject response = new JSONObject(post("/join/" + ROOM, ""));
+    assertEquals("SUCCESS", response.getString("result"));
+    return response.getJSONObject("params");
+  }
+
+  private String post(String path, String body) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+    connection.setConnectTimeout(TIMEOUT_MS);
+    connection.setReadTimeout(TIMEOUT_MS);
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    OutputStream out = connection.getOutputStream();
+    out.write(body.getBytes(UTF_8));
+    out.close();
+    assertEquals(200, connection.getResponseCode());
+    InputStream in = connection.getInputStream();
+    String response = new String(readAll(in), UTF_8);
+    in.close();
+    return response;
+  }
+
+  private static String command(String cmd, String clientId, String msg) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("cmd", cmd);
+    json.put("roomid", ROOM);
+    json.put("clientid", clientId);
+    if (msg != null) {
+      json.put("msg", msg);
+    }
+    return json.toString();
+  }
+
+  private static void assertMessage(String text, String clientId, String msg)
+      throws JSONException {
+    JSONObject json = new JSONObject(text);
+    assertEquals(ROOM, json.getString("roomid"));
+    assertEquals(clientId, json.getString("clientid"));
+    assertEquals(msg, json.getString("msg"));
+    assertEquals("", json.getString("error"));
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  // Bare WebSocket client, frames are small and masked with a zero key.
+  private static class WebSocket {
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+
+    WebSocket(int port) throws IOException {
+      socket = new Socket("127.0.0.1", port);
+      socket.setSoTimeout(TIMEOUT_MS);
+      in = socket.getInputStream();
+      out = socket.getOutputStream();
+      out.write(("GET /ws HTTP/1.1\r\n"
+                     + "Host: 127.0.0.1:" + port + "\r\n"
+                     + "Upgrade: websocket\r\n"
+                     + "Connection: Upgrade\r\n"
+                     + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                     + "Sec-WebSocket-Version: 13\r\n\r\n")
+                    .getBytes(UTF_8));
+      out.flush();
+      // status line and headers end with an empty line
+      int matched = 0;
+      while (matched < 4) {
+        int b = in.read();
+        assertTrue(b >= 0);
+        matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+      }
+    }
+
+    void sendText(String text) throws IOException {
+      byte[] payload = text.getBytes(UTF_8);
+      assertTrue(payload.length < 126);
+      out.write(new byte[] {(byte) 0x81, (byte) (0x80 | payload.length), 0, 0, 0, 0});
+      out.write(payload);
+      out.flush();
+    }
+
+    String readText() throws IOException {
+      byte[] frame = readFrame();
+      assertEquals(0x1, frame[0]);
+      return new String(frame, 1, frame.length - 1, UTF_8);
+    }
+
+    // Returns the opcode followed by the payload.
+    byte[] readFrame() throws IOException {
+      int head = in.read();
+      int length = in.read() & 0x7F;
+      assertTrue(head >= 0);
+      if (length == 126) {
+        length = (in.read() << 8) | in.read();
+      }
+      byte[] frame = new byte[length + 1];
+      frame[0] = (byte) (head & 0x0F);
+      int offset = 1;
+      while (offset < frame.length) {
+        int read = in.read(frame, offset, frame.length - offset);
+        assertTrue(read >= 0);
+        offset += read;
+      }
+      return frame;
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+}
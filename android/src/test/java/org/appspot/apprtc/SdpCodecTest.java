@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2018 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class SdpCodecTest {
+  private static final String OFFER = "v=0\r\n"
+      + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+      + "s=-\r\n"
+      + "t=0 0\r\n"
+      + "a=group:BUNDLE audio data\r\n"
+      + "a=msid-semantic: WMS\r\n"
+      + "a=extmap-allow-mixed\r\n"
+      + "m=audio 9 UDP/TLS/RTP/SAVPF 111\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=mid:audio\r\n"
+      + "a=rtpmap:111 opus/48000/2\r\n"
+      + "m=application 9 DTLS/SCTP 5000\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=ice-ufrag:abcd\r\n"
+      + "a=mid:data\r\n"
+      + "a=sctpmap:5000 webrtc-datachannel 1024\r\n";
+
+  @Test
+  public void minimizeKeepsOnlyTheDataSection() {
+    String minimized = SdpCodec.minimizeDataOnly(OFFER);
+    assertEquals("v=0\r\n"
+            + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+            + "s=-\r\n"
+            + "t=0 0\r\n"
+            + "a=group:BUNDLE data\r\n"
+            + "m=application 9 DTLS/SCTP 5000\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=ice-ufrag:abcd\r\n"
+            + "a=mid:data\r\n"
+            + "a=sctpmap:5000 webrtc-datachannel 1024\r\n",
+        minimized);
+    assertTrue(minimized.length() < OFFER.length());
+  }
+
+  @Test
+  public void minimizeIsIdempotentAndAcceptsBareNewlines() {
+    String minimized = SdpCodec.minimizeDataOnly(OFFER);
+    assertEquals(minimized, SdpCodec.minimizeDataOnly(minimized));
+    assertEquals(minimized, SdpCodec.minimizeDataOnly(OFFER.replace("\r\n", "\n")));
+  }
+
+  @Test
+  public void bundleIsDroppedWithoutDataSection() {
+    String minimized = SdpCodec.minimizeDataOnly(
+        OFFER.substring(0, OFFER.indexOf("m=application")));
+    assertFalse(minimized.contains("a=group:BUNDLE"));
+    assertFalse(minimized.contains("m="));
+  }
+
+  @Test
+  public void plainSdpRoundTrip() throws Exception {
+    JSONObject json = new JSONObject();
+    SdpCodec.putSdp(json, OFFER, false);
+    assertFalse(json.has("sdpz"));
+    assertEquals(OFFER, SdpCodec.getSdp(json));
+  }
+}
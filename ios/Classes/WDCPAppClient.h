@@ -35,7 +35,11 @@ typedef NS_ENUM(NSInteger, WDCPAppClientState) {
 - (void)appClient:(WDCPAppClient*)client
     didChangeConnectionState:(RTCIceConnectionState)state;
 
-- (void)appClient:(WDCPAppClient*)client onMessage:(NSString*)message;
+// |message| is the payload as received, UTF-8 text unless |isBinary|, the kind
+// byte of binary messages is stripped.
+- (void)appClient:(WDCPAppClient*)client
+        onMessage:(NSData*)message
+         isBinary:(BOOL)isBinary;
 
 - (void)appClient:(WDCPAppClient*)client didError:(NSError*)error;
 
@@ -47,12 +51,18 @@ typedef NS_ENUM(NSInteger, WDCPAppClientState) {
     : NSObject<RTCPeerConnectionDelegate, RTCDataChannelDelegate,
                ARDSignalingChannelDelegate>
 
+// Stream id of a data channel created by both peers, skipping the in-band
+// open handshake, negative for an in-band channel. Set before connecting.
+@property(nonatomic, assign) int negotiatedChannelId;
+
 - (instancetype)initWithDelegate:(id<WDCPAppClientDelegate>)delegate;
 
 - (void)connectToRoomWithRoomUrl:(NSString*)roomUrl roomId:(NSString*)roomId;
 
 - (void)sendMessage:(NSString*)message;
 
+- (void)sendData:(NSData*)data;
+
 - (void)disconnect;
 
 @end
@@ -45,6 +45,9 @@ static NSInteger const kWDCPAppClientErrorInvalidRoom = -6;
 static BOOL const kWDCPAppClientEnableTracing = NO;
 static BOOL const kWDCPAppClientEnableRtcEventLog = YES;
 static int64_t const kWDCPAppClientRtcEventLogMaxSizeInBytes = 5e6;  // 5 MB.
+// Binary messages start with a kind byte, 0 for user messages, other kinds
+// belong to protocols layered on the data channel, which aren't served here.
+static uint8_t const kWDCPAppClientMessageKindUser = 0;
 
 @implementation WDCPAppClient {
     RTCFileLogger* _fileLogger;
@@ -80,6 +83,7 @@ static int64_t const kWDCPAppClientRtcEventLogMaxSizeInBytes = 5e6;  // 5 MB.
 - (instancetype)initWithDelegate:(id<WDCPAppClientDelegate>)delegate {
     if (self = [super init]) {
         _delegate = delegate;
+        _negotiatedChannelId = -1;
         
         _roomServerClient = [[ARDAppEngineClient alloc] init];
         _turnClient = [[ARDTURNClient alloc] init];
@@ -170,6 +174,15 @@ static int64_t const kWDCPAppClientRtcEventLogMaxSizeInBytes = 5e6;  // 5 MB.
     [_dataChannel sendData:buffer];
 }
 
+- (void)sendData:(NSData*)data {
+    NSMutableData* message = [NSMutableData dataWithCapacity:data.length + 1];
+    [message appendBytes:&kWDCPAppClientMessageKindUser length:1];
+    [message appendData:data];
+    RTCDataBuffer* buffer =
+        [[RTCDataBuffer alloc] initWithData:message isBinary:YES];
+    [_dataChannel sendData:buffer];
+}
+
 - (void)disconnect {
     if (_state == kWDCPAppClientStateDisconnected) {
         return;
@@ -314,9 +327,16 @@ static int64_t const kWDCPAppClientRtcEventLogMaxSizeInBytes = 5e6;  // 5 MB.
 
 - (void)dataChannel:(nonnull RTCDataChannel*)dataChannel
     didReceiveMessageWithBuffer:(nonnull RTCDataBuffer*)buffer {
-    [_delegate appClient:self
-               onMessage:[[NSString alloc] initWithData:buffer.data
-                                               encoding:NSUTF8StringEncoding]];
+    NSData* data = buffer.data;
+    if (buffer.isBinary) {
+        if (data.length == 0 ||
+            ((const uint8_t*)data.bytes)[0] != kWDCPAppClientMessageKindUser) {
+            RTCLog(@"Drop binary message of unsupported kind");
+            return;
+        }
+        data = [data subdataWithRange:NSMakeRange(1, data.length - 1)];
+    }
+    [_delegate appClient:self onMessage:data isBinary:buffer.isBinary];
 }
 
 - (void)dataChannelDidChangeState:(nonnull RTCDataChannel*)dataChannel {
@@ -484,10 +504,10 @@ static int64_t const kWDCPAppClientRtcEventLogMaxSizeInBytes = 5e6;  // 5 MB.
     RTCDataChannelConfiguration* dcConfig =
         [[RTCDataChannelConfiguration alloc] init];
     dcConfig.isOrdered = YES;
-    dcConfig.isNegotiated = NO;
+    dcConfig.isNegotiated = _negotiatedChannelId >= 0;
     dcConfig.maxRetransmits = -1;
     dcConfig.maxPacketLifeTime = -1;
-    dcConfig.channelId = 0;
+    dcConfig.channelId = MAX(_negotiatedChannelId, 0);
     _dataChannel = [_peerConnection dataChannelForLabel:@"P2P MSG DC"
                                           configuration:dcConfig];
     _dataChannel.delegate = self;
@@ -32,23 +32,74 @@
 
 static NSString* const kWDCPMethodChannelName =
     @"com.github.piasy/webrtc_data_channel.method";
-static NSString* const kWDCPEventChannelName =
-    @"com.github.piasy/webrtc_data_channel.event";
+static NSString* const kWDCPSignalingStateChannelName =
+    @"com.github.piasy/webrtc_data_channel.event/signaling_state";
+static NSString* const kWDCPIceStateChannelName =
+    @"com.github.piasy/webrtc_data_channel.event/ice_state";
+static NSString* const kWDCPDataChannelName =
+    @"com.github.piasy/webrtc_data_channel.data";
 static NSString* const kWDCPMethodConnectToRoom = @"connectToRoom";
-static NSString* const kWDCPMethodSendMessage = @"sendMessage";
 static NSString* const kWDCPMethodDisconnect = @"disconnect";
+static NSString* const kWDCPMethodSetMessageListening = @"setMessageListening";
 
-static int const kEventTypeSignalingState = 1;
-static int const kEventTypeIceState = 2;
-static int const kEventTypeMessage = 3;
+// data frame: | session: u16 | lane: u8 | flags: u8 | length: u32 | payload |
+static NSUInteger const kDataFrameHeaderSize = 8;
+static uint8_t const kDataFrameFlagBinary = 1;
 
-@interface WebRTCDataChannelPlugin ()<FlutterStreamHandler,
-                                      WDCPAppClientDelegate>
+// One kind of event on its own event channel, events are dropped while there
+// is no listener on Dart side.
+@interface WDCPEventStream : NSObject<FlutterStreamHandler>
+
+- (void)success:(id)event;
+
+- (void)error:(NSString*)message;
+
+@end
+
+@implementation WDCPEventStream {
+    volatile FlutterEventSink _sink;
+}
+
+- (FlutterError* _Nullable)onCancelWithArguments:(id _Nullable)arguments {
+    _sink = nil;
+    return nil;
+}
+
+- (FlutterError* _Nullable)onListenWithArguments:(id _Nullable)arguments
+                                       eventSink:
+                                           (nonnull FlutterEventSink)events {
+    _sink = events;
+    return nil;
+}
+
+- (void)success:(id)event {
+    FlutterEventSink sink = _sink;
+    if (sink) {
+        sink(event);
+    }
+}
+
+- (void)error:(NSString*)message {
+    FlutterEventSink sink = _sink;
+    _sink = nil;
+
+    if (sink) {
+        sink([FlutterError errorWithCode:@"" message:message details:nil]);
+    }
+}
+
+@end
+
+@interface WebRTCDataChannelPlugin ()<WDCPAppClientDelegate>
 @end
 
 @implementation WebRTCDataChannelPlugin {
     WDCPAppClient* _client;
-    volatile FlutterEventSink _eventSink;
+    WDCPEventStream* _signalingStateStream;
+    WDCPEventStream* _iceStateStream;
+    FlutterBasicMessageChannel* _dataChannel;
+    uint16_t _session;
+    volatile BOOL _messageListening;
 }
 
 + (void)registerWithRegistrar:(NSObject<FlutterPluginRegistrar>*)registrar {
@@ -59,16 +110,33 @@ static int const kEventTypeMessage = 3;
                                     binaryMessenger:[registrar messenger]];
     [registrar addMethodCallDelegate:plugin channel:methodChannel];
 
-    FlutterEventChannel* eventChannel =
-        [FlutterEventChannel eventChannelWithName:kWDCPEventChannelName
-                                  binaryMessenger:[registrar messenger]];
-    [eventChannel setStreamHandler:plugin];
+    [[FlutterEventChannel
+        eventChannelWithName:kWDCPSignalingStateChannelName
+             binaryMessenger:[registrar messenger]]
+        setStreamHandler:plugin->_signalingStateStream];
+    [[FlutterEventChannel eventChannelWithName:kWDCPIceStateChannelName
+                               binaryMessenger:[registrar messenger]]
+        setStreamHandler:plugin->_iceStateStream];
+
+    FlutterBasicMessageChannel* dataChannel = [FlutterBasicMessageChannel
+        messageChannelWithName:kWDCPDataChannelName
+               binaryMessenger:[registrar messenger]
+                         codec:[FlutterBinaryCodec sharedInstance]];
+    __weak WebRTCDataChannelPlugin* weakPlugin = plugin;
+    [dataChannel setMessageHandler:^(id message, FlutterReply callback) {
+        [weakPlugin sendFrames:message];
+        callback(nil);
+    }];
+    plugin->_dataChannel = dataChannel;
 }
 
 - (instancetype)init {
     if (self = [super init]) {
         _client = nil;
-        _eventSink = nil;
+        _signalingStateStream = [[WDCPEventStream alloc] init];
+        _iceStateStream = [[WDCPEventStream alloc] init];
+        _session = 0;
+        _messageListening = NO;
     }
     return self;
 }
@@ -78,44 +146,72 @@ static int const kEventTypeMessage = 3;
 - (void)handleMethodCall:(FlutterMethodCall*)call result:(FlutterResult)result {
     if ([kWDCPMethodConnectToRoom isEqualToString:call.method]) {
         NSDictionary* arguments = call.arguments;
+        id negotiatedChannelId =
+            [arguments objectForKey:@"negotiatedChannelId"];
         [self connectToRoom:[arguments objectForKey:@"roomUrl"]
-                     roomId:[arguments objectForKey:@"roomId"]];
-        result(@0);
-    } else if ([kWDCPMethodSendMessage isEqualToString:call.method]) {
-        NSDictionary* arguments = call.arguments;
-        [self sendMessage:[arguments objectForKey:@"message"]];
-        result(@0);
+                         roomId:[arguments objectForKey:@"roomId"]
+            negotiatedChannelId:[negotiatedChannelId isKindOfClass:[NSNumber class]]
+                                    ? [negotiatedChannelId intValue]
+                                    : -1];
+        result(@(_session));
     } else if ([kWDCPMethodDisconnect isEqualToString:call.method]) {
         [self disconnect];
         result(@0);
+    } else if ([kWDCPMethodSetMessageListening
+                   isEqualToString:call.method]) {
+        NSDictionary* arguments = call.arguments;
+        _messageListening =
+            [[arguments objectForKey:@"listening"] boolValue];
+        result(@0);
     } else {
         result(FlutterMethodNotImplemented);
     }
 }
 
-- (FlutterError* _Nullable)onCancelWithArguments:(id _Nullable)arguments {
-    _eventSink = nil;
-    return nil;
-}
-
-- (FlutterError* _Nullable)onListenWithArguments:(id _Nullable)arguments
-                                       eventSink:
-                                           (nonnull FlutterEventSink)events {
-    _eventSink = events;
-    return nil;
-}
-
 #pragma mark - API
 
-- (void)connectToRoom:(NSString*)roomUrl roomId:(NSString*)roomId {
+- (void)connectToRoom:(NSString*)roomUrl
+                 roomId:(NSString*)roomId
+    negotiatedChannelId:(int)negotiatedChannelId {
+    _session++;
     _client = [[WDCPAppClient alloc] initWithDelegate:self];
+    _client.negotiatedChannelId = negotiatedChannelId;
     [_client connectToRoomWithRoomUrl:roomUrl roomId:roomId];
 }
 
-- (void)sendMessage:(NSString*)message {
+- (void)sendFrames:(NSData*)frames {
     WDCPAppClient* client = _client;
-    if (client) {
-        [client sendMessage:message];
+    if (!client || !frames) {
+        return;
+    }
+    const uint8_t* bytes = frames.bytes;
+    NSUInteger offset = 0;
+    while (offset + kDataFrameHeaderSize <= frames.length) {
+        uint16_t session = (uint16_t)((bytes[offset] << 8) | bytes[offset + 1]);
+        uint8_t flags = bytes[offset + 3];
+        uint32_t length = ((uint32_t)bytes[offset + 4] << 24) |
+                          ((uint32_t)bytes[offset + 5] << 16) |
+                          ((uint32_t)bytes[offset + 6] << 8) |
+                          (uint32_t)bytes[offset + 7];
+        offset += kDataFrameHeaderSize;
+        if (length > frames.length - offset) {
+            RTCLogError(@"Drop truncated data frame");
+            return;
+        }
+        NSData* payload =
+            [frames subdataWithRange:NSMakeRange(offset, length)];
+        offset += length;
+
+        if (session != _session) {
+            continue;
+        }
+        if (flags & kDataFrameFlagBinary) {
+            [client sendData:payload];
+        } else {
+            [client sendMessage:[[NSString alloc]
+                                    initWithData:payload
+                                        encoding:NSUTF8StringEncoding]];
+        }
     }
 }
 
@@ -131,7 +227,7 @@ static int const kEventTypeMessage = 3;
 
 - (void)appClient:(WDCPAppClient*)client
     didChangeConnectionState:(RTCIceConnectionState)state {
-    [self notifyEvent:kEventTypeIceState key:@"state" value:@(state)];
+    [_iceStateStream success:@(state)];
 }
 
 - (void)appClient:(WDCPAppClient*)client
@@ -139,7 +235,7 @@ static int const kEventTypeMessage = 3;
     if (state == kWDCPAppClientStateDisconnected) {
         _client = nil;
     }
-    [self notifyEvent:kEventTypeSignalingState key:@"state" value:@(state)];
+    [_signalingStateStream success:@(state)];
 }
 
 - (void)appClient:(WDCPAppClient*)client didError:(NSError*)error {
@@ -149,24 +245,32 @@ static int const kEventTypeMessage = 3;
 - (void)appClient:(WDCPAppClient*)client didGetStats:(NSArray*)stats {
 }
 
-- (void)appClient:(WDCPAppClient*)client onMessage:(NSString*)message {
-    [self notifyEvent:kEventTypeMessage key:@"message" value:message];
-}
-
-- (void)notifyEvent:(int)type key:(NSString*)key value:(NSObject*)value {
-    FlutterEventSink sink = _eventSink;
-    if (sink) {
-        sink(@{@"type": @(type), key: value});
+- (void)appClient:(WDCPAppClient*)client
+        onMessage:(NSData*)payload
+         isBinary:(BOOL)isBinary {
+    if (!_messageListening) {
+        return;
     }
+    uint32_t length = (uint32_t)payload.length;
+    uint8_t header[] = {
+        (uint8_t)(_session >> 8), (uint8_t)_session, 0,
+        isBinary ? kDataFrameFlagBinary : 0,
+        (uint8_t)(length >> 24),  (uint8_t)(length >> 16),
+        (uint8_t)(length >> 8),   (uint8_t)length,
+    };
+    NSMutableData* frame =
+        [NSMutableData dataWithCapacity:kDataFrameHeaderSize + length];
+    [frame appendBytes:header length:kDataFrameHeaderSize];
+    [frame appendData:payload];
+    FlutterBasicMessageChannel* dataChannel = _dataChannel;
+    dispatch_async(dispatch_get_main_queue(), ^{
+        [dataChannel sendMessage:frame];
+    });
 }
 
 - (void)notifyError:(NSString*)error {
-    FlutterEventSink sink = _eventSink;
-    _eventSink = nil;
-
-    if (sink) {
-        sink([FlutterError errorWithCode:@"" message:error details:nil]);
-    }
+    [_signalingStateStream error:error];
+    [_iceStateStream error:error];
 }
 
 @end
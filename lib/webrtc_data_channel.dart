@@ -1,21 +1,87 @@
 import 'dart:async';
+import 'dart:convert';
+import 'dart:typed_data';
 
 import 'package:flutter/services.dart';
 
 const String METHOD_CHANNEL_NAME =
     "com.github.piasy/webrtc_data_channel.method";
-const String EVENT_CHANNEL_NAME = "com.github.piasy/webrtc_data_channel.event";
+const String SIGNALING_STATE_CHANNEL_NAME =
+    "com.github.piasy/webrtc_data_channel.event/signaling_state";
+const String ICE_STATE_CHANNEL_NAME =
+    "com.github.piasy/webrtc_data_channel.event/ice_state";
+const String RPC_REQUEST_CHANNEL_NAME =
+    "com.github.piasy/webrtc_data_channel.event/rpc_request";
+const String REPLICATED_MAP_CHANNEL_NAME =
+    "com.github.piasy/webrtc_data_channel.event/replicated_map";
+const String PEER_UNRESPONSIVE_CHANNEL_NAME =
+    "com.github.piasy/webrtc_data_channel.event/peer_unresponsive";
+const String DATA_CHANNEL_NAME = "com.github.piasy/webrtc_data_channel.data";
 
 const String METHOD_CONNECT_TO_ROOM = "connectToRoom";
-const String METHOD_SEND_MESSAGE = "sendMessage";
 const String METHOD_DISCONNECT = "disconnect";
+const String METHOD_SET_EVENT_BATCHING = "setEventBatching";
+const String METHOD_SET_MESSAGE_LISTENING = "setMessageListening";
+const String METHOD_GET_SEND_METRICS = "getSendMetrics";
+const String METHOD_SET_FLIGHT_RECORDER = "setFlightRecorder";
+const String METHOD_DUMP_FLIGHT_RECORDER = "dumpFlightRecorder";
+const String METHOD_START_RTC_EVENT_LOG = "startRtcEventLog";
+const String METHOD_STOP_RTC_EVENT_LOG = "stopRtcEventLog";
+const String METHOD_COLLECT_RTC_EVENT_LOGS = "collectRtcEventLogs";
+const String METHOD_START_ROOM_SERVER = "startRoomServer";
+const String METHOD_STOP_ROOM_SERVER = "stopRoomServer";
+const String METHOD_GET_SIGNALING_METRICS = "getSignalingMetrics";
+const String METHOD_GET_CONNECTION_TIMELINE = "getConnectionTimeline";
+const String METHOD_CONFIGURE_PRE_OPEN_QUEUE = "configurePreOpenQueue";
+const String METHOD_RPC_CALL = "rpcCall";
+const String METHOD_RPC_CANCEL = "rpcCancel";
+const String METHOD_RPC_REGISTER = "rpcRegister";
+const String METHOD_RPC_UNREGISTER = "rpcUnregister";
+const String METHOD_RPC_RESPOND = "rpcRespond";
+const String METHOD_GET_RPC_METRICS = "getRpcMetrics";
+const String METHOD_SET_TOPIC_SUBSCRIPTIONS = "setTopicSubscriptions";
+const String METHOD_GET_TOPIC_METRICS = "getTopicMetrics";
+const String METHOD_REPLICATED_PUT = "replicatedPut";
+const String METHOD_REPLICATED_REMOVE = "replicatedRemove";
+const String METHOD_GET_REPLICATED_MAP = "getReplicatedMap";
+const String METHOD_GET_REPLICATED_MAP_METRICS = "getReplicatedMapMetrics";
+const String METHOD_CONFIGURE_PACING = "configurePacing";
+const String METHOD_CONFIGURE_HEARTBEAT = "configureHeartbeat";
+const String METHOD_GET_HEARTBEAT_METRICS = "getHeartbeatMetrics";
+const String METHOD_GET_DELIVERY_METRICS = "getDeliveryMetrics";
+const String METHOD_GET_RUNTIME_METRICS = "getRuntimeMetrics";
+const String METHOD_DISPOSE = "dispose";
+const String METHOD_CONFIGURE_SDP = "configureSdp";
+const String METHOD_CONFIGURE_STANDBY = "configureStandby";
+const String METHOD_CONFIGURE_ICE_POLICY = "configureIcePolicy";
+const String METHOD_GET_ICE_METRICS = "getIceMetrics";
 
-const int EVENT_TYPE_SIGNALING_STATE = 1;
-const int EVENT_TYPE_ICE_STATE = 2;
-const int EVENT_TYPE_MESSAGE = 3;
+/// data frame: | session: u16 | lane: u8 | flags: u8 | length: u32 | payload |,
+/// lane of outbound frames is the priority class
+const int DATA_FRAME_HEADER_SIZE = 8;
+const int DATA_FRAME_FLAG_BINARY = 1;
+/// payload is | topic length: u8 | topic: utf8 | payload |
+const int DATA_FRAME_FLAG_TOPIC = 2;
+/// payload is a value encoded with [StandardMessageCodec]
+const int DATA_FRAME_FLAG_OBJECT = 4;
 
 const MethodChannel _methodChannel = const MethodChannel(METHOD_CHANNEL_NAME);
-const EventChannel _eventChannel = const EventChannel(EVENT_CHANNEL_NAME);
+const EventChannel _signalingStateChannel =
+    const EventChannel(SIGNALING_STATE_CHANNEL_NAME);
+const EventChannel _iceStateChannel = const EventChannel(ICE_STATE_CHANNEL_NAME);
+const EventChannel _rpcRequestChannel =
+    const EventChannel(RPC_REQUEST_CHANNEL_NAME);
+const EventChannel _replicatedMapChannel =
+    const EventChannel(REPLICATED_MAP_CHANNEL_NAME);
+const EventChannel _peerUnresponsiveChannel =
+    const EventChannel(PEER_UNRESPONSIVE_CHANNEL_NAME);
+const BasicMessageChannel<ByteData> _dataChannel =
+    const BasicMessageChannel<ByteData>(DATA_CHANNEL_NAME, const BinaryCodec());
+const StandardMessageCodec _objectCodec = const StandardMessageCodec();
+
+/// serves an RPC method, the returned payload is the response, a thrown error
+/// is reported to the caller as `REMOTE_ERROR`
+typedef Future<Uint8List> RpcHandler(Uint8List payload);
 
 class WebRTCDataChannel {
   /// disconnected from room server and signal server
@@ -28,58 +94,615 @@ class WebRTCDataChannel {
   /// ICE connection connected
   static const int ICE_STATE_CONNECTED = 2;
 
-  Stream<dynamic> _receivedEvents;
+  /// outbound priority classes, control messages are sent first, bulk messages
+  /// get the smallest share of the link
+  static const int PRIORITY_CONTROL = 0;
+  static const int PRIORITY_INTERACTIVE = 1;
+  static const int PRIORITY_BULK = 2;
+
+  /// what to do with a message sent before the data channel is open when the
+  /// pre-open queue is full: reject it, or drop the oldest queued messages
+  static const int PRE_OPEN_POLICY_REJECT = 0;
+  static const int PRE_OPEN_POLICY_DROP_OLDEST = 1;
 
-  /// connect to room with [roomUrl] and [roomId]
-  Future<int> connect(String roomUrl, String roomId) =>
+  Stream<int> _signalingStates;
+  Stream<int> _iceStates;
+  StreamController<String> _receivedMessages;
+  StreamController<Uint8List> _receivedBinaryMessages;
+  StreamController<dynamic> _receivedObjects;
+  bool _messageListening = false;
+  int _session = 0;
+  int _nextRpcCallId = 0;
+  final Map<String, RpcHandler> _rpcHandlers = <String, RpcHandler>{};
+  StreamSubscription<dynamic> _rpcRequests;
+  final Map<String, StreamController<Uint8List>> _topics =
+      <String, StreamController<Uint8List>>{};
+  List<String> _subscribedTopics = <String>[];
+  Stream<Map<String, dynamic>> _replicatedChanges;
+  Stream<bool> _peerUnresponsive;
+
+  /// connect to room with [roomUrl] and [roomId], resolves to the session id,
+  /// with [webSocketSignaling] both peers signal over the WebSocket instead of
+  /// the initiator posting each message to the room server (Android only),
+  /// with [negotiatedChannelId] both peers create the data channel with this
+  /// stream id in 0..65534, so it opens without the in-band handshake, both
+  /// peers must use the same value, with [sharedSignaling] the room registers
+  /// on a signaling WebSocket shared by all rooms on the server, which must
+  /// accept several registrations per WebSocket like the embedded room server
+  /// does (Android only)
+  Future<int> connect(String roomUrl, String roomId,
+          {bool webSocketSignaling = false,
+          int negotiatedChannelId,
+          bool sharedSignaling = false}) =>
       _methodChannel.invokeMethod(METHOD_CONNECT_TO_ROOM, {
         'roomUrl': roomUrl,
-        'roomId': roomId
-      }).then<int>((dynamic result) => result);
+        'roomId': roomId,
+        'webSocketSignaling': webSocketSignaling,
+        'negotiatedChannelId': negotiatedChannelId,
+        'sharedSignaling': sharedSignaling
+      }).then<int>((dynamic result) => _session = result);
 
   /// listening for signaling state
   Stream<int> listenSignalingState() {
-    if (_receivedEvents == null) {
-      _receivedEvents = _eventChannel.receiveBroadcastStream();
+    if (_signalingStates == null) {
+      _signalingStates = _signalingStateChannel
+          .receiveBroadcastStream()
+          .map<int>((dynamic state) => state);
     }
-
-    return _receivedEvents
-        .map<Map>((dynamic event) => event)
-        .where((Map event) => event['type'] == EVENT_TYPE_SIGNALING_STATE)
-        .map<int>((Map event) => event['state']);
+    return _signalingStates;
   }
 
   /// listening for ICE connection state
   Stream<int> listenIceState() {
-    if (_receivedEvents == null) {
-      _receivedEvents = _eventChannel.receiveBroadcastStream();
+    if (_iceStates == null) {
+      _iceStates = _iceStateChannel
+          .receiveBroadcastStream()
+          .map<int>((dynamic state) => state);
     }
-
-    return _receivedEvents
-        .map<Map>((dynamic event) => event)
-        .where((Map event) => event['type'] == EVENT_TYPE_ICE_STATE)
-        .map<int>((Map event) => event['state']);
+    return _iceStates;
   }
 
   /// listening for received messages
   Stream<String> listenMessages() {
-    if (_receivedEvents == null) {
-      _receivedEvents = _eventChannel.receiveBroadcastStream();
-    }
+    _listenData();
+    return _receivedMessages.stream;
+  }
+
+  /// listening for received binary messages
+  Stream<Uint8List> listenBinaryMessages() {
+    _listenData();
+    return _receivedBinaryMessages.stream;
+  }
 
-    return _receivedEvents
-        .map<Map>((dynamic event) => event)
-        .where((Map event) => event['type'] == EVENT_TYPE_MESSAGE)
-        .map<String>((Map event) => event['message']);
+  /// listening for received structured messages, Android only
+  Stream<dynamic> listenObjects() {
+    _listenData();
+    return _receivedObjects.stream;
   }
 
+  /// deliver received messages in batches, once per UI frame (when
+  /// [maxDelayMs] is 0) or per [maxDelayMs], or every [maxBatchSize] messages,
+  /// when disabled, messages received while the main thread is busy are still
+  /// delivered together, Android only
+  Future<int> setEventBatching(bool enabled,
+          {int maxBatchSize = 256, int maxDelayMs = 0}) =>
+      _methodChannel.invokeMethod(METHOD_SET_EVENT_BATCHING, {
+        'enabled': enabled,
+        'maxBatchSize': maxBatchSize,
+        'maxDelayMs': maxDelayMs
+      }).then<int>((dynamic result) => result);
+
   /// send message
-  Future<int> sendMessage(String message) => _methodChannel.invokeMethod(
-      METHOD_SEND_MESSAGE,
-      {'message': message}).then<int>((dynamic result) => result);
+  Future<int> sendMessage(String message,
+          {int priority = PRIORITY_INTERACTIVE}) =>
+      sendMessages([message], priority: priority);
+
+  /// send a burst of messages with a single platform call, each message is
+  /// either a [String] (sent as text) or a [Uint8List] (sent as binary),
+  /// resolves to the number of messages rejected because the send queue of
+  /// [priority] is full
+  Future<int> sendMessages(List<dynamic> messages,
+      {int priority = PRIORITY_INTERACTIVE}) {
+    List<List<int>> payloads = new List<List<int>>(messages.length);
+    List<int> flags = new List<int>(messages.length);
+    for (int i = 0; i < messages.length; i++) {
+      dynamic message = messages[i];
+      if (message is String) {
+        payloads[i] = utf8.encode(message);
+        flags[i] = 0;
+      } else if (message is Uint8List) {
+        payloads[i] = message;
+        flags[i] = DATA_FRAME_FLAG_BINARY;
+      } else {
+        throw new ArgumentError.value(message, 'messages',
+            'must be String or Uint8List');
+      }
+    }
+    return _sendFrames(payloads, flags, priority);
+  }
+
+  /// send a structured message: null, bool, num, String, typed data, and
+  /// List and Map of them, it's encoded once with [StandardMessageCodec] and
+  /// passes through native as is, instead of being converted to and from
+  /// JSON text, resolves to 1 if it's rejected because the send queue of
+  /// [priority] is full, Android only
+  Future<int> sendObject(dynamic value,
+      {int priority = PRIORITY_INTERACTIVE}) {
+    return _sendFrames(
+        [_encodeObject(value)], [DATA_FRAME_FLAG_OBJECT], priority);
+  }
+
+  /// receive messages published on [topic], the peer only sends messages of
+  /// topics with listeners here, Android only
+  Stream<Uint8List> subscribe(String topic) {
+    _listenData();
+    return _topics
+        .putIfAbsent(
+            topic,
+            () => new StreamController<Uint8List>.broadcast(
+                onListen: _updateTopicSubscriptions,
+                onCancel: _updateTopicSubscriptions))
+        .stream;
+  }
+
+  /// publish [payload] on [topic], it's dropped before reaching the data
+  /// channel if the peer isn't subscribed to [topic], resolves to 1 if it's
+  /// rejected because the send queue of [priority] is full, Android only
+  Future<int> publish(String topic, Uint8List payload,
+      {int priority = PRIORITY_INTERACTIVE}) {
+    List<int> name = utf8.encode(topic);
+    if (name.length > 255) {
+      throw new ArgumentError.value(topic, 'topic', 'longer than 255 bytes');
+    }
+    Uint8List message = new Uint8List(1 + name.length + payload.length);
+    message[0] = name.length;
+    message.setAll(1, name);
+    message.setAll(1 + name.length, payload);
+    return _sendFrames([message], [DATA_FRAME_FLAG_TOPIC], priority);
+  }
+
+  /// `published` and `filtered` (not sent as the peer isn't subscribed)
+  /// count, `received` and `unsubscribed` (dropped on arrival) count, and the
+  /// peer's subscription count `remoteTopics`, -1 until known, Android only
+  Future<Map> getTopicMetrics() => _methodChannel
+      .invokeMethod(METHOD_GET_TOPIC_METRICS)
+      .then<Map>((dynamic result) => result);
+
+  /// queue depth, sent count, average and max queueing time in microseconds
+  /// of each priority class, keyed by `control`, `interactive` and `bulk`, of
+  /// the pre-open queue, keyed by `preOpen`, and the pacing `rateBytesPerSec`
+  /// and `queueDelayUs` in the data channel's buffer, keyed by `pacing`,
+  /// Android only
+  Future<Map> getSendMetrics() => _methodChannel
+      .invokeMethod(METHOD_GET_SEND_METRICS)
+      .then<Map>((dynamic result) => result);
+
+  /// record signaling, peer connection and data channel events into a ring of
+  /// [capacity] events, the ring is dumped to a file on error, or by
+  /// [dumpFlightRecorder], Android only
+  Future<int> setFlightRecorder(bool enabled, {int capacity = 4096}) =>
+      _methodChannel.invokeMethod(METHOD_SET_FLIGHT_RECORDER, {
+        'enabled': enabled,
+        'capacity': capacity
+      }).then<int>((dynamic result) => result);
+
+  /// dump recorded events to a file, resolves to the file path, or null if
+  /// the flight recorder is disabled, Android only
+  Future<String> dumpFlightRecorder() => _methodChannel
+      .invokeMethod(METHOD_DUMP_FLIGHT_RECORDER)
+      .then<String>((dynamic result) => result);
+
+  /// capture the RTC event log of current and later connections, into
+  /// rotating gzipped segments of [segmentMaxBytes], the oldest segments are
+  /// deleted beyond [totalBudgetBytes], Android only
+  Future<int> startRtcEventLog(
+          {int segmentMaxBytes = 2000000, int totalBudgetBytes = 20000000}) =>
+      _methodChannel.invokeMethod(METHOD_START_RTC_EVENT_LOG, {
+        'segmentMaxBytes': segmentMaxBytes,
+        'totalBudgetBytes': totalBudgetBytes
+      }).then<int>((dynamic result) => result);
+
+  /// stop capturing the RTC event log, Android only
+  Future<int> stopRtcEventLog() => _methodChannel
+      .invokeMethod(METHOD_STOP_RTC_EVENT_LOG)
+      .then<int>((dynamic result) => result);
+
+  /// resolves to paths of captured RTC event log segments, oldest first, the
+  /// active segment is finished first so it's included, Android only
+  Future<List<String>> collectRtcEventLogs() => _methodChannel
+      .invokeMethod(METHOD_COLLECT_RTC_EVENT_LOGS)
+      .then<List<String>>(
+          (dynamic result) => new List<String>.from(result));
+
+  /// start the embedded AppRTC compatible room server on [port] (0 picks a
+  /// free one), resolves to the port it listens on, peers on the same device
+  /// or LAN connect with `http://<address>:<port>` as room url, Android only
+  Future<int> startRoomServer({int port = 0}) => _methodChannel
+      .invokeMethod(METHOD_START_ROOM_SERVER, {'port': port})
+      .then<int>((dynamic result) => result);
+
+  /// stop the embedded room server, Android only
+  Future<int> stopRoomServer() => _methodChannel
+      .invokeMethod(METHOD_STOP_ROOM_SERVER)
+      .then<int>((dynamic result) => result);
+
+  /// `offerAnswerLatencyUs` of the current connection, -1 until measured, only
+  /// measured by the initiator, `localSdpBytes`, `minimizedSdpBytes` and
+  /// `sdpMessageBytes` of the last local SDP, -1 if none, `sharedWebSocket`
+  /// with the number of shared `sockets`, `registrations` on them and
+  /// `handshakes` made, whether the session is in `standby`, and the number of
+  /// `standbyReattached` and `standbyExpired` ones, Android only
+  Future<Map> getSignalingMetrics() => _methodChannel
+      .invokeMethod(METHOD_GET_SIGNALING_METRICS)
+      .then<Map>((dynamic result) => result);
+
+  /// milliseconds from creating the peer connection to `iceConnectedMs` and
+  /// `dataChannelOpenMs` (-1 until reached), and whether the data channel is
+  /// `negotiated`, Android only
+  Future<Map> getConnectionTimeline() => _methodChannel
+      .invokeMethod(METHOD_GET_CONNECTION_TIMELINE)
+      .then<Map>((dynamic result) => result);
+
+  /// bound the queue holding messages sent before the data channel is open to
+  /// [maxBytes] of payload, it's flushed in one pass once the channel opens,
+  /// applies to the current and later connections, Android only
+  Future<int> configurePreOpenQueue(
+          {int maxBytes = 1048576, int policy = PRE_OPEN_POLICY_REJECT}) =>
+      _methodChannel.invokeMethod(METHOD_CONFIGURE_PRE_OPEN_QUEUE, {
+        'maxBytes': maxBytes,
+        'policy': policy
+      }).then<int>((dynamic result) => result);
+
+  /// call [method] on the peer, resolves to the response payload, any number
+  /// of calls may be in flight, a call fails with a [PlatformException] coded
+  /// `TIMEOUT` after [timeoutMs], `CANCELLED` once [cancelSignal] completes,
+  /// or `NO_HANDLER`, `REMOTE_ERROR`, `REJECTED`, `CLOSED` and `DUPLICATE_ID`
+  /// if all 2^32 call ids wrapped around onto one still in flight, Android only
+  Future<Uint8List> callRpc(String method, Uint8List payload,
+      {int timeoutMs = 5000,
+      int priority = PRIORITY_INTERACTIVE,
+      Future<dynamic> cancelSignal}) {
+    int callId = _nextRpcCallId;
+    _nextRpcCallId = (_nextRpcCallId + 1) & 0xFFFFFFFF;
+    if (cancelSignal != null) {
+      cancelSignal.then((dynamic _) => _methodChannel
+          .invokeMethod(METHOD_RPC_CANCEL, {'callId': callId}));
+    }
+    return _methodChannel.invokeMethod(METHOD_RPC_CALL, {
+      'callId': callId,
+      'method': method,
+      'payload': payload,
+      'timeoutMs': timeoutMs,
+      'priority': priority
+    }).then<Uint8List>((dynamic result) => result);
+  }
+
+  /// serve [method] with [handler], for the current and later connections,
+  /// Android only
+  Future<int> registerRpcHandler(String method, RpcHandler handler) {
+    _rpcHandlers[method] = handler;
+    if (_rpcRequests == null) {
+      _rpcRequests =
+          _rpcRequestChannel.receiveBroadcastStream().listen(_onRpcRequest);
+    }
+    return _methodChannel.invokeMethod(METHOD_RPC_REGISTER, {
+      'method': method
+    }).then<int>((dynamic result) => result);
+  }
+
+  /// stop serving [method], later calls fail with `NO_HANDLER`, Android only
+  Future<int> unregisterRpcHandler(String method) {
+    _rpcHandlers.remove(method);
+    return _methodChannel.invokeMethod(METHOD_RPC_UNREGISTER, {
+      'method': method
+    }).then<int>((dynamic result) => result);
+  }
+
+  /// `count`, `errors`, `timeouts` and `p50Us`, `p90Us`, `p99Us`, `maxUs`
+  /// latency of outbound calls of the current connection, keyed by method,
+  /// Android only
+  Future<Map> getRpcMetrics() => _methodChannel
+      .invokeMethod(METHOD_GET_RPC_METRICS)
+      .then<Map>((dynamic result) => result);
+
+  /// set [key] of the map replicated with the peer to [value], any value
+  /// [sendObject] accepts, changes are sent once per tick and concurrent
+  /// writes resolve to the same value on both peers, the map outlives
+  /// connections and a new peer gets all of it, Android only
+  Future<int> putReplicated(String key, dynamic value) =>
+      _methodChannel.invokeMethod(METHOD_REPLICATED_PUT, {
+        'key': key,
+        'value': _encodeObject(value)
+      }).then<int>((dynamic result) => result);
 
-  /// disconnect from room
+  /// remove [key] from the replicated map, Android only
+  Future<int> removeReplicated(String key) => _methodChannel
+      .invokeMethod(METHOD_REPLICATED_REMOVE, {'key': key})
+      .then<int>((dynamic result) => result);
+
+  /// resolves to all entries of the replicated map, Android only
+  Future<Map<String, dynamic>> getReplicatedMap() => _methodChannel
+          .invokeMethod(METHOD_GET_REPLICATED_MAP)
+          .then<Map<String, dynamic>>((dynamic result) {
+        Map<String, dynamic> entries = <String, dynamic>{};
+        result.forEach((dynamic key, dynamic value) =>
+            entries[key] = _decodeObject(value));
+        return entries;
+      });
+
+  /// listening for entries of the replicated map changed by the peer, a
+  /// removed key maps to null, Android only
+  Stream<Map<String, dynamic>> listenReplicatedChanges() {
+    if (_replicatedChanges == null) {
+      _replicatedChanges = _replicatedMapChannel
+          .receiveBroadcastStream()
+          .map<Map<String, dynamic>>((dynamic changes) {
+        Map<String, dynamic> entries = <String, dynamic>{};
+        for (int i = 0; i < changes.length; i += 2) {
+          entries[changes[i]] =
+              changes[i + 1] == null ? null : _decodeObject(changes[i + 1]);
+        }
+        return entries;
+      });
+    }
+    return _replicatedChanges;
+  }
+
+  /// `keys`, `tombstones`, `deltas`, `deltaEntries`, `deltaBytes` and
+  /// `snapshotBytes` sent, remote entries `merged` and `stale` ones ignored,
+  /// Android only
+  Future<Map> getReplicatedMapMetrics() => _methodChannel
+      .invokeMethod(METHOD_GET_REPLICATED_MAP_METRICS)
+      .then<Map>((dynamic result) => result);
+
+  /// pace interactive and bulk messages with a token bucket, its rate adapts
+  /// between [minBytesPerSec] and [maxBytesPerSec] to how fast the data channel
+  /// drains and the RTT, so bulk transfers don't build a queue in front of
+  /// everything else, control messages aren't paced, [minBytesPerSec] must be
+  /// positive and no more than [maxBytesPerSec], it's disabled by default and
+  /// applies to the current and later connections, Android only
+  Future<int> configurePacing(
+          {bool enabled = true,
+          int minBytesPerSec = 16384,
+          int maxBytesPerSec = 33554432}) =>
+      _methodChannel.invokeMethod(METHOD_CONFIGURE_PACING, {
+        'enabled': enabled,
+        'minBytesPerSec': minBytesPerSec,
+        'maxBytesPerSec': maxBytesPerSec
+      }).then<int>((dynamic result) => result);
+
+  /// ping the peer every [intervalMs] once the data channel is open, pongs
+  /// are answered natively, the peer is reported unresponsive after
+  /// [missThreshold] missed pongs in a row, [intervalMs] must be positive,
+  /// it's disabled by default and applies to the current and later
+  /// connections, Android only
+  Future<int> configureHeartbeat(
+          {bool enabled = true, int intervalMs = 1000, int missThreshold = 3}) =>
+      _methodChannel.invokeMethod(METHOD_CONFIGURE_HEARTBEAT, {
+        'enabled': enabled,
+        'intervalMs': intervalMs,
+        'missThreshold': missThreshold
+      }).then<int>((dynamic result) => result);
+
+  /// listening for the peer missing heartbeats, true once it's unresponsive,
+  /// false once it answers again, Android only
+  Stream<bool> listenPeerUnresponsive() {
+    if (_peerUnresponsive == null) {
+      _peerUnresponsive = _peerUnresponsiveChannel
+          .receiveBroadcastStream()
+          .map<bool>((dynamic unresponsive) => unresponsive);
+    }
+    return _peerUnresponsive;
+  }
+
+  /// heartbeat RTT histogram, `count`, `p50Us`, `p90Us`, `p99Us` and `maxUs`,
+  /// pings `sent` and `missed`, and whether the peer is `unresponsive`, null
+  /// if not connected, Android only
+  Future<Map> getHeartbeatMetrics() => _methodChannel
+      .invokeMethod(METHOD_GET_HEARTBEAT_METRICS)
+      .then<Map>((dynamic result) => result);
+
+  /// inbound delivery to the main thread, `batches` and `events` delivered,
+  /// `pending` events, and the queueing latency of the oldest event of each
+  /// batch, `count`, `p50Us`, `p90Us`, `p99Us` and `maxUs`, Android only
+  Future<Map> getDeliveryMetrics() => _methodChannel
+      .invokeMethod(METHOD_GET_DELIVERY_METRICS)
+      .then<Map>((dynamic result) => result);
+
+  /// threads shared by all sessions, `loops` with each loop's `name`,
+  /// `sessions`, `queued` and run `tasks`, `busyUs` and `utilization`, and the
+  /// blocking `io` pool with `active` threads, `queued` and `completed` tasks,
+  /// Android only
+  Future<Map> getRuntimeMetrics() => _methodChannel
+      .invokeMethod(METHOD_GET_RUNTIME_METRICS)
+      .then<Map>((dynamic result) => result);
+
+  /// offer and answer with only the data channel's media section, and send the
+  /// SDP deflated, which the peer must understand, applies to later
+  /// connections, Android only
+  Future<int> configureSdp({bool dataOnly = true, bool compress = false}) =>
+      _methodChannel.invokeMethod(METHOD_CONFIGURE_SDP, {
+        'dataOnly': dataOnly,
+        'compress': compress
+      }).then<int>((dynamic result) => result);
+
+  /// choose ICE candidates, [mode] is `all`, `hostOnly` for peers on one LAN,
+  /// which uses no ICE servers and exchanges host candidates only, or
+  /// `relayOnly`, [candidateTypes] of `host`, `srflx`, `prflx` and `relay`
+  /// filters both local and remote candidates, empty for all, local `srflx`
+  /// and `relay` candidates gathered later than [srflxTimeoutMs] and
+  /// [relayTimeoutMs] after the connection starts are dropped, 0 to never,
+  /// filters apply immediately, the rest from the next connection, Android only
+  Future<int> configureIcePolicy(
+          {String mode = 'all',
+          bool tcpCandidates = false,
+          bool continualGathering = true,
+          List<String> candidateTypes = const <String>[],
+          int srflxTimeoutMs = 0,
+          int relayTimeoutMs = 0}) =>
+      _methodChannel.invokeMethod(METHOD_CONFIGURE_ICE_POLICY, {
+        'mode': mode,
+        'tcpCandidates': tcpCandidates,
+        'continualGathering': continualGathering,
+        'candidateTypes': candidateTypes,
+        'srflxTimeoutMs': srflxTimeoutMs,
+        'relayTimeoutMs': relayTimeoutMs
+      }).then<int>((dynamic result) => result);
+
+  /// `gathered` and `dropped` local candidates, `received` and `rejected`
+  /// remote ones, keyed by candidate type, the `mode`, and `firstCandidateMs`
+  /// from the connection start to the first local candidate, -1 if none yet,
+  /// of the current connection, Android only
+  Future<Map> getIceMetrics() => _methodChannel
+      .invokeMethod(METHOD_GET_ICE_METRICS)
+      .then<Map>((dynamic result) => result);
+
+  /// keep a disconnected session warm for [graceMs], [connect] to the same room
+  /// meanwhile reattaches to it and returns the same session id, without
+  /// negotiating again, it's released early if ICE disconnects or fails, 0
+  /// disables it, which is the default, Android only
+  Future<int> configureStandby({int graceMs = 5000}) => _methodChannel
+      .invokeMethod(METHOD_CONFIGURE_STANDBY, {'graceMs': graceMs})
+      .then<int>((dynamic result) => result);
+
+  /// disconnect, stop the room server and the shared native threads, they are
+  /// started again by the next [connect], Android only
+  Future<int> dispose() => _methodChannel
+      .invokeMethod(METHOD_DISPOSE)
+      .then<int>((dynamic result) => result);
+
+  /// disconnect from room, or keep the session warm, see [configureStandby]
   Future<int> disconnect() => _methodChannel
       .invokeMethod(METHOD_DISCONNECT)
       .then<int>((dynamic result) => result);
+
+  void _listenData() {
+    if (_receivedMessages != null) {
+      return;
+    }
+    _receivedMessages = new StreamController<String>.broadcast(
+        onListen: _updateMessageListening, onCancel: _updateMessageListening);
+    _receivedBinaryMessages = new StreamController<Uint8List>.broadcast(
+        onListen: _updateMessageListening, onCancel: _updateMessageListening);
+    _receivedObjects = new StreamController<dynamic>.broadcast(
+        onListen: _updateMessageListening, onCancel: _updateMessageListening);
+    _dataChannel.setMessageHandler(_onData);
+  }
+
+  /// native side only encodes messages while someone is listening
+  void _updateMessageListening() {
+    bool listening = _receivedMessages.hasListener ||
+        _receivedBinaryMessages.hasListener ||
+        _receivedObjects.hasListener;
+    if (listening != _messageListening) {
+      _messageListening = listening;
+      _methodChannel.invokeMethod(
+          METHOD_SET_MESSAGE_LISTENING, {'listening': listening});
+    }
+  }
+
+  /// a request is `[callId, method, payload]`
+  void _onRpcRequest(dynamic request) {
+    int callId = request[0];
+    RpcHandler handler = _rpcHandlers[request[1]];
+    Future<Uint8List> response = handler == null
+        ? new Future<Uint8List>.error('No handler')
+        : new Future<Uint8List>.sync(() => handler(request[2]));
+    response.then((Uint8List payload) {
+      _methodChannel.invokeMethod(METHOD_RPC_RESPOND,
+          {'callId': callId, 'payload': payload ?? new Uint8List(0)});
+    }, onError: (dynamic error) {
+      _methodChannel.invokeMethod(METHOD_RPC_RESPOND,
+          {'callId': callId, 'error': error.toString()});
+    });
+  }
+
+  Uint8List _encodeObject(dynamic value) {
+    ByteData encoded = _objectCodec.encodeMessage(value);
+    return encoded == null
+        ? new Uint8List(0)
+        : encoded.buffer
+            .asUint8List(encoded.offsetInBytes, encoded.lengthInBytes);
+  }
+
+  dynamic _decodeObject(Uint8List encoded) {
+    if (encoded.isEmpty) {
+      return null;
+    }
+    // copied, typed data in the value must be aligned in its buffer
+    return _objectCodec
+        .decodeMessage(new Uint8List.fromList(encoded).buffer.asByteData());
+  }
+
+  /// the peer only sends topics with listeners here
+  void _updateTopicSubscriptions() {
+    List<String> topics = _topics.keys
+        .where((String topic) => _topics[topic].hasListener)
+        .toList();
+    topics.sort();
+    if (topics.join('\n') != _subscribedTopics.join('\n')) {
+      _subscribedTopics = topics;
+      _methodChannel.invokeMethod(
+          METHOD_SET_TOPIC_SUBSCRIPTIONS, {'topics': topics});
+    }
+  }
+
+  Future<int> _sendFrames(
+      List<List<int>> payloads, List<int> flags, int priority) {
+    int size = 0;
+    for (int i = 0; i < payloads.length; i++) {
+      size += DATA_FRAME_HEADER_SIZE + payloads[i].length;
+    }
+
+    ByteData frames = new ByteData(size);
+    int offset = 0;
+    for (int i = 0; i < payloads.length; i++) {
+      List<int> payload = payloads[i];
+      frames.setUint16(offset, _session);
+      frames.setUint8(offset + 2, priority);
+      frames.setUint8(offset + 3, flags[i]);
+      frames.setUint32(offset + 4, payload.length);
+      offset += DATA_FRAME_HEADER_SIZE;
+      frames.buffer.asUint8List(offset, payload.length).setAll(0, payload);
+      offset += payload.length;
+    }
+    return _dataChannel.send(frames).then<int>(
+        (ByteData reply) => reply == null ? 0 : reply.getUint32(0));
+  }
+
+  /// one data message may carry several frames
+  Future<ByteData> _onData(ByteData frames) async {
+    int offset = 0;
+    while (offset + DATA_FRAME_HEADER_SIZE <= frames.lengthInBytes) {
+      int session = frames.getUint16(offset);
+      int flags = frames.getUint8(offset + 3);
+      int length = frames.getUint32(offset + 4);
+      offset += DATA_FRAME_HEADER_SIZE;
+      Uint8List payload =
+          frames.buffer.asUint8List(frames.offsetInBytes + offset, length);
+      offset += length;
+
+      if (session != _session) {
+        continue;
+      }
+      if ((flags & DATA_FRAME_FLAG_TOPIC) != 0) {
+        int topicLength = payload[0];
+        StreamController<Uint8List> controller =
+            _topics[utf8.decode(payload.sublist(1, 1 + topicLength))];
+        if (controller != null) {
+          controller.add(new Uint8List.view(
+              payload.buffer,
+              payload.offsetInBytes + 1 + topicLength,
+              payload.length - 1 - topicLength));
+        }
+      } else if ((flags & DATA_FRAME_FLAG_OBJECT) != 0) {
+        _receivedObjects.add(_decodeObject(payload));
+      } else if ((flags & DATA_FRAME_FLAG_BINARY) != 0) {
+        _receivedBinaryMessages.add(payload);
+      } else {
+        _receivedMessages.add(utf8.decode(payload));
+      }
+    }
+    return null;
+  }
 }